@@ -0,0 +1,272 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Chooses the batch size of the cursors a {@link MongoScope} opens without an
+ * explicit batch size, see
+ * {@link MongoScope#setBatchSizePolicy(AdaptiveBatchSizePolicy)}. The policy
+ * learns the average BSON size of the documents of each namespace and how
+ * long the script waits for each batch, then sizes the next cursor on that
+ * namespace so that a batch holds about targetBatchBytes, doubled when
+ * batches take longer than slowBatchMillis to arrive, within
+ * [minBatchSize, maxBatchSize].
+ * 
+ * The driver can't resize a cursor once it has been read from, so the
+ * decisions apply to the following cursors of a namespace. Until a
+ * namespace has been read the driver default is used (batch size 0).
+ * 
+ * @author nlloyd
+ * 
+ */
+public class AdaptiveBatchSizePolicy {
+
+    public static final int DEFAULT_TARGET_BATCH_BYTES = 1024 * 1024;
+    public static final int DEFAULT_MIN_BATCH_SIZE = 16;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 10000;
+    public static final long DEFAULT_SLOW_BATCH_MILLIS = 50;
+
+    /**
+     * Weight of the newest observation in the moving averages.
+     */
+    private static final double SMOOTHING = 0.3;
+
+    /**
+     * Batch size the server uses for a first batch when none is given.
+     */
+    private static final int SERVER_DEFAULT_BATCH_SIZE = 101;
+
+    /**
+     * Statistics and decisions of one namespace, a snapshot is returned by
+     * {@link AdaptiveBatchSizePolicy#getMetrics(String)}.
+     */
+    public static final class Metrics {
+        private long cursors;
+        private long documents;
+        private long batches;
+        private double averageDocumentBytes;
+        private double averageBatchMillis;
+        private int lastBatchSize;
+
+        private Metrics() {
+        }
+
+        private Metrics(Metrics metrics) {
+            cursors = metrics.cursors;
+            documents = metrics.documents;
+            batches = metrics.batches;
+            averageDocumentBytes = metrics.averageDocumentBytes;
+            averageBatchMillis = metrics.averageBatchMillis;
+            lastBatchSize = metrics.lastBatchSize;
+        }
+
+        /**
+         * @return the number of cursors sized by the policy
+         */
+        public long getCursors() {
+            return cursors;
+        }
+
+        /**
+         * @return the number of documents observed
+         */
+        public long getDocuments() {
+            return documents;
+        }
+
+        /**
+         * @return the estimated number of batches observed
+         */
+        public long getBatches() {
+            return batches;
+        }
+
+        public double getAverageDocumentBytes() {
+            return averageDocumentBytes;
+        }
+
+        /**
+         * @return the average time the script waited for a batch
+         */
+        public double getAverageBatchMillis() {
+            return averageBatchMillis;
+        }
+
+        /**
+         * @return the batch size given to the last cursor, 0 for the driver
+         *         default
+         */
+        public int getLastBatchSize() {
+            return lastBatchSize;
+        }
+
+        @Override
+        public String toString() {
+            return "{cursors: " + cursors + ", documents: " + documents
+                    + ", batches: " + batches + ", averageDocumentBytes: "
+                    + Math.round(averageDocumentBytes)
+                    + ", averageBatchMillis: "
+                    + Math.round(averageBatchMillis * 100) / 100.0
+                    + ", lastBatchSize: " + lastBatchSize + "}";
+        }
+    }
+
+    private final int targetBatchBytes;
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final long slowBatchMillis;
+
+    private final Map<String, Metrics> metrics = new HashMap<String, Metrics>();
+
+    public AdaptiveBatchSizePolicy() {
+        this(DEFAULT_TARGET_BATCH_BYTES, DEFAULT_MIN_BATCH_SIZE,
+                DEFAULT_MAX_BATCH_SIZE, DEFAULT_SLOW_BATCH_MILLIS);
+    }
+
+    /**
+     * @param targetBatchBytes
+     *            BSON bytes a batch should hold
+     * @param minBatchSize
+     * @param maxBatchSize
+     * @param slowBatchMillis
+     *            batches taking longer than this on average are doubled in
+     *            size
+     */
+    public AdaptiveBatchSizePolicy(int targetBatchBytes, int minBatchSize,
+            int maxBatchSize, long slowBatchMillis) {
+        if ((targetBatchBytes < 1) || (minBatchSize < 1)
+                || (maxBatchSize < minBatchSize))
+            throw new IllegalArgumentException(
+                    "targetBatchBytes and minBatchSize must be positive and maxBatchSize at least minBatchSize");
+        this.targetBatchBytes = targetBatchBytes;
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.slowBatchMillis = slowBatchMillis;
+    }
+
+    /**
+     * Decides the batch size of a new cursor on the namespace.
+     * 
+     * @param ns
+     * @return the batch size, 0 for the driver default if nothing is known
+     *         about the namespace yet
+     */
+    public synchronized int batchSizeFor(String ns) {
+        Metrics nsMetrics = getOrCreate(ns);
+        int batchSize = 0;
+        if (nsMetrics.averageDocumentBytes > 0) {
+            long size = Math.round(targetBatchBytes
+                    / nsMetrics.averageDocumentBytes);
+            if (nsMetrics.averageBatchMillis > slowBatchMillis)
+                size *= 2;
+            batchSize = (int) Math.max(minBatchSize,
+                    Math.min(maxBatchSize, size));
+        }
+        nsMetrics.cursors++;
+        nsMetrics.lastBatchSize = batchSize;
+        return batchSize;
+    }
+
+    /**
+     * Records what a cursor observed since its last report.
+     * 
+     * @param ns
+     * @param batchSize
+     *            the batch size of the cursor, 0 for the driver default
+     * @param documents
+     *            number of documents read
+     * @param bytes
+     *            total BSON size of the documents
+     * @param waitNanos
+     *            time the script waited on the cursor for them
+     */
+    public synchronized void record(String ns, int batchSize, long documents,
+            long bytes, long waitNanos) {
+        if (documents <= 0)
+            return;
+        Metrics nsMetrics = getOrCreate(ns);
+        int perBatch = (batchSize > 0) ? batchSize : SERVER_DEFAULT_BATCH_SIZE;
+        long batches = (documents + perBatch - 1) / perBatch;
+        double documentBytes = (double) bytes / documents;
+        double batchMillis = waitNanos / 1000000.0 / batches;
+        if (nsMetrics.documents == 0) {
+            nsMetrics.averageDocumentBytes = documentBytes;
+            nsMetrics.averageBatchMillis = batchMillis;
+        } else {
+            nsMetrics.averageDocumentBytes += SMOOTHING
+                    * (documentBytes - nsMetrics.averageDocumentBytes);
+            nsMetrics.averageBatchMillis += SMOOTHING
+                    * (batchMillis - nsMetrics.averageBatchMillis);
+        }
+        nsMetrics.documents += documents;
+        nsMetrics.batches += batches;
+    }
+
+    /**
+     * @param ns
+     * @return a snapshot of the metrics of the namespace, null if the policy
+     *         has not seen it
+     */
+    public synchronized Metrics getMetrics(String ns) {
+        Metrics nsMetrics = metrics.get(ns);
+        return (nsMetrics == null) ? null : new Metrics(nsMetrics);
+    }
+
+    /**
+     * @return a snapshot of the metrics of every namespace seen
+     */
+    public synchronized Map<String, Metrics> getAllMetrics() {
+        Map<String, Metrics> snapshot = new HashMap<String, Metrics>();
+        for (Map.Entry<String, Metrics> entry : metrics.entrySet())
+            snapshot.put(entry.getKey(), new Metrics(entry.getValue()));
+        return snapshot;
+    }
+
+    public int getTargetBatchBytes() {
+        return targetBatchBytes;
+    }
+
+    public int getMinBatchSize() {
+        return minBatchSize;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public long getSlowBatchMillis() {
+        return slowBatchMillis;
+    }
+
+    private Metrics getOrCreate(String ns) {
+        Metrics nsMetrics = metrics.get(ns);
+        if (nsMetrics == null) {
+            nsMetrics = new Metrics();
+            metrics.put(ns, nsMetrics);
+        }
+        return nsMetrics;
+    }
+
+}
@@ -0,0 +1,191 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.Scriptable;
+
+import com.github.nlloyd.hornofmongo.action.CompiledMongoScriptAction;
+
+/**
+ * A JS script compiled once by {@link MongoRuntime#compile(String, String)}
+ * and executed any number of times, against any {@link MongoScope}, with
+ * {@link CompiledMongoScriptAction}. The compiled form holds no reference to
+ * a scope and may be executed from several threads at once.
+ * 
+ * Scripts compiled while the {@link MongoContextFactory} is in adaptive mode
+ * (see {@link MongoContextFactory#setAdaptiveCompileThreshold(int)}) start out
+ * interpreted and are compiled to bytecode after the configured number of
+ * executions.
+ * 
+ * Shell commands without a line terminator (ex. "use test" or "show dbs") are
+ * not valid JS and can't be compiled, use
+ * {@link com.github.nlloyd.hornofmongo.action.MongoScriptAction} for those.
+ * 
+ * @author nlloyd
+ * 
+ */
+public final class CompiledMongoScript {
+
+    private final String key;
+    private final String name;
+    private final String source;
+
+    private volatile Script script;
+    private volatile int optimizationLevel;
+
+    /**
+     * Optimization level to compile the script at once it has been executed
+     * {@link #promoteAfter} times in interpreted mode.
+     */
+    private final int promotedOptimizationLevel;
+    private final int promoteAfter;
+
+    private final AtomicLong interpretedExecutions = new AtomicLong();
+    private final AtomicLong compiledExecutions = new AtomicLong();
+
+    CompiledMongoScript(String key, String name, String source, Script script,
+            int optimizationLevel) {
+        this(key, name, source, script, optimizationLevel, optimizationLevel,
+                0);
+    }
+
+    CompiledMongoScript(String key, String name, String source, Script script,
+            int optimizationLevel, int promotedOptimizationLevel,
+            int promoteAfter) {
+        this.key = key;
+        this.name = name;
+        this.source = source;
+        this.script = script;
+        this.optimizationLevel = optimizationLevel;
+        this.promotedOptimizationLevel = promotedOptimizationLevel;
+        this.promoteAfter = promoteAfter;
+    }
+
+    /**
+     * Executes the script in the given scope, compiling it to bytecode first
+     * if it was compiled in adaptive mode and has now been interpreted enough
+     * times.
+     * 
+     * @param cx
+     * @param scope
+     * @return the result of the script
+     */
+    public Object exec(Context cx, Scriptable scope) {
+        Script current = script;
+        if (isInterpreted()) {
+            long executions = interpretedExecutions.incrementAndGet();
+            if (promoteAfter > 0 && executions == promoteAfter)
+                promote(cx);
+        } else {
+            compiledExecutions.incrementAndGet();
+        }
+        return current.exec(cx, scope);
+    }
+
+    private void promote(Context cx) {
+        int contextLevel = cx.getOptimizationLevel();
+        cx.setOptimizationLevel(promotedOptimizationLevel);
+        try {
+            script = cx.compileString(source, name, 0, null);
+            optimizationLevel = promotedOptimizationLevel;
+        } finally {
+            cx.setOptimizationLevel(contextLevel);
+        }
+    }
+
+    /**
+     * @return the hash of the script name, source and optimization level this
+     *         script is cached under
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return the script name used in error messages and stack traces
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the JS source this script was compiled from
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * @return the compiled Rhino {@link Script} currently used by
+     *         {@link #exec(Context, Scriptable)}
+     */
+    public Script getScript() {
+        return script;
+    }
+
+    /**
+     * @return the Rhino optimization level the current {@link Script} was
+     *         compiled at, -1 if it is interpreted
+     */
+    public int getOptimizationLevel() {
+        return optimizationLevel;
+    }
+
+    /**
+     * @return true if the script currently runs in the Rhino interpreter
+     */
+    public boolean isInterpreted() {
+        return optimizationLevel < 0;
+    }
+
+    /**
+     * @return true if the script will be compiled to bytecode after enough
+     *         interpreted executions
+     */
+    public boolean isAdaptive() {
+        return promoteAfter > 0;
+    }
+
+    /**
+     * @return number of executions in the Rhino interpreter
+     */
+    public long getInterpretedExecutionCount() {
+        return interpretedExecutions.get();
+    }
+
+    /**
+     * @return number of executions as compiled bytecode
+     */
+    public long getCompiledExecutionCount() {
+        return compiledExecutions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "CompiledMongoScript[" + name + "]";
+    }
+
+}
@@ -0,0 +1,204 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.EvaluatorException;
+import org.mozilla.javascript.Script;
+
+import com.github.nlloyd.hornofmongo.exception.MongoScopeException;
+
+/**
+ * Process-wide cache of the compiled mongodb JS API files that every
+ * {@link MongoScope} executes on creation. Compiled {@link Script} instances
+ * hold no reference to the scope they are executed in so a single compiled
+ * copy of each file can be shared by every {@link MongoScope} in the JVM.
+ * 
+ * When the build has precompiled a file with {@link CoreScriptCompiler} the
+ * generated class is loaded instead of compiling the JS source.
+ * 
+ * @author nlloyd
+ * 
+ */
+public final class CoreScriptCache {
+
+    /**
+     * Package of the classes generated by {@link CoreScriptCompiler}.
+     */
+    public static final String PRECOMPILED_PACKAGE = "com.github.nlloyd.hornofmongo.precompiled";
+
+    private static final ConcurrentMap<String, Script> compiledScripts = new ConcurrentHashMap<String, Script>();
+
+    private CoreScriptCache() {
+    }
+
+    /**
+     * Returns the compiled {@link Script} for the given classpath resource,
+     * compiling and caching it first if this is the first request for it.
+     * 
+     * @param context
+     *            the {@link Context} used to compile the script if needed
+     * @param classpathFile
+     *            classpath location of the JS file (ex. "mongodb/db.js")
+     * @return the shared compiled {@link Script}
+     */
+    public static Script getScript(Context context, String classpathFile) {
+        Script script = compiledScripts.get(classpathFile);
+        if (script == null) {
+            synchronized (compiledScripts) {
+                script = compiledScripts.get(classpathFile);
+                if (script == null) {
+                    script = compile(context, classpathFile);
+                    compiledScripts.put(classpathFile, script);
+                }
+            }
+        }
+        return script;
+    }
+
+    /**
+     * Returns a {@link Script} for the given classpath resource whose functions
+     * can be written with Java serialization and read back in another JVM: the
+     * precompiled class if there is one, otherwise an uncached interpreted
+     * compilation of the source. Classes generated at runtime by the Rhino
+     * optimizer can't be loaded when a serialized scope is read.
+     * 
+     * @param context
+     * @param classpathFile
+     * @return
+     */
+    public static Script getSerializableScript(Context context,
+            String classpathFile) {
+        Script script = getScript(context, classpathFile);
+        if (script.getClass().getName().startsWith(PRECOMPILED_PACKAGE))
+            return script;
+        int optimizationLevel = context.getOptimizationLevel();
+        context.setOptimizationLevel(-1);
+        try {
+            return compileSource(context,
+                    CoreScriptCache.class.getClassLoader(), classpathFile);
+        } finally {
+            context.setOptimizationLevel(optimizationLevel);
+        }
+    }
+
+    /**
+     * Compiles and caches each of the given classpath resources that is not
+     * already cached.
+     * 
+     * @param context
+     * @param classpathFiles
+     */
+    public static void warm(Context context, String... classpathFiles) {
+        for (String classpathFile : classpathFiles)
+            getScript(context, classpathFile);
+    }
+
+    /**
+     * @param classpathFile
+     * @return true if a compiled {@link Script} is cached for the file
+     */
+    public static boolean isCached(String classpathFile) {
+        return compiledScripts.containsKey(classpathFile);
+    }
+
+    /**
+     * Discards all cached compiled scripts.
+     */
+    public static void clear() {
+        compiledScripts.clear();
+    }
+
+    /**
+     * @param classpathFile
+     *            classpath location of the JS file (ex. "mongodb/db.js")
+     * @return the name of the class generated for the file by
+     *         {@link CoreScriptCompiler}
+     */
+    public static String precompiledClassName(String classpathFile) {
+        StringBuilder className = new StringBuilder(PRECOMPILED_PACKAGE)
+                .append('.');
+        for (char c : classpathFile.toCharArray())
+            className.append(Character.isJavaIdentifierPart(c) ? c : '_');
+        return className.toString();
+    }
+
+    /**
+     * Instantiates the class generated by {@link CoreScriptCompiler} for the
+     * given file. Returns null if the file was not precompiled or the class
+     * can't be used with the Rhino version on the classpath, in which case the
+     * caller falls back to compiling the source.
+     */
+    private static Script loadPrecompiled(ClassLoader loader,
+            String classpathFile) {
+        String className = precompiledClassName(classpathFile);
+        if (loader.getResource(className.replace('.', '/') + ".class") == null)
+            return null;
+        try {
+            Class<?> scriptClass = Class.forName(className, true, loader);
+            return (Script) scriptClass.newInstance();
+        } catch (Exception e) {
+            return null;
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+
+    private static Script compile(Context context, String classpathFile) {
+        ClassLoader loader = CoreScriptCache.class.getClassLoader();
+        Script precompiled = loadPrecompiled(loader, classpathFile);
+        if (precompiled != null)
+            return precompiled;
+        return compileSource(context, loader, classpathFile);
+    }
+
+    private static Script compileSource(Context context, ClassLoader loader,
+            String classpathFile) {
+        if (loader.getResource(classpathFile) == null)
+            throw new MongoScopeException(
+                    "Could not find core JS file on classpath: "
+                            + classpathFile);
+        Reader reader = MongoScope.loadFromClasspath(loader, classpathFile);
+        try {
+            return context.compileReader(reader, classpathFile, 0, null);
+        } catch (IOException e) {
+            throw new MongoScopeException(
+                    "Caught IOException attempting to load from classpath: "
+                            + classpathFile, e);
+        } catch (EvaluatorException e) {
+            throw new MongoScopeException(
+                    "Caught EvaluatorException attempting to compile from classpath: "
+                            + classpathFile, e);
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+}
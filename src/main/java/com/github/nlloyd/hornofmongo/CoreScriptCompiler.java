@@ -0,0 +1,114 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.optimizer.ClassCompiler;
+
+import com.github.nlloyd.hornofmongo.action.MongoAction;
+
+/**
+ * Build-time tool that compiles the bundled mongodb JS API files to Java class
+ * files with Rhino's {@link ClassCompiler}. The classes are named by
+ * {@link CoreScriptCache#precompiledClassName(String)} and picked up by the
+ * {@link CoreScriptCache} at runtime instead of compiling the JS source.
+ * 
+ * Usage: CoreScriptCompiler &lt;js source root&gt; &lt;class output dir&gt;
+ * 
+ * Every *.js file under the source root is compiled, using its path relative
+ * to the source root as the script name (ex. "mongodb/db.js").
+ * 
+ * @author nlloyd
+ * 
+ */
+public class CoreScriptCompiler {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err
+                    .println("usage: CoreScriptCompiler <js source root> <class output dir>");
+            System.exit(1);
+        }
+        File sourceRoot = new File(args[0]);
+        File outputDir = new File(args[1]);
+        List<String> compiled = compile(sourceRoot, outputDir);
+        System.out.println("precompiled " + compiled.size()
+                + " JS files from " + sourceRoot + " to " + outputDir);
+    }
+
+    /**
+     * Compiles every *.js file under sourceRoot into outputDir.
+     * 
+     * @param sourceRoot
+     * @param outputDir
+     * @return the script names of the compiled files
+     * @throws IOException
+     */
+    public static List<String> compile(File sourceRoot, File outputDir)
+            throws IOException {
+        CompilerEnvirons compilerEnv = (CompilerEnvirons) MongoRuntime
+                .call(new MongoAction(null) {
+                    @Override
+                    protected Object doRun(Context cx) {
+                        // same settings as scripts compiled at runtime
+                        CompilerEnvirons env = new CompilerEnvirons();
+                        env.initFromContext(cx);
+                        if (env.getOptimizationLevel() < 0)
+                            env.setOptimizationLevel(0);
+                        return env;
+                    }
+                });
+        ClassCompiler compiler = new ClassCompiler(compilerEnv);
+
+        List<String> compiled = new ArrayList<String>();
+        Collection<File> jsFiles = FileUtils.listFiles(sourceRoot,
+                new String[] { "js" }, true);
+        String rootPath = sourceRoot.getCanonicalPath();
+        for (File jsFile : jsFiles) {
+            String scriptName = jsFile.getCanonicalPath()
+                    .substring(rootPath.length() + 1)
+                    .replace(File.separatorChar, '/');
+            String source = FileUtils.readFileToString(jsFile, "UTF-8");
+            Object[] classes = compiler.compileToClassFiles(source,
+                    scriptName, 0,
+                    CoreScriptCache.precompiledClassName(scriptName));
+            for (int i = 0; i < classes.length; i += 2) {
+                String className = (String) classes[i];
+                byte[] bytes = (byte[]) classes[i + 1];
+                File classFile = new File(outputDir, className.replace('.',
+                        File.separatorChar) + ".class");
+                FileUtils.writeByteArrayToFile(classFile, bytes);
+            }
+            compiled.add(scriptName);
+        }
+        return compiled;
+    }
+
+}
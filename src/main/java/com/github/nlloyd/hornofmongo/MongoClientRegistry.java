@@ -0,0 +1,149 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ServerAddress;
+
+/**
+ * Process-wide registry of the {@link MongoClient} instances created for JS
+ * <code>new Mongo()</code> and <code>connect()</code> calls. Each client has
+ * its own connection pool and monitor threads, so every {@link MongoScope}
+ * connecting to the same hosts with the same options shares one client
+ * instead of opening another pool.
+ * 
+ * Clients are reference counted: {@link #acquire(List, MongoClientOptions)}
+ * returns the shared client and adds a reference, {@link #release(MongoClient)}
+ * drops one and closes the client when the last reference is released.
+ * 
+ * @author nlloyd
+ * 
+ */
+public final class MongoClientRegistry {
+
+    private static final class Key {
+        private final List<ServerAddress> hosts;
+        private final MongoClientOptions options;
+
+        Key(List<ServerAddress> hosts, MongoClientOptions options) {
+            this.hosts = new ArrayList<ServerAddress>(hosts);
+            this.options = options;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return hosts.equals(other.hosts) && options.equals(other.options);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * hosts.hashCode() + options.hashCode();
+        }
+    }
+
+    private static final class SharedClient {
+        private final Key key;
+        private final MongoClient client;
+        private int references = 0;
+
+        SharedClient(Key key, MongoClient client) {
+            this.key = key;
+            this.client = client;
+        }
+    }
+
+    private static final Map<Key, SharedClient> clientsByKey = new HashMap<Key, SharedClient>();
+    private static final Map<MongoClient, SharedClient> clients = new IdentityHashMap<MongoClient, SharedClient>();
+
+    private MongoClientRegistry() {
+    }
+
+    /**
+     * Returns the shared client for the given hosts and options, creating it
+     * if no {@link MongoScope} holds one, and adds a reference to it.
+     * 
+     * @param hosts
+     * @param options
+     * @return the shared {@link MongoClient}, to be given back with
+     *         {@link #release(MongoClient)}
+     */
+    public static synchronized MongoClient acquire(List<ServerAddress> hosts,
+            MongoClientOptions options) {
+        Key key = new Key(hosts, options);
+        SharedClient shared = clientsByKey.get(key);
+        if (shared == null) {
+            shared = new SharedClient(key, new MongoClient(hosts, options));
+            clientsByKey.put(key, shared);
+            clients.put(shared.client, shared);
+        }
+        shared.references++;
+        return shared.client;
+    }
+
+    /**
+     * Drops a reference to a client returned by
+     * {@link #acquire(List, MongoClientOptions)}, closing it if it was the
+     * last one.
+     * 
+     * @param client
+     * @return false if the client is not held by this registry
+     */
+    public static synchronized boolean release(MongoClient client) {
+        SharedClient shared = clients.get(client);
+        if (shared == null)
+            return false;
+        if (--shared.references == 0) {
+            clients.remove(client);
+            clientsByKey.remove(shared.key);
+            client.close();
+        }
+        return true;
+    }
+
+    /**
+     * @param client
+     * @return the number of references held on the client, 0 if it is not
+     *         held by this registry
+     */
+    public static synchronized int countReferences(MongoClient client) {
+        SharedClient shared = clients.get(client);
+        return (shared == null) ? 0 : shared.references;
+    }
+
+    /**
+     * @return the number of open shared clients
+     */
+    public static synchronized int countClients() {
+        return clients.size();
+    }
+
+}
@@ -31,6 +31,66 @@ import org.mozilla.javascript.ContextFactory;
 public class MongoContextFactory extends ContextFactory {
     private int languageVersion = Context.VERSION_1_8;
 
+    /**
+     * Rhino optimization level of every new {@link Context}: -1 for the
+     * interpreter, 0 to 9 to compile scripts to JVM bytecode.
+     */
+    private volatile int optimizationLevel = 0;
+
+    /**
+     * If greater than 0 scripts compiled with
+     * {@link MongoRuntime#compile(String, String)} are interpreted for this
+     * many executions before being compiled at {@link #optimizationLevel}.
+     */
+    private volatile int adaptiveCompileThreshold = 0;
+
+    /**
+     * @return the optimization level of new {@link Context} instances
+     */
+    public int getOptimizationLevel() {
+        return optimizationLevel;
+    }
+
+    /**
+     * Sets the optimization level of {@link Context} instances created from
+     * now on.
+     * 
+     * @param optimizationLevel
+     *            -1 for interpreted mode, 0 to 9 for compiled mode
+     */
+    public void setOptimizationLevel(int optimizationLevel) {
+        if (!Context.isValidOptimizationLevel(optimizationLevel))
+            throw new IllegalArgumentException("invalid optimization level: "
+                    + optimizationLevel);
+        this.optimizationLevel = optimizationLevel;
+    }
+
+    /**
+     * @return the number of interpreted executions of a compiled script
+     *         before it is compiled to bytecode, 0 if adaptive mode is off
+     */
+    public int getAdaptiveCompileThreshold() {
+        return adaptiveCompileThreshold;
+    }
+
+    /**
+     * Turns on adaptive mode for scripts compiled with
+     * {@link MongoRuntime#compile(String, String)}: they start in interpreted
+     * mode, which is cheaper to compile, and are compiled at the configured
+     * optimization level once they have been executed the given number of
+     * times. Adaptive mode only applies with an optimization level of 0 or
+     * higher.
+     * 
+     * @param adaptiveCompileThreshold
+     *            number of executions before compiling, 0 to turn off
+     */
+    public void setAdaptiveCompileThreshold(int adaptiveCompileThreshold) {
+        if (adaptiveCompileThreshold < 0)
+            throw new IllegalArgumentException(
+                    "adaptiveCompileThreshold must not be negative");
+        this.adaptiveCompileThreshold = adaptiveCompileThreshold;
+    }
+
     @Override
     protected boolean hasFeature(Context cx, int featureIndex)
     {
@@ -48,6 +108,7 @@ public class MongoContextFactory extends ContextFactory {
     protected void onContextCreated(Context cx)
     {
         cx.setLanguageVersion(languageVersion);
+        cx.setOptimizationLevel(optimizationLevel);
         super.onContextCreated(cx);
     }
 
@@ -21,13 +21,27 @@
  */
 package com.github.nlloyd.hornofmongo;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.UnknownHostException;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextAction;
 import org.mozilla.javascript.ContextFactory;
 
+import com.github.nlloyd.hornofmongo.action.CompiledMongoScriptAction;
 import com.github.nlloyd.hornofmongo.action.MongoAction;
 import com.github.nlloyd.hornofmongo.action.MongoScriptAction;
+import com.github.nlloyd.hornofmongo.exception.MongoScopeException;
+import com.mongodb.MongoClientOptions;
 import com.mongodb.MongoClientURI;
 
 /**
@@ -40,6 +54,14 @@ import com.mongodb.MongoClientURI;
  */
 public class MongoRuntime {
 
+    private static final MongoScriptCache scriptCache = new MongoScriptCache();
+
+    /**
+     * Shared parent of the worker scopes of scopes that are not child scopes
+     * themselves, created on first use.
+     */
+    private static MongoScope workerSharedScope;
+
     /**
      * Creates a newly initialized {@link MongoScope} instance. This will use
      * {@link MongoRuntime#call(MongoAction)} to initialize the
@@ -62,6 +84,9 @@ public class MongoRuntime {
      * 
      * After the scope is initialized a call via the mongo JS API to the
      * "connect()" method will be made to initialize the global db instance.
+     * The options of the uri are used for every client the scope creates (see
+     * {@link MongoScope#setClientOptions(MongoClientOptions)}) and the pool of
+     * the connected client is filled up to minConnectionsPerHost.
      * 
      * @return
      */
@@ -75,6 +100,7 @@ public class MongoRuntime {
         MongoScope mongoScope = createMongoScope();
         mongoScope.setUseMongoShellWriteConcern(useMongoShellWriteConcern);
         mongoScope.setStdoutMongoErrorMessages(mimicShellExceptionBehavior);
+        mongoScope.setClientOptions(mongoClientURI.getOptions());
         
         StringBuilder connectStrBuilder = new StringBuilder("db = connect('");
 
@@ -83,28 +109,420 @@ public class MongoRuntime {
                         .getHosts().get(0).equals("localhost:27017")))
             connectStrBuilder.append(mongoClientURI.getDatabase());
         else
-            connectStrBuilder.append(mongoClientURI.getURI());
+            // connect() takes host[,host]/database, the uri options are
+            // already in the scope
+            connectStrBuilder
+                    .append(StringUtils.join(mongoClientURI.getHosts(), ','))
+                    .append('/').append(mongoClientURI.getDatabase());
         
         connectStrBuilder.append("', null, null);");
         
         call(new MongoScriptAction(mongoScope, "connect", connectStrBuilder.toString()));
 
+        if (mongoClientURI.getOptions().getMinConnectionsPerHost() > 0) {
+            call(new MongoAction(mongoScope) {
+                @Override
+                protected Object doRun(Context cx) {
+                    mongoScope.prewarmConnections();
+                    return null;
+                }
+            });
+        }
+
         return mongoScope;
     }
 
+    /**
+     * Same as
+     * {@link MongoRuntime#createMongoScope(MongoClientURI, boolean, boolean)}
+     * with client options taken from the builder, then overridden by the
+     * options of the uri.
+     * 
+     * @param uri
+     *            a mongodb:// uri with a database
+     * @param optionsBuilder
+     *            default client options, for example pool sizes and timeouts
+     * @return
+     */
+    public static final MongoScope createMongoScope(final String uri,
+            final MongoClientOptions.Builder optionsBuilder,
+            boolean useMongoShellWriteConcern,
+            boolean mimicShellExceptionBehavior) throws UnknownHostException {
+        return createMongoScope(new MongoClientURI(uri, optionsBuilder),
+                useMongoShellWriteConcern, mimicShellExceptionBehavior);
+    }
+
+    /**
+     * Creates a newly initialized {@link MongoScope} and seals it so it can be
+     * shared as the prototype of child scopes created with
+     * {@link MongoRuntime#createChildMongoScope(MongoScope)}. A single shared
+     * scope holds the standard objects, the mongodb adaptor classes and the
+     * mongodb JS API for every child.
+     * 
+     * @return
+     */
+    public static final MongoScope createSharedMongoScope() {
+        MongoScope sharedScope = createMongoScope();
+        sharedScope.makeShared();
+        return sharedScope;
+    }
+
+    /**
+     * Creates a lightweight {@link MongoScope} whose globals resolve through
+     * the given shared scope. Child scopes are cheap to create and may be
+     * used from different threads concurrently, each child by one thread at a
+     * time.
+     * 
+     * @param sharedScope
+     *            a scope created by
+     *            {@link MongoRuntime#createSharedMongoScope()}
+     * @return
+     */
+    public static final MongoScope createChildMongoScope(
+            final MongoScope sharedScope) {
+        return new MongoScope(sharedScope);
+    }
+
+    /**
+     * Creates a child {@link MongoScope} to run work on behalf of the given
+     * scope on another thread. The worker is a child of the scope's shared
+     * parent if the scope is a child scope, otherwise of a runtime wide shared
+     * scope, and starts with the flags and handlers of the given scope. It
+     * sees none of the given scope's own globals.
+     * 
+     * @param mongoScope
+     * @return
+     */
+    public static final MongoScope createWorkerMongoScope(
+            final MongoScope mongoScope) {
+        MongoScope sharedScope;
+        if (mongoScope.isShared())
+            sharedScope = mongoScope;
+        else if ((mongoScope.getPrototype() instanceof MongoScope)
+                && ((MongoScope) mongoScope.getPrototype()).isShared())
+            sharedScope = (MongoScope) mongoScope.getPrototype();
+        else
+            sharedScope = getWorkerSharedScope();
+        return new MongoScope(sharedScope, mongoScope);
+    }
+
+    private static synchronized MongoScope getWorkerSharedScope() {
+        if (workerSharedScope == null)
+            workerSharedScope = createSharedMongoScope();
+        return workerSharedScope;
+    }
+
+    /**
+     * Creates a {@link MongoScopePool} of disconnected {@link MongoScope}
+     * instances, as created by {@link MongoRuntime#createMongoScope()}.
+     * 
+     * @param minIdle
+     *            number of idle scopes kept ready on a background thread
+     * @param maxTotal
+     *            maximum number of scopes, borrowed or idle
+     * @return
+     */
+    public static final MongoScopePool createMongoScopePool(int minIdle,
+            int maxTotal) {
+        return new MongoScopePool(minIdle, maxTotal, null, false, false);
+    }
+
+    /**
+     * Creates a {@link MongoScopePool} of connected {@link MongoScope}
+     * instances, as created by
+     * {@link MongoRuntime#createMongoScope(MongoClientURI, boolean, boolean)}.
+     * 
+     * @param minIdle
+     *            number of idle scopes kept ready on a background thread
+     * @param maxTotal
+     *            maximum number of scopes, borrowed or idle
+     * @return
+     */
+    public static final MongoScopePool createMongoScopePool(int minIdle,
+            int maxTotal, final MongoClientURI mongoClientURI,
+            boolean useMongoShellWriteConcern,
+            boolean mimicShellExceptionBehavior) {
+        if (StringUtils.isBlank(mongoClientURI.getDatabase()))
+            throw new IllegalArgumentException(
+                    "mongo client uri must have a database");
+        return new MongoScopePool(minIdle, maxTotal, mongoClientURI,
+                useMongoShellWriteConcern, mimicShellExceptionBehavior);
+    }
+
+    /**
+     * Writes a snapshot of a newly initialized, disconnected
+     * {@link MongoScope} to the given file. Scopes restored from the snapshot
+     * with {@link MongoRuntime#createMongoScopeFromSnapshot(File)} skip
+     * executing the mongodb JS API files.
+     * 
+     * @param snapshotFile
+     * @throws IOException
+     */
+    public static final void saveScopeSnapshot(final File snapshotFile)
+            throws IOException {
+        Object result = call(new MongoAction(null) {
+            @Override
+            protected Object doRun(Context cx) {
+                MongoScope mongoScope = (MongoScope) new MongoScope.InitSerializableMongoScopeAction()
+                        .run(cx);
+                OutputStream out = null;
+                try {
+                    out = new BufferedOutputStream(new FileOutputStream(
+                            snapshotFile));
+                    MongoScopeSnapshot.write(cx, mongoScope, out);
+                    out.close();
+                    out = null;
+                } catch (IOException e) {
+                    return e;
+                } finally {
+                    IOUtils.closeQuietly(out);
+                }
+                return null;
+            }
+        });
+        if (result instanceof IOException)
+            throw (IOException) result;
+    }
+
+    /**
+     * Restores a disconnected {@link MongoScope} from a snapshot written by
+     * {@link MongoRuntime#saveScopeSnapshot(File)}. A
+     * {@link MongoScopeException} is thrown if the snapshot was written with a
+     * different snapshot format, Rhino version or mongodb JS API files. The
+     * version of this library is not checked.
+     * 
+     * @param snapshotFile
+     * @return
+     * @throws IOException
+     */
+    public static final MongoScope createMongoScopeFromSnapshot(
+            final File snapshotFile) throws IOException {
+        Object result = call(new MongoAction(null) {
+            @Override
+            protected Object doRun(Context cx) {
+                InputStream in = null;
+                try {
+                    in = new BufferedInputStream(new FileInputStream(
+                            snapshotFile));
+                    return MongoScopeSnapshot.read(cx, in);
+                } catch (IOException e) {
+                    return e;
+                } finally {
+                    IOUtils.closeQuietly(in);
+                }
+            }
+        });
+        if (result instanceof IOException)
+            throw (IOException) result;
+        return (MongoScope) result;
+    }
+
+    /**
+     * Compiles the given script for repeated execution with
+     * {@link CompiledMongoScriptAction}. Compiled scripts are cached by
+     * {@link MongoRuntime#getScriptCache()} so compiling the same script again
+     * returns the cached instance.
+     * 
+     * @param script
+     * @return
+     */
+    public static final CompiledMongoScript compile(String script) {
+        return compile("anon", script);
+    }
+
+    /**
+     * Same as {@link MongoRuntime#compile(String)} with a script name used in
+     * error messages.
+     * 
+     * @param name
+     * @param script
+     * @return
+     */
+    public static final CompiledMongoScript compile(final String name,
+            final String script) {
+        return (CompiledMongoScript) call(new MongoAction(null) {
+            @Override
+            protected Object doRun(Context cx) {
+                return scriptCache.getOrCompile(cx, name, script);
+            }
+        });
+    }
+
+    /**
+     * @return the cache used by {@link MongoRuntime#compile(String, String)}
+     */
+    public static final MongoScriptCache getScriptCache() {
+        return scriptCache;
+    }
+
+    /**
+     * Compiles the mongodb JS API files loaded by every {@link MongoScope} so
+     * that the first call to {@link MongoRuntime#createMongoScope()} only needs
+     * to execute them. Calling this is optional, the files are otherwise
+     * compiled on first use and shared from then on.
+     */
+    public static final void warmCoreScripts() {
+        call(new MongoScope.CompileCoreFilesAction());
+    }
+
+    /**
+     * Creates a {@link MongoScriptExecutor} whose workers each run in a worker
+     * scope with the settings of the given scope (see
+     * {@link MongoRuntime#createWorkerMongoScope(MongoScope)}).
+     * 
+     * @param settingsScope
+     * @param workers
+     *            number of worker threads
+     * @param queueCapacity
+     *            maximum number of tasks waiting for each worker
+     * @return
+     */
+    public static final MongoScriptExecutor createScriptExecutor(
+            final MongoScope settingsScope, int workers, int queueCapacity) {
+        return new MongoScriptExecutor(settingsScope, workers, queueCapacity);
+    }
+
+    /**
+     * Opens a {@link MongoSession} that keeps a {@link Context} entered on the
+     * current thread until it is closed, so that every
+     * {@link MongoRuntime#call(MongoAction)} made on this thread in the
+     * meantime (including those made by the mongodb adaptor classes and
+     * {@link com.github.nlloyd.hornofmongo.util.BSONizer}) runs inline.
+     * 
+     * @param mongoScope
+     * @return
+     */
+    public static final MongoSession openSession(MongoScope mongoScope) {
+        if (!ContextFactory.hasExplicitGlobal())
+            ContextFactory.initGlobal(new MongoContextFactory());
+        return new MongoSession(ContextFactory.getGlobal(), mongoScope);
+    }
+
+    /**
+     * Sets the Rhino optimization level of the global
+     * {@link MongoContextFactory}: -1 to interpret scripts, which is cheaper
+     * for scripts executed once, or 0 to 9 to compile them to bytecode, which
+     * is faster for long running scripts.
+     * 
+     * @param optimizationLevel
+     * @see MongoContextFactory#setOptimizationLevel(int)
+     */
+    public static final void setOptimizationLevel(int optimizationLevel) {
+        getMongoContextFactory().setOptimizationLevel(optimizationLevel);
+    }
+
+    /**
+     * @return the Rhino optimization level of the global
+     *         {@link MongoContextFactory}
+     */
+    public static final int getOptimizationLevel() {
+        return getMongoContextFactory().getOptimizationLevel();
+    }
+
+    /**
+     * Sets the number of executions after which an interpreted script from
+     * {@link MongoRuntime#compile(String, String)} is compiled to bytecode, 0
+     * to compile scripts to bytecode right away.
+     * 
+     * @param adaptiveCompileThreshold
+     * @see MongoContextFactory#setAdaptiveCompileThreshold(int)
+     */
+    public static final void setAdaptiveCompileThreshold(
+            int adaptiveCompileThreshold) {
+        getMongoContextFactory().setAdaptiveCompileThreshold(
+                adaptiveCompileThreshold);
+    }
+
+    /**
+     * @return the adaptive compile threshold of the global
+     *         {@link MongoContextFactory}
+     */
+    public static final int getAdaptiveCompileThreshold() {
+        return getMongoContextFactory().getAdaptiveCompileThreshold();
+    }
+
+    /**
+     * Returns the global {@link MongoContextFactory}, setting it first if the
+     * global {@link ContextFactory} has not explicitly been set yet.
+     * 
+     * @return
+     */
+    private static MongoContextFactory getMongoContextFactory() {
+        if (!ContextFactory.hasExplicitGlobal())
+            ContextFactory.initGlobal(new MongoContextFactory());
+        ContextFactory factory = ContextFactory.getGlobal();
+        if (!(factory instanceof MongoContextFactory))
+            throw new IllegalStateException(
+                    "the global ContextFactory is not a MongoContextFactory");
+        return (MongoContextFactory) factory;
+    }
+
     /**
      * Convenience method to call the {@link MongoAction} using the global
      * {@link ContextFactory}. If the global {@link ContextFactory} has not
      * explicitly been set yet then this method will set an instance of
      * {@link MongoContextFactory} as the global {@link ContextFactory}.
      * 
+     * If a {@link Context} of the global {@link ContextFactory} is already
+     * entered on this thread, as it is while a script or a
+     * {@link MongoSession} is running, the action is run directly with it.
+     * Otherwise the action scope is finished once the action returns, see
+     * {@link #finishAction(MongoScope, boolean)}.
+     * 
      * @param mongoAction
      * @return
      */
-    public static final Object call(MongoAction mongoAction) {
+    public static final Object call(final MongoAction mongoAction) {
         if (!ContextFactory.hasExplicitGlobal())
             ContextFactory.initGlobal(new MongoContextFactory());
-        return ContextFactory.getGlobal().call(mongoAction);
+        ContextFactory factory = ContextFactory.getGlobal();
+        // already inside a script or a MongoSession on this thread, no need to
+        // enter the Context again
+        Context cx = Context.getCurrentContext();
+        if (cx != null && cx.getFactory() == factory)
+            return mongoAction.run(cx);
+        return factory.call(new ContextAction() {
+            @Override
+            public Object run(Context cx) {
+                boolean completed = false;
+                try {
+                    Object result = mongoAction.run(cx);
+                    completed = true;
+                    return result;
+                } finally {
+                    finishAction(mongoAction.getScope(), !completed);
+                }
+            }
+        });
+    }
+
+    /**
+     * Ends the cursor prefetching started by a script and flushes the writes
+     * buffered in write-behind mode (see
+     * {@link MongoScope#setUseWriteBehind(boolean)}) by the connections of
+     * the scope, at the end of the script. The writes a script buffered before
+     * it failed are flushed as well, never left behind for the next script,
+     * but a failure of that flush is ignored so that it doesn't hide the
+     * error of the script.
+     * 
+     * @param mongoScope
+     *            may be null
+     * @param actionFailed
+     *            true if the script threw
+     */
+    static void finishAction(MongoScope mongoScope, boolean actionFailed) {
+        if (mongoScope == null)
+            return;
+        mongoScope.cancelCursorPrefetches();
+        if (!actionFailed) {
+            mongoScope.flushWrites();
+            return;
+        }
+        try {
+            mongoScope.flushWrites();
+        } catch (RuntimeException e) {
+            // the script's own exception is the one propagating
+        }
     }
 
 }
@@ -25,24 +25,28 @@ import static java.util.Collections.synchronizedSet;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
 import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.lang.reflect.InvocationTargetException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.charset.Charset;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 
@@ -51,10 +55,13 @@ import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.FileUtils;
 import org.bson.BSON;
-import org.bson.io.BasicOutputBuffer;
+import org.mozilla.javascript.BaseFunction;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.JavaScriptException;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.Script;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.Undefined;
@@ -77,6 +84,8 @@ import com.github.nlloyd.hornofmongo.adaptor.NumberInt;
 import com.github.nlloyd.hornofmongo.adaptor.NumberLong;
 import com.github.nlloyd.hornofmongo.adaptor.ObjectId;
 import com.github.nlloyd.hornofmongo.adaptor.Timestamp;
+import com.github.nlloyd.hornofmongo.bson.BSONSizeCalculator;
+import com.github.nlloyd.hornofmongo.bson.LazyBSONDocument;
 import com.github.nlloyd.hornofmongo.exception.MongoRuntimeException;
 import com.github.nlloyd.hornofmongo.exception.MongoScopeException;
 import com.github.nlloyd.hornofmongo.exception.MongoScriptException;
@@ -84,12 +93,13 @@ import com.github.nlloyd.hornofmongo.util.BSONizer;
 import com.github.nlloyd.hornofmongo.util.ClearHandler;
 import com.github.nlloyd.hornofmongo.util.CurrentDirectoryHandler;
 import com.github.nlloyd.hornofmongo.util.DefaultCurrentDirectoryHandler;
+import com.github.nlloyd.hornofmongo.util.JSValueFactory;
 import com.github.nlloyd.hornofmongo.util.PrintHandler;
 import com.github.nlloyd.hornofmongo.util.QuitHandler;
 import com.mongodb.BasicDBObjectBuilder;
 import com.mongodb.DBEncoder;
 import com.mongodb.DBObject;
-import com.mongodb.DefaultDBEncoder;
+import com.mongodb.MongoClientOptions;
 import com.mongodb.MongoException;
 import com.mongodb.util.Util;
 
@@ -118,21 +128,49 @@ public class MongoScope extends Global {
     };
 
     private static String[] mongoApiFiles = { "mongodb/assert.js",
-            "mongodb/types.js", "mongodb/utils.js", "mongodb/utils_sh.js",
-            "mongodb/db.js", "mongodb/mongo.js", "mongodb/mr.js",
-            "mongodb/query.js", "mongodb/collection.js",
-            "mongodb/servers_misc.js", "mongodb/servers.js",
-            "mongodb/shardingtest.js" };
+            "mongodb/types.js", "mongodb/utils.js", "mongodb/db.js",
+            "mongodb/mongo.js", "mongodb/mr.js", "mongodb/query.js",
+            "mongodb/collection.js" };
 
-    private CurrentDirectoryHandler currentDirHandler = new DefaultCurrentDirectoryHandler();
+    /**
+     * Test harness globals mapped to the file that defines them. These files
+     * are only executed in a scope the first time one of their globals is
+     * referenced.
+     */
+    private static final Map<String, String> lazyGlobals = new HashMap<String, String>();
+
+    static {
+        defineLazyGlobals("mongodb/utils_sh.js", "sh");
+        defineLazyGlobals("mongodb/servers_misc.js", "MongodRunner",
+                "ReplTest", "SyncCCTest", "ToolTest", "allocatePorts",
+                "skipIfTestingReplication", "startParallelShell",
+                "testingReplication");
+        defineLazyGlobals("mongodb/servers.js", "MongoRunner", "_parsePath",
+                "_parsePort", "connectionURLTheSame", "createMongoArgs",
+                "myPort", "runMongoProgram", "startMongoProgram",
+                "startMongoProgramNoConnect", "startMongod",
+                "startMongodEmpty", "startMongodNoReset", "startMongodTest",
+                "startMongos");
+        defineLazyGlobals("mongodb/shardingtest.js", "ShardingTest",
+                "printShardingSizes", "printShardingStatus");
+        defineLazyGlobals("mongodb/replsettest.js", "ReplSetTest");
+        defineLazyGlobals("mongodb/replsetbridge.js", "ReplSetBridge");
+    }
+
+    private static void defineLazyGlobals(String file, String... names) {
+        for (String name : names)
+            lazyGlobals.put(name, file);
+    }
 
-    private PrintHandler printHandler;
+    private transient CurrentDirectoryHandler currentDirHandler = new DefaultCurrentDirectoryHandler();
 
-    private ClearHandler clearHandler;
+    private transient PrintHandler printHandler;
 
-    private QuitHandler quitHandler;
+    private transient ClearHandler clearHandler;
 
-    private com.mongodb.DB lastCalledDB;
+    private transient QuitHandler quitHandler;
+
+    private transient com.mongodb.DB lastCalledDB;
 
     /**
      * If true then some {@link MongoException} will be caught and the messages
@@ -155,7 +193,76 @@ public class MongoScope extends Global {
      */
     private boolean useMongoShellWriteConcern = false;
 
-    private Set<Mongo> mongoConnections = synchronizedSet(new HashSet<Mongo>());
+    /**
+     * If true documents returned by cursors are {@link LazyBSONDocument}
+     * instances that decode each field from the raw BSON on first access
+     * (defaults to false).
+     */
+    private boolean useLazyDocuments = false;
+
+    /**
+     * If true inserts, updates and removes are buffered per namespace by each
+     * {@link Mongo} connection and sent as ordered bulk writes, see
+     * {@link #setUseWriteBehind(boolean)} (defaults to false).
+     */
+    private boolean useWriteBehind = false;
+
+    /**
+     * Number of buffered writes to one namespace that triggers a flush in
+     * write-behind mode.
+     */
+    private int writeBehindMaxOperations = 1000;
+
+    /**
+     * Age in milliseconds of the oldest buffered write that triggers a flush
+     * in write-behind mode, checked on each write.
+     */
+    private long writeBehindMaxDelayMillis = 1000;
+
+    /**
+     * Options of the clients created for the JS <code>new Mongo()</code> and
+     * <code>connect()</code> calls of this scope, null for the driver
+     * defaults.
+     */
+    private transient MongoClientOptions clientOptions;
+
+    /**
+     * If positive cursors are read ahead on a background thread, holding at
+     * most this many batches, see {@link #setCursorPrefetchBatches(int)}
+     * (defaults to 0, no prefetching).
+     */
+    private int cursorPrefetchBatches = 0;
+
+    /**
+     * Chooses the batch size of cursors opened without one, null to leave it
+     * to the driver (the default).
+     */
+    private transient AdaptiveBatchSizePolicy batchSizePolicy;
+
+    private transient Set<Mongo> mongoConnections = synchronizedSet(new HashSet<Mongo>());
+
+    /**
+     * Lazily loaded files (see {@link #lazyGlobals}) already executed in this
+     * scope.
+     */
+    private Set<String> loadedLazyFiles = synchronizedSet(new HashSet<String>());
+
+    /**
+     * State recorded by {@link #markBaseline()} and restored by
+     * {@link #resetToBaseline()}.
+     */
+    private transient ScopeBaseline baseline;
+
+    /**
+     * Created on first use by {@link #getJSValueFactory()}.
+     */
+    private transient volatile JSValueFactory jsValueFactory;
+
+    /**
+     * True once this scope has been sealed to act as the shared prototype of
+     * child scopes.
+     */
+    private boolean shared = false;
 
     public MongoScope() {
         super();
@@ -168,6 +275,54 @@ public class MongoScope extends Global {
         execCoreFiles(context);
     }
 
+    /**
+     * Creates a lightweight child scope of a shared {@link MongoScope} (see
+     * {@link #makeShared()}). The child holds only the globals defined by the
+     * scripts executed in it, everything else is found through its prototype.
+     * The behavior flags and handlers of the shared scope are copied as the
+     * initial settings of the child.
+     *
+     * @param sharedScope
+     */
+    public MongoScope(MongoScope sharedScope) {
+        this(sharedScope, sharedScope);
+    }
+
+    /**
+     * Creates a lightweight child scope of a shared {@link MongoScope} whose
+     * initial settings are copied from another scope, used to run work on
+     * behalf of that scope on other threads.
+     * 
+     * @param sharedScope
+     * @param settingsScope
+     *            the scope whose behavior flags and handlers are copied
+     */
+    public MongoScope(MongoScope sharedScope, MongoScope settingsScope) {
+        super();
+        if (!sharedScope.isShared())
+            throw new MongoScopeException(
+                    "child MongoScope requires a shared parent MongoScope");
+        setPrototype(sharedScope);
+        setParentScope(null);
+        if (settingsScope.currentDirHandler instanceof DefaultCurrentDirectoryHandler) {
+            currentDirHandler = new DefaultCurrentDirectoryHandler();
+            currentDirHandler.setCurrentDirectory(settingsScope.getCwd());
+        } else
+            currentDirHandler = settingsScope.currentDirHandler;
+        printHandler = settingsScope.printHandler;
+        clearHandler = settingsScope.clearHandler;
+        quitHandler = settingsScope.quitHandler;
+        stdoutMongoErrorMessages = settingsScope.stdoutMongoErrorMessages;
+        useMongoShellWriteConcern = settingsScope.useMongoShellWriteConcern;
+        useLazyDocuments = settingsScope.useLazyDocuments;
+        useWriteBehind = settingsScope.useWriteBehind;
+        writeBehindMaxOperations = settingsScope.writeBehindMaxOperations;
+        writeBehindMaxDelayMillis = settingsScope.writeBehindMaxDelayMillis;
+        clientOptions = settingsScope.clientOptions;
+        cursorPrefetchBatches = settingsScope.cursorPrefetchBatches;
+        batchSizePolicy = settingsScope.batchSizePolicy;
+    }
+
     /**
      * @return the stdoutMongoErrorMessages
      */
@@ -198,6 +353,193 @@ public class MongoScope extends Global {
         this.useMongoShellWriteConcern = useMongoShellWriteConcern;
     }
 
+    /**
+     * @return the useLazyDocuments
+     */
+    public boolean useLazyDocuments() {
+        return useLazyDocuments;
+    }
+
+    /**
+     * @param useLazyDocuments
+     *            the useLazyDocuments to set
+     */
+    public void setUseLazyDocuments(boolean useLazyDocuments) {
+        this.useLazyDocuments = useLazyDocuments;
+    }
+
+    /**
+     * @return the useWriteBehind
+     */
+    public boolean useWriteBehind() {
+        return useWriteBehind;
+    }
+
+    /**
+     * Turns write-behind mode on or off. In write-behind mode db.coll.insert(),
+     * update() and remove() return without waiting on the server, the writes
+     * are buffered and sent in order as one bulk write per namespace when
+     * {@link #getWriteBehindMaxOperations()} writes are buffered, when the
+     * oldest one is older than {@link #getWriteBehindMaxDelayMillis()}, before
+     * any query or command on the same connection and when the script ends.
+     * Failed writes are reported on flush, numbered by their position among
+     * the writes of the connection.
+     * 
+     * @param useWriteBehind
+     *            the useWriteBehind to set
+     */
+    public void setUseWriteBehind(boolean useWriteBehind) {
+        this.useWriteBehind = useWriteBehind;
+    }
+
+    /**
+     * @return the writeBehindMaxOperations
+     */
+    public int getWriteBehindMaxOperations() {
+        return writeBehindMaxOperations;
+    }
+
+    /**
+     * @param writeBehindMaxOperations
+     *            the writeBehindMaxOperations to set
+     */
+    public void setWriteBehindMaxOperations(int writeBehindMaxOperations) {
+        if (writeBehindMaxOperations < 1)
+            throw new IllegalArgumentException(
+                    "writeBehindMaxOperations must be positive");
+        this.writeBehindMaxOperations = writeBehindMaxOperations;
+    }
+
+    /**
+     * @return the writeBehindMaxDelayMillis
+     */
+    public long getWriteBehindMaxDelayMillis() {
+        return writeBehindMaxDelayMillis;
+    }
+
+    /**
+     * @param writeBehindMaxDelayMillis
+     *            the writeBehindMaxDelayMillis to set
+     */
+    public void setWriteBehindMaxDelayMillis(long writeBehindMaxDelayMillis) {
+        if (writeBehindMaxDelayMillis < 0)
+            throw new IllegalArgumentException(
+                    "writeBehindMaxDelayMillis must not be negative");
+        this.writeBehindMaxDelayMillis = writeBehindMaxDelayMillis;
+    }
+
+    /**
+     * @return the clientOptions, null for the driver defaults
+     */
+    public MongoClientOptions getClientOptions() {
+        return clientOptions;
+    }
+
+    /**
+     * Sets the options, such as connectionsPerHost, maxWaitTime and the
+     * socket timeouts, of every client created by the JS
+     * <code>new Mongo()</code> and <code>connect()</code> calls of this scope
+     * from now on. The encoder factory and, with
+     * {@link #setUseMongoShellWriteConcern(boolean)}, the write concern are
+     * always set by HornOfMongo.
+     * 
+     * @param clientOptions
+     *            the clientOptions to set, null for the driver defaults
+     */
+    public void setClientOptions(MongoClientOptions clientOptions) {
+        this.clientOptions = clientOptions;
+    }
+
+    /**
+     * @return the cursorPrefetchBatches
+     */
+    public int getCursorPrefetchBatches() {
+        return cursorPrefetchBatches;
+    }
+
+    /**
+     * Turns cursor prefetching on for queries made from now on. A prefetching
+     * cursor is read by a background thread which issues the getMore for the
+     * next batch while the script is still processing the current one. At
+     * most cursorPrefetchBatches batches are read ahead. Prefetching cursors
+     * read no more documents once the action that opened them has finished.
+     * 
+     * @param cursorPrefetchBatches
+     *            the cursorPrefetchBatches to set, 0 to turn prefetching off
+     */
+    public void setCursorPrefetchBatches(int cursorPrefetchBatches) {
+        if (cursorPrefetchBatches < 0)
+            throw new IllegalArgumentException(
+                    "cursorPrefetchBatches must not be negative");
+        this.cursorPrefetchBatches = cursorPrefetchBatches;
+    }
+
+    /**
+     * @return the batchSizePolicy, null if not set
+     */
+    public AdaptiveBatchSizePolicy getBatchSizePolicy() {
+        return batchSizePolicy;
+    }
+
+    /**
+     * Sets the policy choosing the batch size of the cursors opened without
+     * one from now on. A policy may be shared by several scopes, child scopes
+     * share the policy of their shared scope, and its metrics show the batch
+     * sizes chosen for each namespace.
+     * 
+     * @param batchSizePolicy
+     *            the batchSizePolicy to set, null to leave the batch size to
+     *            the driver
+     */
+    public void setBatchSizePolicy(AdaptiveBatchSizePolicy batchSizePolicy) {
+        this.batchSizePolicy = batchSizePolicy;
+    }
+
+    /**
+     * Opens the minConnectionsPerHost connections of the client options in
+     * the pools of the {@link Mongo} connections of this scope, so that the
+     * first operations of a script don't wait for connections to be opened.
+     */
+    public void prewarmConnections() {
+        List<Mongo> connections;
+        synchronized (mongoConnections) {
+            connections = new ArrayList<Mongo>(mongoConnections);
+        }
+        for (Mongo connection : connections) {
+            connection.prewarmConnectionPool();
+        }
+    }
+
+    /**
+     * Stops the background readers of the cursors opened by the {@link Mongo}
+     * connections of this scope, see {@link #setCursorPrefetchBatches(int)}.
+     * Their server cursors are released and read no more documents.
+     */
+    public void cancelCursorPrefetches() {
+        List<Mongo> connections;
+        synchronized (mongoConnections) {
+            connections = new ArrayList<Mongo>(mongoConnections);
+        }
+        for (Mongo connection : connections) {
+            connection.cancelPrefetchers();
+        }
+    }
+
+    /**
+     * Sends the writes buffered in write-behind mode by the {@link Mongo}
+     * connections of this scope. Failed writes are handled like any other
+     * mongo error of this scope.
+     */
+    public void flushWrites() {
+        List<Mongo> connections;
+        synchronized (mongoConnections) {
+            connections = new ArrayList<Mongo>(mongoConnections);
+        }
+        for (Mongo connection : connections) {
+            connection.flushBufferedWrites();
+        }
+    }
+
     /**
      * @return the currentDirHandler
      */
@@ -293,6 +635,19 @@ public class MongoScope extends Global {
         mongoConnections.add(mongoConnection);
     }
 
+    /**
+     * @return the {@link JSValueFactory} building JS values for BSON read into
+     *         this scope
+     */
+    public JSValueFactory getJSValueFactory() {
+        JSValueFactory factory = jsValueFactory;
+        if (factory == null) {
+            factory = new JSValueFactory(this);
+            jsValueFactory = factory;
+        }
+        return factory;
+    }
+
     public int countMongoConnections() {
         return mongoConnections.size();
     }
@@ -301,11 +656,198 @@ public class MongoScope extends Global {
         mongoConnections.remove(mongoConnection);
     }
 
+    /**
+     * Closes the {@link Mongo} connections opened in this scope. Clients
+     * shared through the {@link MongoClientRegistry} are only released, they
+     * stay open while other scopes use them. Every connection is closed even
+     * if flushing the writes buffered in one of them fails, the first such
+     * failure is rethrown afterwards.
+     */
     public void cleanup() {
-        for (Mongo connection : mongoConnections) {
-            connection.close();
+        List<Mongo> connections;
+        synchronized (mongoConnections) {
+            connections = new ArrayList<Mongo>(mongoConnections);
+            mongoConnections.clear();
         }
-        mongoConnections.clear();
+        RuntimeException failure = closeConnections(connections);
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Closes every given connection.
+     * 
+     * @return the first exception thrown by a close, or null
+     */
+    private static RuntimeException closeConnections(
+            Collection<Mongo> connections) {
+        RuntimeException failure = null;
+        for (Mongo connection : connections) {
+            try {
+                connection.close();
+            } catch (RuntimeException e) {
+                if (failure == null)
+                    failure = e;
+            }
+        }
+        return failure;
+    }
+
+    /**
+     * Executes the file behind a lazily loaded test harness global (ex.
+     * ShardingTest, ReplSetTest, sh) the first time the global is looked up.
+     *
+     * @see org.mozilla.javascript.ImporterTopLevel#get(java.lang.String,
+     *      org.mozilla.javascript.Scriptable)
+     */
+    @Override
+    public Object get(String name, Scriptable start) {
+        Object value = super.get(name, start);
+        if ((value == NOT_FOUND) && loadLazyGlobal(name))
+            value = super.get(name, start);
+        return value;
+    }
+
+    /**
+     * Reports lazily loaded test harness globals as present before their file
+     * has been executed.
+     *
+     * @see org.mozilla.javascript.ScriptableObject#has(java.lang.String,
+     *      org.mozilla.javascript.Scriptable)
+     */
+    @Override
+    public boolean has(String name, Scriptable start) {
+        return super.has(name, start) || (pendingLazyFile(name) != null);
+    }
+
+    /**
+     * @return the file defining the given lazily loaded global if it still has
+     *         to be executed in this scope, otherwise null
+     */
+    private String pendingLazyFile(String name) {
+        String file = lazyGlobals.get(name);
+        if ((file == null) || shared || loadedLazyFiles.contains(file))
+            return null;
+        // a child scope uses whatever its shared scope already loaded
+        Scriptable prototype = getPrototype();
+        if ((prototype != null) && ScriptableObject.hasProperty(prototype, name))
+            return null;
+        return file;
+    }
+
+    private boolean loadLazyGlobal(String name) {
+        final String file = pendingLazyFile(name);
+        // marked before it runs so that lookups made by the file itself
+        // don't load it again
+        if ((file == null) || !loadedLazyFiles.add(file))
+            return false;
+        boolean loaded = false;
+        try {
+            MongoRuntime.call(new MongoAction(this) {
+                @Override
+                protected Object doRun(Context cx) {
+                    try {
+                        CoreScriptCache.getScript(cx, file).exec(cx, mongoScope);
+                    } catch (JavaScriptException e) {
+                        throw new MongoScopeException(
+                                "Caught JavaScriptException attempting to load from classpath: "
+                                        + file, e);
+                    }
+                    return null;
+                }
+            });
+            loaded = true;
+        } finally {
+            // a failed load is retried on the next lookup
+            if (!loaded)
+                loadedLazyFiles.remove(file);
+        }
+        return true;
+    }
+
+    /**
+     * Seals this scope so that it can be used concurrently as the prototype of
+     * any number of child scopes created with {@link #MongoScope(MongoScope)}.
+     * The scope itself, every global function (including the standard and
+     * mongodb API constructors) and their prototypes become read-only, global
+     * assignments made in a child scope land in the child.
+     *
+     * Scripts should only be executed in the child scopes, and the shared
+     * scope should not hold a connection, connect in each child scope
+     * instead.
+     */
+    public void makeShared() {
+        MongoRuntime.call(new MongoAction(this) {
+            @Override
+            protected Object doRun(Context cx) {
+                for (Object id : mongoScope.getAllIds()) {
+                    sealFunction(mongoScope, id);
+                }
+                mongoScope.sealObject();
+                mongoScope.shared = true;
+                return null;
+            }
+        });
+    }
+
+    private static void sealFunction(MongoScope scope, Object id) {
+        if (!(id instanceof String))
+            return;
+        Object value = scope.get((String) id, scope);
+        if (value instanceof BaseFunction) {
+            BaseFunction function = (BaseFunction) value;
+            Object prototype = function.get("prototype", function);
+            if (prototype instanceof ScriptableObject)
+                ((ScriptableObject) prototype).sealObject();
+            function.sealObject();
+        }
+    }
+
+    /**
+     * @return true if this scope was sealed by {@link #makeShared()}
+     */
+    public boolean isShared() {
+        return shared;
+    }
+
+    /**
+     * Records the current global properties, handlers, flags and open
+     * {@link Mongo} connections of this scope as the state that
+     * {@link #resetToBaseline()} will later restore.
+     */
+    public void markBaseline() {
+        MongoRuntime.call(new MongoAction(this) {
+            @Override
+            protected Object doRun(Context cx) {
+                baseline = new ScopeBaseline(mongoScope);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Restores this scope to the state recorded by the last call to
+     * {@link #markBaseline()}. Global properties defined since then are
+     * deleted, reassigned globals (including db) get their original values
+     * back and any {@link Mongo} connection opened since then is closed.
+     *
+     * Properties of objects reachable from the globals (ex. a prototype
+     * modified by a script) are not restored.
+     *
+     * @throws MongoScopeException
+     *             if {@link #markBaseline()} was never called
+     */
+    public void resetToBaseline() {
+        if (baseline == null)
+            throw new MongoScopeException(
+                    "resetToBaseline() called on a MongoScope without a baseline");
+        MongoRuntime.call(new MongoAction(this) {
+            @Override
+            protected Object doRun(Context cx) {
+                baseline.restore(mongoScope);
+                return null;
+            }
+        });
     }
 
     protected void initMongoJS(Context context) throws IllegalAccessException,
@@ -344,15 +886,38 @@ public class MongoScope extends Global {
         ScriptableObject.defineClass(this, DBRef.class, false, false);
     }
 
+    /**
+     * Executes the mongodb JS API files in this scope. The files are compiled
+     * once per JVM and shared through {@link CoreScriptCache}.
+     *
+     * @param context
+     */
     protected void execCoreFiles(Context context) {
         for (String jsSetupFile : mongoApiFiles) {
+            Script coreScript = CoreScriptCache.getScript(context, jsSetupFile);
             try {
-                context.evaluateReader(this, loadFromClasspath(jsSetupFile),
-                        jsSetupFile, 0, null);
-            } catch (IOException e) {
+                coreScript.exec(context, this);
+            } catch (JavaScriptException e) {
                 throw new MongoScopeException(
-                        "Caught IOException attempting to load from classpath: "
+                        "Caught JavaScriptException attempting to load from classpath: "
                                 + jsSetupFile, e);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #execCoreFiles(Context)} but uses the scripts returned by
+     * {@link CoreScriptCache#getSerializableScript(Context, String)} so that
+     * this scope can be written by {@link MongoScopeSnapshot}.
+     * 
+     * @param context
+     */
+    protected void execSerializableCoreFiles(Context context) {
+        for (String jsSetupFile : mongoApiFiles) {
+            Script coreScript = CoreScriptCache.getSerializableScript(context,
+                    jsSetupFile);
+            try {
+                coreScript.exec(context, this);
             } catch (JavaScriptException e) {
                 throw new MongoScopeException(
                         "Caught JavaScriptException attempting to load from classpath: "
@@ -361,11 +926,33 @@ public class MongoScope extends Global {
         }
     }
 
+    /**
+     * @return the mongodb JS API files executed in every new scope
+     */
+    static String[] getMongoApiFiles() {
+        return mongoApiFiles.clone();
+    }
+
+    /**
+     * Handlers and connections are not serialized, a deserialized scope
+     * starts disconnected with the default handlers.
+     */
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        currentDirHandler = new DefaultCurrentDirectoryHandler();
+        mongoConnections = synchronizedSet(new HashSet<Mongo>());
+    }
+
     protected Reader loadFromClasspath(String filePath) {
+        return loadFromClasspath(this.getClass().getClassLoader(), filePath);
+    }
+
+    static Reader loadFromClasspath(ClassLoader loader, String filePath) {
         Reader reader = null;
-        ClassLoader loader = this.getClass().getClassLoader();
+        // same charset as the CoreScriptCompiler build step
         reader = new BufferedReader(new InputStreamReader(
-                loader.getResourceAsStream(filePath)));
+                loader.getResourceAsStream(filePath), Charset.forName("UTF-8")));
         return reader;
     }
 
@@ -452,18 +1039,22 @@ public class MongoScope extends Global {
         return threadLocalRandomGen.get().nextDouble();
     }
 
+    /**
+     * Computes the BSON size of the given object with
+     * {@link BSONSizeCalculator}, without encoding it.
+     */
     public static Long bsonsize(Context cx, Scriptable thisObj, Object[] args,
-            Function funObj) throws IOException {
-        DBObject bsonObj = (DBObject) BSONizer.convertJStoBSON(args[0], true);
-        Long size = new Long(0);
-        if (bsonObj != null) {
-            BasicOutputBuffer byteBuffer = new BasicOutputBuffer();
-            DefaultDBEncoder.FACTORY.create().writeObject(byteBuffer, bsonObj);
-            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-            byteBuffer.pipe(byteStream);
-            size = new Long(byteStream.size());
-        }
-        return size;
+            Function funObj) {
+        Object jsObject = args.length > 0 ? args[0] : null;
+        if (jsObject == null || jsObject instanceof Undefined)
+            return Long.valueOf(0);
+        if (!(jsObject instanceof Scriptable))
+            Context.throwAsScriptRuntimeEx(new MongoScriptException(
+                    "bsonsize needs an object"));
+        if (!(jsObject instanceof NativeObject)
+                && !(jsObject instanceof NativeArray))
+            jsObject = BSONizer.convertJStoBSON(jsObject, true);
+        return Long.valueOf(BSONSizeCalculator.sizeOf(jsObject));
     }
 
     public static BinData UUID(Context cx, Scriptable thisObj,
@@ -884,6 +1475,198 @@ public class MongoScope extends Global {
 
     }
 
+    /**
+     * Creates a new {@link MongoScope} that can be written by
+     * {@link MongoScopeSnapshot}.
+     */
+    public static final class InitSerializableMongoScopeAction extends
+            MongoAction {
+
+        public InitSerializableMongoScopeAction() {
+            super(null);
+        }
+
+        @Override
+        public Object doRun(Context cx) {
+            MongoScope mongoScope = new MongoScope();
+            try {
+                mongoScope.initMongoJS(cx);
+            } catch (IllegalAccessException e) {
+                throw new MongoScopeException(
+                        "caught when attempting to create a new MongoScope", e);
+            } catch (InstantiationException e) {
+                throw new MongoScopeException(
+                        "caught when attempting to create a new MongoScope", e);
+            } catch (InvocationTargetException e) {
+                throw new MongoScopeException(
+                        "caught when attempting to create a new MongoScope", e);
+            }
+            mongoScope.execSerializableCoreFiles(cx);
+            return mongoScope;
+        }
+
+    }
+
+    /**
+     * Compiles the mongodb JS API files into the {@link CoreScriptCache} ahead
+     * of the first {@link MongoScope} creation.
+     */
+    public static final class CompileCoreFilesAction extends MongoAction {
+
+        public CompileCoreFilesAction() {
+            super(null);
+        }
+
+        @Override
+        public Object doRun(Context cx) {
+            CoreScriptCache.warm(cx, mongoApiFiles);
+            return null;
+        }
+
+    }
+
+    /**
+     * Copy of the restorable state of a {@link MongoScope}.
+     */
+    private static final class ScopeBaseline {
+
+        private final Map<Object, Object> values = new HashMap<Object, Object>();
+        private final Map<Object, Integer> attributes = new HashMap<Object, Integer>();
+        private final Set<Mongo> connections;
+        private final Set<String> loadedLazyFiles;
+        private final File cwd;
+        private final CurrentDirectoryHandler currentDirHandler;
+        private final PrintHandler printHandler;
+        private final ClearHandler clearHandler;
+        private final QuitHandler quitHandler;
+        private final boolean stdoutMongoErrorMessages;
+        private final boolean useMongoShellWriteConcern;
+        private final boolean useLazyDocuments;
+        private final boolean useWriteBehind;
+        private final int writeBehindMaxOperations;
+        private final long writeBehindMaxDelayMillis;
+        private final MongoClientOptions clientOptions;
+        private final int cursorPrefetchBatches;
+        private final AdaptiveBatchSizePolicy batchSizePolicy;
+
+        ScopeBaseline(MongoScope scope) {
+            for (Object id : scope.getAllIds()) {
+                values.put(id, getValue(scope, id));
+                attributes.put(id, getAttributes(scope, id));
+            }
+            synchronized (scope.mongoConnections) {
+                connections = new HashSet<Mongo>(scope.mongoConnections);
+            }
+            synchronized (scope.loadedLazyFiles) {
+                loadedLazyFiles = new HashSet<String>(scope.loadedLazyFiles);
+            }
+            currentDirHandler = scope.currentDirHandler;
+            cwd = currentDirHandler.getCurrentDirectory();
+            printHandler = scope.printHandler;
+            clearHandler = scope.clearHandler;
+            quitHandler = scope.quitHandler;
+            stdoutMongoErrorMessages = scope.stdoutMongoErrorMessages;
+            useMongoShellWriteConcern = scope.useMongoShellWriteConcern;
+            useLazyDocuments = scope.useLazyDocuments;
+            useWriteBehind = scope.useWriteBehind;
+            writeBehindMaxOperations = scope.writeBehindMaxOperations;
+            writeBehindMaxDelayMillis = scope.writeBehindMaxDelayMillis;
+            clientOptions = scope.clientOptions;
+            cursorPrefetchBatches = scope.cursorPrefetchBatches;
+            batchSizePolicy = scope.batchSizePolicy;
+        }
+
+        void restore(MongoScope scope) {
+            for (Object id : scope.getAllIds()) {
+                if (!values.containsKey(id)) {
+                    // top-level var declarations are DONTDELETE
+                    setAttributes(scope, id, ScriptableObject.EMPTY);
+                    if (id instanceof String)
+                        scope.delete((String) id);
+                    else
+                        scope.delete(((Number) id).intValue());
+                }
+            }
+            for (Map.Entry<Object, Object> entry : values.entrySet()) {
+                Object id = entry.getKey();
+                Object value = entry.getValue();
+                int attrs = attributes.get(id);
+                boolean present = hasValue(scope, id);
+                if (!present || (getValue(scope, id) != value)
+                        || (getAttributes(scope, id) != attrs)) {
+                    if (present)
+                        setAttributes(scope, id, ScriptableObject.EMPTY);
+                    if (id instanceof String)
+                        scope.put((String) id, scope, value);
+                    else
+                        scope.put(((Number) id).intValue(), scope, value);
+                    setAttributes(scope, id, attrs);
+                }
+            }
+
+            List<Mongo> stray = new ArrayList<Mongo>();
+            synchronized (scope.mongoConnections) {
+                for (Mongo connection : scope.mongoConnections) {
+                    if (!connections.contains(connection))
+                        stray.add(connection);
+                }
+            }
+            for (Mongo connection : stray)
+                scope.removeMongoConnection(connection);
+            scope.cancelCursorPrefetches();
+            RuntimeException failure = closeConnections(stray);
+
+            synchronized (scope.loadedLazyFiles) {
+                scope.loadedLazyFiles.retainAll(loadedLazyFiles);
+            }
+
+            currentDirHandler.setCurrentDirectory(cwd);
+            scope.currentDirHandler = currentDirHandler;
+            scope.printHandler = printHandler;
+            scope.clearHandler = clearHandler;
+            scope.quitHandler = quitHandler;
+            scope.stdoutMongoErrorMessages = stdoutMongoErrorMessages;
+            scope.useMongoShellWriteConcern = useMongoShellWriteConcern;
+            scope.useLazyDocuments = useLazyDocuments;
+            scope.useWriteBehind = useWriteBehind;
+            scope.writeBehindMaxOperations = writeBehindMaxOperations;
+            scope.writeBehindMaxDelayMillis = writeBehindMaxDelayMillis;
+            scope.clientOptions = clientOptions;
+            scope.cursorPrefetchBatches = cursorPrefetchBatches;
+            scope.batchSizePolicy = batchSizePolicy;
+            scope.lastCalledDB = null;
+            if (failure != null)
+                throw failure;
+        }
+
+        private static boolean hasValue(MongoScope scope, Object id) {
+            if (id instanceof String)
+                return scope.has((String) id, scope);
+            return scope.has(((Number) id).intValue(), scope);
+        }
+
+        private static Object getValue(MongoScope scope, Object id) {
+            if (id instanceof String)
+                return scope.get((String) id, scope);
+            return scope.get(((Number) id).intValue(), scope);
+        }
+
+        private static int getAttributes(MongoScope scope, Object id) {
+            if (id instanceof String)
+                return scope.getAttributes((String) id);
+            return scope.getAttributes(((Number) id).intValue());
+        }
+
+        private static void setAttributes(MongoScope scope, Object id,
+                int attrs) {
+            if (id instanceof String)
+                scope.setAttributes((String) id, attrs);
+            else
+                scope.setAttributes(((Number) id).intValue(), attrs);
+        }
+
+    }
+
     private static Reader loadFile(MongoScope scope, String filePath)
             throws IOException {
         Reader reader = null;
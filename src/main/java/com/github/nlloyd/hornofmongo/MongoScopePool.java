@@ -0,0 +1,328 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.github.nlloyd.hornofmongo.exception.MongoScopeException;
+import com.mongodb.MongoClientURI;
+
+/**
+ * Pool of initialized {@link MongoScope} instances for workloads that run one
+ * script per request. Creating a {@link MongoScope} defines all the adaptor
+ * classes and executes the mongodb JS API files, borrowing one from this pool
+ * only costs a reset of the globals modified by the previous borrower.
+ * 
+ * Idle scopes are created on a background thread until at least minIdle are
+ * available, no more than maxTotal scopes are ever created. Borrowed scopes
+ * must be handed back through {@link #release(MongoScope)}.
+ * 
+ * Instances are created through
+ * {@link MongoRuntime#createMongoScopePool(int, int)} and
+ * {@link MongoRuntime#createMongoScopePool(int, int, MongoClientURI, boolean, boolean)}
+ * .
+ * 
+ * @author nlloyd
+ * 
+ */
+public class MongoScopePool {
+
+    private final int minIdle;
+    private final int maxTotal;
+
+    private final MongoClientURI mongoClientURI;
+    private final boolean useMongoShellWriteConcern;
+    private final boolean mimicShellExceptionBehavior;
+
+    private final LinkedBlockingDeque<MongoScope> idleScopes = new LinkedBlockingDeque<MongoScope>();
+    private final Set<MongoScope> allScopes = Collections
+            .newSetFromMap(new ConcurrentHashMap<MongoScope, Boolean>());
+    private final Set<MongoScope> borrowedScopes = Collections
+            .newSetFromMap(new ConcurrentHashMap<MongoScope, Boolean>());
+    private final AtomicInteger totalScopes = new AtomicInteger();
+    private final AtomicBoolean refillScheduled = new AtomicBoolean();
+    private final ExecutorService warmer;
+
+    /*
+     * borrowers wait on this for an idle scope or a free slot, it is signalled
+     * whenever either appears and when the pool is closed
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+
+    private volatile boolean closed = false;
+
+    MongoScopePool(int minIdle, int maxTotal, MongoClientURI mongoClientURI,
+            boolean useMongoShellWriteConcern,
+            boolean mimicShellExceptionBehavior) {
+        if (maxTotal < 1)
+            throw new IllegalArgumentException("maxTotal must be at least 1");
+        if ((minIdle < 0) || (minIdle > maxTotal))
+            throw new IllegalArgumentException(
+                    "minIdle must be between 0 and maxTotal");
+        this.minIdle = minIdle;
+        this.maxTotal = maxTotal;
+        this.mongoClientURI = mongoClientURI;
+        this.useMongoShellWriteConcern = useMongoShellWriteConcern;
+        this.mimicShellExceptionBehavior = mimicShellExceptionBehavior;
+        this.warmer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "horn-of-mongo-scope-pool");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduleRefill();
+    }
+
+    /**
+     * Borrows a {@link MongoScope}, creating one on the calling thread if none
+     * are idle and the pool is not full, otherwise waiting for another
+     * borrower to release one.
+     * 
+     * @return a clean {@link MongoScope}
+     */
+    public MongoScope borrow() {
+        MongoScope scope = null;
+        try {
+            while (scope == null)
+                scope = borrow(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MongoScopeException(
+                    "interrupted while waiting for a pooled MongoScope", e);
+        }
+        return scope;
+    }
+
+    /**
+     * Same as {@link #borrow()} but gives up after the given timeout.
+     * 
+     * @param timeout
+     * @param unit
+     * @return a clean {@link MongoScope} or null if none became available in
+     *         time
+     * @throws InterruptedException
+     * @throws IllegalStateException
+     *             if the pool is closed before a scope becomes available
+     */
+    public MongoScope borrow(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        MongoScope scope = null;
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (scope == null) {
+                assertOpen();
+                scope = idleScopes.pollFirst();
+                if ((scope == null) && reserveSlot())
+                    break;
+                if ((scope == null) && (nanos <= 0L))
+                    return null;
+                if (scope == null)
+                    nanos = available.awaitNanos(nanos);
+            }
+        } finally {
+            lock.unlock();
+        }
+        // scopes are created outside the lock, it takes a while
+        if (scope == null)
+            scope = createScope();
+        borrowedScopes.add(scope);
+        scheduleRefill();
+        return scope;
+    }
+
+    /**
+     * Returns a borrowed {@link MongoScope} to the pool. The scope is reset to
+     * the state it had when it was created, any {@link MongoScope} that can't
+     * be reset is discarded. A scope can only be released once per borrow.
+     * 
+     * @param scope
+     */
+    public void release(MongoScope scope) {
+        if (!borrowedScopes.remove(scope)) {
+            if (allScopes.contains(scope))
+                throw new IllegalStateException(
+                        "MongoScope was already released to this pool");
+            throw new IllegalArgumentException(
+                    "MongoScope was not borrowed from this pool");
+        }
+        if (closed) {
+            discard(scope);
+            return;
+        }
+        try {
+            scope.resetToBaseline();
+        } catch (RuntimeException e) {
+            discard(scope);
+            scheduleRefill();
+            return;
+        }
+        idleScopes.offerFirst(scope);
+        if (closed && idleScopes.remove(scope))
+            discard(scope);
+        else
+            signalAvailable();
+    }
+
+    /**
+     * Discards a borrowed {@link MongoScope} instead of returning it to the
+     * pool, for instance after a script left it in an unusable state.
+     * 
+     * @param scope
+     */
+    public void invalidate(MongoScope scope) {
+        if (borrowedScopes.remove(scope)) {
+            discard(scope);
+            scheduleRefill();
+        }
+    }
+
+    /**
+     * @return number of {@link MongoScope} instances waiting to be borrowed
+     */
+    public int getIdleCount() {
+        return idleScopes.size();
+    }
+
+    /**
+     * @return number of {@link MongoScope} instances owned by this pool,
+     *         borrowed or idle
+     */
+    public int getTotalCount() {
+        return totalScopes.get();
+    }
+
+    public int getMinIdle() {
+        return minIdle;
+    }
+
+    public int getMaxTotal() {
+        return maxTotal;
+    }
+
+    /**
+     * Stops the background warming and cleans up all idle scopes. Scopes that
+     * are still borrowed are cleaned up when they are released, pending
+     * borrows fail with an {@link IllegalStateException}.
+     */
+    public void close() {
+        closed = true;
+        warmer.shutdownNow();
+        MongoScope scope;
+        while ((scope = idleScopes.pollFirst()) != null)
+            discard(scope);
+        signalAvailable();
+    }
+
+    private void assertOpen() {
+        if (closed)
+            throw new IllegalStateException("MongoScopePool has been closed");
+    }
+
+    private void signalAvailable() {
+        lock.lock();
+        try {
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void freeSlot() {
+        totalScopes.decrementAndGet();
+        signalAvailable();
+    }
+
+    private boolean reserveSlot() {
+        while (true) {
+            int current = totalScopes.get();
+            if (current >= maxTotal)
+                return false;
+            if (totalScopes.compareAndSet(current, current + 1))
+                return true;
+        }
+    }
+
+    private MongoScope createScope() {
+        MongoScope scope;
+        try {
+            if (mongoClientURI == null)
+                scope = MongoRuntime.createMongoScope();
+            else
+                scope = MongoRuntime.createMongoScope(mongoClientURI,
+                        useMongoShellWriteConcern,
+                        mimicShellExceptionBehavior);
+        } catch (UnknownHostException e) {
+            freeSlot();
+            throw new MongoScopeException(
+                    "caught when attempting to create a pooled MongoScope", e);
+        } catch (RuntimeException e) {
+            freeSlot();
+            throw e;
+        }
+        scope.markBaseline();
+        allScopes.add(scope);
+        return scope;
+    }
+
+    private void discard(MongoScope scope) {
+        if (allScopes.remove(scope)) {
+            freeSlot();
+            scope.cleanup();
+        }
+    }
+
+    private void scheduleRefill() {
+        if (closed || (idleScopes.size() >= minIdle)
+                || !refillScheduled.compareAndSet(false, true))
+            return;
+        warmer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!closed && (idleScopes.size() < minIdle)
+                            && reserveSlot())
+                        idleScopes.offerLast(createScope());
+                } finally {
+                    signalAvailable();
+                    refillScheduled.set(false);
+                }
+            }
+        });
+    }
+
+}
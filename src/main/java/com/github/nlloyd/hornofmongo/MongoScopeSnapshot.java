@@ -0,0 +1,312 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.IdFunctionObject;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.xml.XMLObject;
+
+import com.github.nlloyd.hornofmongo.exception.MongoScopeException;
+
+/**
+ * Reads and writes fully initialized {@link MongoScope} instances with Java
+ * serialization so that a new scope can be restored without executing the
+ * mongodb JS API files.
+ * 
+ * A snapshot starts with a header holding a format version, the Rhino version
+ * and a checksum of the mongodb JS API files. A snapshot whose header does not
+ * match the running format version, Rhino version or JS API files is rejected
+ * with a {@link MongoScopeException} rather than restored into a scope built
+ * from other sources. The version of this library is not part of the header:
+ * adaptor classes changed in an incompatible way fail to deserialize with an
+ * {@link java.io.InvalidClassException}, compatible changes go unnoticed.
+ * 
+ * Some Rhino built-ins are identified by a private tag object that is not
+ * serializable and must be the same instance in the reading JVM. These are
+ * written as references named after the standard object that holds them and
+ * resolved against the tags of the running Rhino library on read.
+ * 
+ * Only disconnected scopes can be written; handlers and connections are not
+ * part of a snapshot.
+ * 
+ * @author nlloyd
+ * 
+ */
+final class MongoScopeSnapshot {
+
+    static final String MAGIC = "horn-of-mongo scope snapshot";
+
+    /**
+     * Incremented whenever the snapshot layout changes.
+     */
+    static final int FORMAT_VERSION = 1;
+
+    private static volatile Long coreFilesChecksum;
+
+    private MongoScopeSnapshot() {
+    }
+
+    /**
+     * Writes the header and the serialized scope to the given stream.
+     * 
+     * @param cx
+     *            the current {@link Context}
+     * @param mongoScope
+     *            a disconnected scope created by
+     *            {@link MongoScope.InitSerializableMongoScopeAction}
+     * @param out
+     * @throws IOException
+     */
+    static void write(Context cx, MongoScope mongoScope, OutputStream out)
+            throws IOException {
+        if (mongoScope.countMongoConnections() > 0)
+            throw new MongoScopeException(
+                    "can not snapshot a MongoScope with open connections");
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeUTF(MAGIC);
+        header.writeInt(FORMAT_VERSION);
+        header.writeUTF(String.valueOf(cx.getImplementationVersion()));
+        header.writeLong(getCoreFilesChecksum());
+        header.flush();
+
+        final Map<Object, String> tagNames = new IdentityHashMap<Object, String>();
+        for (Map.Entry<String, Object> tag : standardTags(cx).entrySet())
+            tagNames.put(tag.getValue(), tag.getKey());
+        ObjectOutputStream objectOut = new ObjectOutputStream(out) {
+            {
+                enableReplaceObject(true);
+            }
+
+            @Override
+            protected Object replaceObject(Object obj) throws IOException {
+                if (obj == null || obj.getClass() != Object.class)
+                    return obj;
+                String tagName = tagNames.get(obj);
+                if (tagName == null)
+                    throw new NotSerializableException(
+                            "unknown Rhino tag object in MongoScope");
+                return new TagReference(tagName);
+            }
+        };
+        objectOut.writeObject(mongoScope);
+        objectOut.flush();
+    }
+
+    /**
+     * Reads a scope written by
+     * {@link #write(Context, MongoScope, OutputStream)}.
+     * 
+     * @param cx
+     *            the current {@link Context}
+     * @param in
+     * @return the restored scope
+     * @throws IOException
+     */
+    static MongoScope read(final Context cx, InputStream in)
+            throws IOException {
+        DataInputStream header = new DataInputStream(in);
+        String magic;
+        try {
+            magic = header.readUTF();
+        } catch (IOException e) {
+            throw new MongoScopeException("not a MongoScope snapshot", e);
+        }
+        if (!MAGIC.equals(magic))
+            throw new MongoScopeException("not a MongoScope snapshot");
+        int formatVersion = header.readInt();
+        if (formatVersion != FORMAT_VERSION)
+            throw new MongoScopeException("MongoScope snapshot format version "
+                    + formatVersion + " is not supported, expected "
+                    + FORMAT_VERSION);
+        String rhinoVersion = header.readUTF();
+        if (!rhinoVersion.equals(String.valueOf(cx
+                .getImplementationVersion())))
+            throw new MongoScopeException(
+                    "MongoScope snapshot was written with " + rhinoVersion
+                            + ", running " + cx.getImplementationVersion());
+        if (header.readLong() != getCoreFilesChecksum())
+            throw new MongoScopeException(
+                    "MongoScope snapshot was written from different mongodb JS API files");
+
+        final Map<String, Object> tags = standardTags(cx);
+        final ClassLoader loader = cx.getApplicationClassLoader();
+        ObjectInputStream objectIn = new ObjectInputStream(in) {
+            {
+                enableResolveObject(true);
+            }
+
+            @Override
+            protected Class<?> resolveClass(ObjectStreamClass desc)
+                    throws IOException, ClassNotFoundException {
+                try {
+                    return Class.forName(desc.getName(), false, loader);
+                } catch (ClassNotFoundException e) {
+                    return super.resolveClass(desc);
+                }
+            }
+
+            @Override
+            protected Object resolveObject(Object obj) throws IOException {
+                if (!(obj instanceof TagReference))
+                    return obj;
+                Object tag = tags.get(((TagReference) obj).name);
+                if (tag == null)
+                    throw new MongoScopeException(
+                            "MongoScope snapshot references unknown Rhino tag "
+                                    + ((TagReference) obj).name);
+                return tag;
+            }
+        };
+        try {
+            return (MongoScope) objectIn.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new MongoScopeException(
+                    "MongoScope snapshot references a missing class", e);
+        }
+    }
+
+    /**
+     * Finds the non-serializable tag objects of the Rhino built-in functions,
+     * named after the standard object path they were first found at. Tags are
+     * static to their Rhino classes so the same names resolve to the same
+     * instances in any JVM running the same Rhino version.
+     */
+    private static Map<String, Object> standardTags(Context cx) {
+        Map<String, Object> tags = new HashMap<String, Object>();
+        Map<Object, Boolean> seen = new IdentityHashMap<Object, Boolean>();
+        ScriptableObject standardObjects = cx.initStandardObjects();
+        Object[] ids = standardObjects.getAllIds();
+        Arrays.sort(ids, new Comparator<Object>() {
+            @Override
+            public int compare(Object o1, Object o2) {
+                return o1.toString().compareTo(o2.toString());
+            }
+        });
+        for (Object id : ids) {
+            if (!(id instanceof String))
+                continue;
+            Object value = ScriptableObject.getProperty(standardObjects,
+                    (String) id);
+            collectTags((String) id, value, tags, seen);
+            if (value instanceof Function) {
+                collectTags((String) id, ScriptableObject.getProperty(
+                        (Function) value, "prototype"), tags, seen);
+            }
+        }
+        return tags;
+    }
+
+    private static void collectTags(String path, Object value,
+            Map<String, Object> tags, Map<Object, Boolean> seen) {
+        addTag(path, value, tags, seen);
+        if (!(value instanceof ScriptableObject) || value instanceof XMLObject)
+            return;
+        ScriptableObject object = (ScriptableObject) value;
+        Object[] ids;
+        try {
+            ids = object.getAllIds();
+        } catch (IllegalArgumentException e) {
+            // some Rhino built-ins fail to enumerate their ids
+            return;
+        }
+        for (Object id : ids) {
+            if (id instanceof String)
+                addTag(path + "." + id,
+                        ScriptableObject.getProperty(object, (String) id),
+                        tags, seen);
+        }
+    }
+
+    private static void addTag(String path, Object value,
+            Map<String, Object> tags, Map<Object, Boolean> seen) {
+        if (!(value instanceof IdFunctionObject))
+            return;
+        Object tag = ((IdFunctionObject) value).getTag();
+        if (tag != null && tag.getClass() == Object.class
+                && !seen.containsKey(tag)) {
+            seen.put(tag, Boolean.TRUE);
+            tags.put(path, tag);
+        }
+    }
+
+    private static long getCoreFilesChecksum() throws IOException {
+        Long checksum = coreFilesChecksum;
+        if (checksum == null) {
+            CRC32 crc = new CRC32();
+            ClassLoader loader = MongoScopeSnapshot.class.getClassLoader();
+            byte[] buffer = new byte[8192];
+            for (String file : MongoScope.getMongoApiFiles()) {
+                crc.update(file.getBytes("UTF-8"));
+                InputStream in = loader.getResourceAsStream(file);
+                if (in == null)
+                    throw new MongoScopeException(
+                            "Could not find core JS file on classpath: "
+                                    + file);
+                try {
+                    int read;
+                    while ((read = in.read(buffer)) != -1)
+                        crc.update(buffer, 0, read);
+                } finally {
+                    in.close();
+                }
+            }
+            checksum = crc.getValue();
+            coreFilesChecksum = checksum;
+        }
+        return checksum;
+    }
+
+    /**
+     * Stand-in written in place of a Rhino tag object.
+     */
+    private static final class TagReference implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+
+        private TagReference(String name) {
+            this.name = name;
+        }
+
+    }
+
+}
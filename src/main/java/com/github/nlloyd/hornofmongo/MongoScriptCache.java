@@ -0,0 +1,236 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.mozilla.javascript.Context;
+
+/**
+ * Bounded LRU cache of {@link CompiledMongoScript} instances keyed by a hash
+ * of the script name, source and Rhino optimization level, so that a script
+ * submitted again is not parsed and compiled again. Used by {@link MongoRuntime#compile(String)}.
+ * 
+ * @author nlloyd
+ * 
+ */
+public class MongoScriptCache {
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 256;
+
+    private final LinkedHashMap<String, CompiledMongoScript> scripts;
+
+    private volatile int maximumSize;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    public MongoScriptCache() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    public MongoScriptCache(int maximumSize) {
+        if (maximumSize < 0)
+            throw new IllegalArgumentException(
+                    "maximumSize must not be negative");
+        this.maximumSize = maximumSize;
+        this.scripts = new LinkedHashMap<String, CompiledMongoScript>(16,
+                0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, CompiledMongoScript> eldest) {
+                if (size() > MongoScriptCache.this.maximumSize) {
+                    evictionCount.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param name
+     *            the script name used in error messages
+     * @param source
+     *            the JS source
+     * @param optimizationLevel
+     *            the Rhino optimization level the script is compiled for
+     * @return the key the script is cached under
+     */
+    public static String keyFor(String name, String source,
+            int optimizationLevel) {
+        return DigestUtils.sha1Hex(optimizationLevel + "\u0000" + name
+                + '\u0000' + source);
+    }
+
+    /**
+     * Returns the cached compiled script for the given name and source at the
+     * optimization level of the given {@link Context}, compiling it with that
+     * {@link Context} and caching it on a miss.
+     * Two threads missing on the same script at the same time may both
+     * compile it.
+     * 
+     * @param cx
+     * @param name
+     * @param source
+     * @return
+     */
+    public CompiledMongoScript getOrCompile(Context cx, String name,
+            String source) {
+        String key = keyFor(name, source, cx.getOptimizationLevel());
+        CompiledMongoScript compiled;
+        synchronized (scripts) {
+            compiled = scripts.get(key);
+        }
+        if (compiled != null) {
+            hitCount.incrementAndGet();
+            return compiled;
+        }
+        missCount.incrementAndGet();
+        compiled = compile(cx, key, name, source);
+        synchronized (scripts) {
+            CompiledMongoScript existing = scripts.get(key);
+            if (existing != null)
+                return existing;
+            scripts.put(key, compiled);
+        }
+        return compiled;
+    }
+
+    private static CompiledMongoScript compile(Context cx, String key,
+            String name, String source) {
+        int optimizationLevel = cx.getOptimizationLevel();
+        int adaptiveCompileThreshold = 0;
+        if (cx.getFactory() instanceof MongoContextFactory)
+            adaptiveCompileThreshold = ((MongoContextFactory) cx.getFactory())
+                    .getAdaptiveCompileThreshold();
+        if (adaptiveCompileThreshold <= 0 || optimizationLevel < 0)
+            return new CompiledMongoScript(key, name, source,
+                    cx.compileString(source, name, 0, null), optimizationLevel);
+
+        cx.setOptimizationLevel(-1);
+        try {
+            return new CompiledMongoScript(key, name, source,
+                    cx.compileString(source, name, 0, null), -1,
+                    optimizationLevel, adaptiveCompileThreshold);
+        } finally {
+            cx.setOptimizationLevel(optimizationLevel);
+        }
+    }
+
+    /**
+     * @param key
+     *            a key returned by {@link #keyFor(String, String, int)}
+     * @return the cached script or null, does not count as a hit or miss
+     */
+    public CompiledMongoScript get(String key) {
+        synchronized (scripts) {
+            return scripts.get(key);
+        }
+    }
+
+    public int size() {
+        synchronized (scripts) {
+            return scripts.size();
+        }
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Changes the maximum number of cached scripts, evicting the least
+     * recently used scripts if the cache is now over the limit.
+     * 
+     * @param maximumSize
+     */
+    public void setMaximumSize(int maximumSize) {
+        if (maximumSize < 0)
+            throw new IllegalArgumentException(
+                    "maximumSize must not be negative");
+        synchronized (scripts) {
+            this.maximumSize = maximumSize;
+            Iterator<String> keys = scripts.keySet().iterator();
+            while (scripts.size() > maximumSize && keys.hasNext()) {
+                keys.next();
+                keys.remove();
+                evictionCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return number of cached scripts currently running in the Rhino
+     *         interpreter
+     */
+    public int countInterpreted() {
+        int count = 0;
+        synchronized (scripts) {
+            for (CompiledMongoScript script : scripts.values())
+                if (script.isInterpreted())
+                    count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return number of cached scripts currently running as compiled bytecode
+     */
+    public int countCompiled() {
+        synchronized (scripts) {
+            return scripts.size() - countInterpreted();
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * Discards every cached script and resets the counters.
+     */
+    public void clear() {
+        synchronized (scripts) {
+            scripts.clear();
+        }
+        hitCount.set(0);
+        missCount.set(0);
+        evictionCount.set(0);
+    }
+
+}
@@ -0,0 +1,396 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.nlloyd.hornofmongo.action.CompiledMongoScriptAction;
+import com.github.nlloyd.hornofmongo.action.MongoAction;
+import com.github.nlloyd.hornofmongo.action.MongoScriptAction;
+
+/**
+ * Runs scripts and {@link MongoAction}s on a fixed number of worker threads.
+ * Created by {@link MongoRuntime#createScriptExecutor(MongoScope, int, int)}.
+ * 
+ * Every worker keeps a {@link MongoSession} open on its own thread for a
+ * worker scope of its own (see
+ * {@link MongoRuntime#createWorkerMongoScope(MongoScope)}), so scripts
+ * submitted as source or compiled scripts run in that scope and globals they
+ * define stay visible to later scripts on the same worker. Submitted
+ * {@link MongoAction}s run in their own scope instead, and the actions of
+ * one scope always go to the same worker so that a scope is never used by
+ * two threads at once.
+ * 
+ * Each worker has a queue of at most queueCapacity tasks. Submitting to a
+ * worker whose queue is full blocks until there is room, which slows down
+ * producers to the pace of the workers.
+ * 
+ * <pre>
+ * MongoScriptExecutor executor = MongoRuntime.createScriptExecutor(
+ *         settingsScope, 4, 100);
+ * try {
+ *     for (String script : scripts)
+ *         results.add(executor.submit(script));
+ * } finally {
+ *     executor.close();
+ * }
+ * </pre>
+ * 
+ * @author nlloyd
+ * 
+ */
+public class MongoScriptExecutor implements Closeable {
+
+    private static final long POLL_MILLIS = 100;
+
+    private static final AtomicInteger executorCount = new AtomicInteger();
+
+    private final Worker[] workers;
+    private final CountDownLatch terminated;
+    private final AtomicInteger nextWorker = new AtomicInteger();
+    private volatile boolean shutdown = false;
+
+    MongoScriptExecutor(MongoScope settingsScope, int workerCount,
+            int queueCapacity) {
+        if ((workerCount < 1) || (queueCapacity < 1))
+            throw new IllegalArgumentException(
+                    "MongoScriptExecutor needs at least one worker and a queue capacity of at least one");
+        int executor = executorCount.incrementAndGet();
+        workers = new Worker[workerCount];
+        terminated = new CountDownLatch(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker("hornofmongo-executor-" + executor + "-"
+                    + (i + 1), MongoRuntime.createWorkerMongoScope(settingsScope),
+                    queueCapacity);
+        }
+        for (Worker worker : workers)
+            worker.start();
+    }
+
+    /**
+     * Executes a script in the scope of the least busy worker, same as
+     * {@link MongoScriptAction}.
+     * 
+     * @param script
+     * @return the future result of the script
+     * @throws InterruptedException
+     *             if interrupted while waiting for room in the queue
+     */
+    public Future<Object> submit(final String script)
+            throws InterruptedException {
+        return enqueue(leastBusyWorker(), new ScriptTask(script, null));
+    }
+
+    /**
+     * Executes a compiled script in the scope of the least busy worker.
+     * 
+     * @param script
+     * @return the future result of the script
+     * @throws InterruptedException
+     *             if interrupted while waiting for room in the queue
+     */
+    public Future<Object> submit(final CompiledMongoScript script)
+            throws InterruptedException {
+        return enqueue(leastBusyWorker(), new ScriptTask(null, script));
+    }
+
+    /**
+     * Executes a script in the scope of the worker picked by the key, scripts
+     * submitted with equal keys run one after the other in the same scope.
+     * 
+     * @param key
+     * @param script
+     * @return the future result of the script
+     * @throws InterruptedException
+     *             if interrupted while waiting for room in the queue
+     */
+    public Future<Object> submit(Object key, final String script)
+            throws InterruptedException {
+        return enqueue(workerFor(key), new ScriptTask(script, null));
+    }
+
+    /**
+     * Executes a compiled script in the scope of the worker picked by the
+     * key, scripts submitted with equal keys run one after the other in the
+     * same scope.
+     * 
+     * @param key
+     * @param script
+     * @return the future result of the script
+     * @throws InterruptedException
+     *             if interrupted while waiting for room in the queue
+     */
+    public Future<Object> submit(Object key, final CompiledMongoScript script)
+            throws InterruptedException {
+        return enqueue(workerFor(key), new ScriptTask(null, script));
+    }
+
+    /**
+     * Runs an action in its own scope, on the worker that runs every action
+     * of that scope.
+     * 
+     * @param action
+     * @return the future result of the action
+     * @throws InterruptedException
+     *             if interrupted while waiting for room in the queue
+     * @throws IllegalArgumentException
+     *             if the action has no scope
+     */
+    public Future<Object> submit(final MongoAction action)
+            throws InterruptedException {
+        if ((action == null) || (action.getScope() == null))
+            throw new IllegalArgumentException(
+                    "MongoScriptExecutor needs a MongoAction with a scope");
+        return enqueue(workerFor(action.getScope()), new Callable<Object>() {
+            @Override
+            public Object call() {
+                return ((Worker) Thread.currentThread()).session.call(action);
+            }
+        });
+    }
+
+    /**
+     * @return the number of workers
+     */
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
+    /**
+     * @return the number of tasks waiting for a worker
+     */
+    public int getQueuedTaskCount() {
+        int queued = 0;
+        for (Worker worker : workers)
+            queued += worker.queue.size();
+        return queued;
+    }
+
+    /**
+     * Stops accepting tasks, the workers finish the tasks already queued and
+     * then clean up their scopes.
+     */
+    public void shutdown() {
+        shutdown = true;
+    }
+
+    /**
+     * Stops accepting tasks, cancels the queued ones and interrupts the
+     * running ones.
+     * 
+     * @return the number of queued tasks that were cancelled
+     */
+    public int shutdownNow() {
+        shutdown = true;
+        List<Runnable> pending = new ArrayList<Runnable>();
+        for (Worker worker : workers) {
+            worker.queue.drainTo(pending);
+            worker.interrupt();
+        }
+        for (Runnable task : pending)
+            ((FutureTask<?>) task).cancel(false);
+        return pending.size();
+    }
+
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * @return true once every worker has stopped
+     */
+    public boolean isTerminated() {
+        return terminated.getCount() == 0;
+    }
+
+    /**
+     * Waits for the workers to stop after a shutdown.
+     * 
+     * @param timeout
+     * @param unit
+     * @return true if every worker stopped in time
+     * @throws InterruptedException
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    /**
+     * Shuts down and waits for the queued tasks to finish.
+     */
+    @Override
+    public void close() {
+        shutdown();
+        try {
+            terminated.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Future<Object> enqueue(Worker worker, Callable<Object> task)
+            throws InterruptedException {
+        Task future = new Task(task);
+        while (true) {
+            checkAccepting();
+            if (worker.queue.offer(future, POLL_MILLIS, TimeUnit.MILLISECONDS))
+                break;
+        }
+        // lost a race with shutdownNow, which has no way to cancel it
+        if (shutdown && worker.queue.remove(future))
+            checkAccepting();
+        // or with a worker that could not start and no longer takes tasks
+        if ((worker.failure != null) && worker.queue.remove(future))
+            future.fail(worker.failure);
+        return future;
+    }
+
+    private void checkAccepting() {
+        if (shutdown)
+            throw new RejectedExecutionException(
+                    "MongoScriptExecutor has been shut down");
+    }
+
+    private Worker leastBusyWorker() {
+        int start = (nextWorker.getAndIncrement() & Integer.MAX_VALUE)
+                % workers.length;
+        Worker leastBusy = workers[start];
+        for (int i = 1; i < workers.length; i++) {
+            Worker worker = workers[(start + i) % workers.length];
+            if (worker.queue.size() < leastBusy.queue.size())
+                leastBusy = worker;
+        }
+        return leastBusy;
+    }
+
+    private Worker workerFor(Object key) {
+        return workers[(key.hashCode() & Integer.MAX_VALUE) % workers.length];
+    }
+
+    /**
+     * Queued task that can be failed without running.
+     */
+    private static class Task extends FutureTask<Object> {
+
+        Task(Callable<Object> callable) {
+            super(callable);
+        }
+
+        void fail(Throwable cause) {
+            setException(cause);
+        }
+
+    }
+
+    /**
+     * Runs a script in the scope of the worker executing it.
+     */
+    private static class ScriptTask implements Callable<Object> {
+
+        private final String script;
+        private final CompiledMongoScript compiledScript;
+
+        ScriptTask(String script, CompiledMongoScript compiledScript) {
+            this.script = script;
+            this.compiledScript = compiledScript;
+        }
+
+        @Override
+        public Object call() {
+            Worker worker = (Worker) Thread.currentThread();
+            if (compiledScript != null)
+                return worker.session.call(new CompiledMongoScriptAction(
+                        worker.scope, compiledScript));
+            return worker.session.call(new MongoScriptAction(worker.scope,
+                    script));
+        }
+
+    }
+
+    private class Worker extends Thread {
+
+        private final MongoScope scope;
+        private final BlockingQueue<Runnable> queue;
+        private MongoSession session;
+        private volatile RuntimeException failure;
+
+        Worker(String name, MongoScope scope, int queueCapacity) {
+            super(name);
+            this.scope = scope;
+            this.queue = new ArrayBlockingQueue<Runnable>(queueCapacity);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                // the session Context belongs to this thread for its lifetime
+                session = MongoRuntime.openSession(scope);
+                while (true) {
+                    Runnable task;
+                    try {
+                        task = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        task = null;
+                    }
+                    if (task != null)
+                        task.run();
+                    else if (shutdown && queue.isEmpty())
+                        break;
+                    // an interrupt aimed at the last task must not stop
+                    // the next one
+                    if (!shutdown)
+                        Thread.interrupted();
+                }
+            } catch (RuntimeException e) {
+                // without a session no task can run, fail the queued ones
+                failure = e;
+                List<Runnable> pending = new ArrayList<Runnable>();
+                queue.drainTo(pending);
+                for (Runnable task : pending)
+                    ((Task) task).fail(e);
+            } finally {
+                try {
+                    if (session != null)
+                        session.close();
+                    scope.cleanup();
+                } finally {
+                    terminated.countDown();
+                }
+            }
+        }
+
+    }
+
+}
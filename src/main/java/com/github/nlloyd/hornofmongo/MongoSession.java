@@ -0,0 +1,149 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import java.io.Closeable;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+
+import com.github.nlloyd.hornofmongo.action.CompiledMongoScriptAction;
+import com.github.nlloyd.hornofmongo.action.MongoAction;
+import com.github.nlloyd.hornofmongo.action.MongoScriptAction;
+
+/**
+ * Keeps a {@link Context} entered on the thread that opened it so that a
+ * batch of scripts and actions can be run against a {@link MongoScope}
+ * without entering and exiting a {@link Context} for every call. Created by
+ * {@link MongoRuntime#openSession(MongoScope)} and must be closed by the same
+ * thread.
+ * 
+ * <pre>
+ * MongoSession session = MongoRuntime.openSession(mongoScope);
+ * try {
+ *     for (String script : scripts)
+ *         session.execute(script);
+ * } finally {
+ *     session.close();
+ * }
+ * </pre>
+ * 
+ * @author nlloyd
+ * 
+ */
+public class MongoSession implements Closeable {
+
+    private final MongoScope mongoScope;
+    private final Context context;
+    private final Thread owner;
+    private boolean closed = false;
+
+    MongoSession(ContextFactory factory, MongoScope mongoScope) {
+        this.mongoScope = mongoScope;
+        this.context = factory.enterContext();
+        this.owner = Thread.currentThread();
+        if (context instanceof MongoContext)
+            ((MongoContext) context).updateExecutingMongoScope(mongoScope);
+    }
+
+    public MongoScope getScope() {
+        return mongoScope;
+    }
+
+    /**
+     * @return the {@link Context} entered for this session
+     */
+    public Context getContext() {
+        return context;
+    }
+
+    /**
+     * Runs the given action with the session {@link Context}, then stops the
+     * prefetching of its cursors and flushes the writes it buffered in
+     * write-behind mode, also when the action throws (see
+     * {@link MongoRuntime#finishAction(MongoScope, boolean)}).
+     * 
+     * @param mongoAction
+     * @return
+     */
+    public Object call(MongoAction mongoAction) {
+        checkOpen();
+        boolean completed = false;
+        try {
+            Object result = mongoAction.run(context);
+            completed = true;
+            return result;
+        } finally {
+            MongoRuntime.finishAction(mongoAction.getScope(), !completed);
+        }
+    }
+
+    /**
+     * Executes a script in the session scope, same as
+     * {@link MongoScriptAction}.
+     * 
+     * @param script
+     * @return
+     */
+    public Object execute(String script) {
+        return call(new MongoScriptAction(mongoScope, script));
+    }
+
+    /**
+     * Executes a compiled script in the session scope.
+     * 
+     * @param script
+     * @return
+     */
+    public Object execute(CompiledMongoScript script) {
+        return call(new CompiledMongoScriptAction(mongoScope, script));
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Exits the session {@link Context}. Does nothing if already closed.
+     */
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        checkOwner();
+        closed = true;
+        Context.exit();
+    }
+
+    private void checkOpen() {
+        if (closed)
+            throw new IllegalStateException("MongoSession is closed");
+        checkOwner();
+    }
+
+    private void checkOwner() {
+        if (Thread.currentThread() != owner)
+            throw new IllegalStateException(
+                    "MongoSession must be used by the thread that opened it");
+    }
+
+}
@@ -0,0 +1,51 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.action;
+
+import org.mozilla.javascript.Context;
+
+import com.github.nlloyd.hornofmongo.CompiledMongoScript;
+import com.github.nlloyd.hornofmongo.MongoScope;
+
+/**
+ * A {@link MongoAction} that executes a {@link CompiledMongoScript} in the
+ * given {@link MongoScope} without parsing or compiling it again.
+ * 
+ * @author nlloyd
+ * 
+ */
+public class CompiledMongoScriptAction extends MongoAction {
+
+    protected CompiledMongoScript compiledScript;
+
+    public CompiledMongoScriptAction(MongoScope mongoScope,
+            CompiledMongoScript compiledScript) {
+        super(mongoScope);
+        this.compiledScript = compiledScript;
+    }
+
+    @Override
+    protected Object doRun(Context cx) {
+        return compiledScript.exec(cx, mongoScope);
+    }
+
+}
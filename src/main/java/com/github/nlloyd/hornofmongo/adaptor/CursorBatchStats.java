@@ -0,0 +1,176 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.adaptor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.BSONCallback;
+import org.bson.BSONObject;
+import org.bson.io.Bits;
+
+import com.github.nlloyd.hornofmongo.AdaptiveBatchSizePolicy;
+import com.mongodb.DBCallback;
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+
+/**
+ * Observes one cursor for an {@link AdaptiveBatchSizePolicy}: the BSON size
+ * of the documents, measured by wrapping the decoder factory of the cursor,
+ * and the time the script waits on the cursor. Reports to the policy after
+ * each batch worth of documents and when the cursor is exhausted.
+ * 
+ * @author nlloyd
+ * 
+ */
+class CursorBatchStats implements DBDecoderFactory {
+
+    private final AdaptiveBatchSizePolicy policy;
+    private final String ns;
+    private final int batchSize;
+    private final int reportEvery;
+    private final DBDecoderFactory decoderFactory;
+
+    // documents may be decoded on a prefetching thread
+    private final AtomicLong bytes = new AtomicLong();
+    private long documents = 0;
+    private long waitNanos = 0;
+    private boolean finished = false;
+
+    /**
+     * @param policy
+     * @param ns
+     * @param batchSize
+     *            the batch size the policy chose for the cursor
+     * @param decoderFactory
+     *            the decoder factory to measure
+     */
+    CursorBatchStats(AdaptiveBatchSizePolicy policy, String ns, int batchSize,
+            DBDecoderFactory decoderFactory) {
+        this.policy = policy;
+        this.ns = ns;
+        this.batchSize = batchSize;
+        this.reportEvery = (batchSize > 0) ? batchSize
+                : CursorPrefetcher.DEFAULT_BATCH_SIZE;
+        this.decoderFactory = decoderFactory;
+    }
+
+    @Override
+    public DBDecoder create() {
+        return new MeasuringDecoder(decoderFactory.create());
+    }
+
+    /**
+     * @return a factory of decoders measured like the ones of this factory
+     */
+    DBDecoderFactory measuring(final DBDecoderFactory otherFactory) {
+        return new DBDecoderFactory() {
+            @Override
+            public DBDecoder create() {
+                return new MeasuringDecoder(otherFactory.create());
+            }
+        };
+    }
+
+    void waited(long nanos) {
+        waitNanos += nanos;
+    }
+
+    void documentRead() {
+        if (++documents >= reportEvery)
+            report();
+    }
+
+    /**
+     * Reports what is left when the cursor is exhausted, only once.
+     */
+    void finish() {
+        if (!finished) {
+            finished = true;
+            report();
+        }
+    }
+
+    private void report() {
+        policy.record(ns, batchSize, documents, bytes.getAndSet(0), waitNanos);
+        documents = 0;
+        waitNanos = 0;
+    }
+
+    private class MeasuringDecoder implements DBDecoder {
+
+        private final DBDecoder decoder;
+
+        MeasuringDecoder(DBDecoder decoder) {
+            this.decoder = decoder;
+        }
+
+        @Override
+        public DBObject decode(byte[] b, DBCollection collection) {
+            bytes.addAndGet(b.length);
+            return decoder.decode(b, collection);
+        }
+
+        @Override
+        public DBObject decode(InputStream in, DBCollection collection)
+                throws IOException {
+            byte[] sizeBytes = new byte[4];
+            Bits.readFully(in, sizeBytes);
+            int size = Bits.readInt(sizeBytes);
+            byte[] b = new byte[size];
+            System.arraycopy(sizeBytes, 0, b, 0, 4);
+            Bits.readFully(in, b, 4, size - 4);
+            return decode(b, collection);
+        }
+
+        @Override
+        public DBCallback getDBCallback(DBCollection collection) {
+            return decoder.getDBCallback(collection);
+        }
+
+        @Override
+        public BSONObject readObject(byte[] b) {
+            return decoder.readObject(b);
+        }
+
+        @Override
+        public BSONObject readObject(InputStream in) throws IOException {
+            return decoder.readObject(in);
+        }
+
+        @Override
+        public int decode(byte[] b, BSONCallback callback) {
+            return decoder.decode(b, callback);
+        }
+
+        @Override
+        public int decode(InputStream in, BSONCallback callback)
+                throws IOException {
+            return decoder.decode(in, callback);
+        }
+
+    }
+
+}
@@ -0,0 +1,249 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.adaptor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.MongoInterruptedException;
+
+/**
+ * Reads a cursor ahead of the script on a background thread so that the
+ * getMore round trip for the next batch overlaps with the script processing
+ * the current one. Documents are handed to the script thread in batches
+ * through a queue holding at most maxBatches of them, the reader waits when
+ * the queue is full.
+ * 
+ * The cursor must decode documents without building JS objects, Rhino
+ * objects are not thread-safe: the script thread converts them once read. The
+ * reader stops and closes the cursor when the cursor is exhausted, when
+ * {@link #cancel()} is called or when the script has not taken a batch for
+ * longer than the idle timeout, reading on then fails.
+ * 
+ * @author nlloyd
+ * 
+ */
+class CursorPrefetcher implements Runnable {
+
+    /**
+     * Number of documents per batch when the cursor has no batch size, the
+     * size of the server's first batch.
+     */
+    static final int DEFAULT_BATCH_SIZE = 101;
+
+    /**
+     * Time the reader waits for the script to take a batch before it gives up
+     * on the cursor.
+     */
+    static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES
+            .toMillis(1);
+
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    /**
+     * Marks the end of the cursor in the queue, compared by identity.
+     */
+    private static final List<DBObject> END = new ArrayList<DBObject>(0);
+
+    private static final ExecutorService readers = Executors
+            .newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "hornofmongo-prefetch-"
+                            + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final Cursor cursor;
+    private final int batchSize;
+    private final long idleTimeoutMillis;
+    private final BlockingQueue<List<DBObject>> batches;
+    private volatile boolean cancelled = false;
+    private volatile boolean finished = false;
+    private volatile RuntimeException failure;
+
+    // script thread state
+    private Iterator<DBObject> current = Collections.<DBObject> emptyList()
+            .iterator();
+    private boolean done = false;
+
+    /**
+     * @param cursor
+     *            read only by the background thread once {@link #start()} is
+     *            called
+     * @param batchSize
+     *            documents per batch, {@link #DEFAULT_BATCH_SIZE} if not
+     *            positive
+     * @param maxBatches
+     *            batches read ahead at most
+     */
+    CursorPrefetcher(Cursor cursor, int batchSize, int maxBatches) {
+        this(cursor, batchSize, maxBatches, DEFAULT_IDLE_TIMEOUT_MILLIS);
+    }
+
+    CursorPrefetcher(Cursor cursor, int batchSize, int maxBatches,
+            long idleTimeoutMillis) {
+        if (maxBatches < 1)
+            throw new IllegalArgumentException("maxBatches must be positive");
+        this.cursor = cursor;
+        this.batchSize = (batchSize > 0) ? batchSize : DEFAULT_BATCH_SIZE;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.batches = new ArrayBlockingQueue<List<DBObject>>(maxBatches);
+    }
+
+    void start() {
+        readers.execute(this);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!cancelled && cursor.hasNext()) {
+                List<DBObject> batch = new ArrayList<DBObject>(batchSize);
+                while ((batch.size() < batchSize) && !cancelled
+                        && cursor.hasNext())
+                    batch.add(cursor.next());
+                if (!put(batch)) {
+                    if (!cancelled)
+                        failure = new MongoException(
+                                "prefetched batches not read for "
+                                        + idleTimeoutMillis
+                                        + "ms, cursor closed");
+                    break;
+                }
+            }
+        } catch (RuntimeException e) {
+            failure = e;
+        } finally {
+            close();
+            // if the queue is full the script finds the end through finished
+            batches.offer(END);
+            finished = true;
+        }
+    }
+
+    /**
+     * Waits for room in the queue, gives up if cancelled or once the queue
+     * has stayed full for the idle timeout.
+     * 
+     * @return true if the batch was queued
+     */
+    private boolean put(List<DBObject> batch) {
+        long deadline = System.currentTimeMillis() + idleTimeoutMillis;
+        try {
+            while (!cancelled && (System.currentTimeMillis() < deadline)) {
+                if (batches.offer(batch, OFFER_TIMEOUT_MILLIS,
+                        TimeUnit.MILLISECONDS))
+                    return true;
+            }
+        } catch (InterruptedException e) {
+            cancelled = true;
+        }
+        return false;
+    }
+
+    private void close() {
+        try {
+            cursor.close();
+        } catch (RuntimeException e) {
+            // the cursor is abandoned anyway
+        }
+    }
+
+    /**
+     * Called by the script thread, waits for the next batch if the current
+     * one is used up.
+     * 
+     * @return true if there are more documents
+     */
+    boolean hasNext() {
+        while (!current.hasNext()) {
+            if (done)
+                return false;
+            List<DBObject> batch;
+            try {
+                batch = batches.poll(OFFER_TIMEOUT_MILLIS,
+                        TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MongoInterruptedException(
+                        "interrupted while waiting for the next batch", e);
+            }
+            // a reader that gave up on a full queue could not queue the end
+            if ((batch == null) && finished)
+                batch = batches.poll();
+            if ((batch == null) && finished)
+                batch = END;
+            if (batch == null)
+                continue;
+            if (batch == END) {
+                done = true;
+                if (failure != null) {
+                    RuntimeException e = failure;
+                    failure = null;
+                    throw e;
+                }
+                return false;
+            }
+            current = batch.iterator();
+        }
+        return true;
+    }
+
+    DBObject next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return current.next();
+    }
+
+    /**
+     * Stops the background reader, which closes the cursor.
+     */
+    void cancel() {
+        cancelled = true;
+        done = true;
+        current = Collections.<DBObject> emptyList().iterator();
+        batches.clear();
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+}
@@ -0,0 +1,221 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.adaptor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mozilla.javascript.Scriptable;
+
+import com.github.nlloyd.hornofmongo.bson.BSONSizeCalculator;
+import com.github.nlloyd.hornofmongo.bson.HornOfMongoJSEncoder;
+import com.github.nlloyd.hornofmongo.bson.ScriptableDBObject;
+import com.github.nlloyd.hornofmongo.util.BSONizer;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+
+/**
+ * Inserts a list of JS documents in bulk write batches split by document
+ * count and by total BSON size, for {@link Mongo#insertMany}. Document sizes
+ * are computed with {@link BSONSizeCalculator} so nothing is encoded twice.
+ * 
+ * An ordered insert stops at the first failing document, an unordered insert
+ * reports every failing document and goes on.
+ * 
+ * @author nlloyd
+ * 
+ */
+class InsertManyOperation {
+
+    /**
+     * Same as the server's maxWriteBatchSize.
+     */
+    static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /**
+     * Same as the server's maxMessageSizeBytes.
+     */
+    static final int MAX_BATCH_BYTES = 48000000;
+
+    /**
+     * BSON size of the ObjectId _id field the driver adds to documents
+     * without one.
+     */
+    private static final int GENERATED_ID_SIZE = 1 + 4 + 12;
+
+    private static final int BAD_VALUE_CODE = 2;
+    private static final int DOCUMENT_TOO_LARGE_CODE = 10334;
+
+    private final com.mongodb.DBCollection collection;
+    private final boolean ordered;
+    private final int batchSize;
+    private final int maxDocumentSize;
+    private final int maxBatchBytes;
+    private final WriteConcern writeConcern;
+
+    private int inserted = 0;
+    private final BasicDBList batches = new BasicDBList();
+    private final BasicDBList writeErrors = new BasicDBList();
+
+    InsertManyOperation(com.mongodb.DBCollection collection, boolean ordered,
+            int batchSize, int maxDocumentSize, int maxBatchBytes,
+            WriteConcern writeConcern) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batchSize must be positive");
+        this.collection = collection;
+        this.ordered = ordered;
+        this.batchSize = batchSize;
+        this.maxDocumentSize = maxDocumentSize;
+        this.maxBatchBytes = maxBatchBytes;
+        this.writeConcern = writeConcern;
+    }
+
+    /**
+     * @param jsDocuments
+     * @return the result document: nInserted, the per batch results and the
+     *         write errors
+     */
+    BasicDBObject execute(List<?> jsDocuments) {
+        List<DBObject> batch = new ArrayList<DBObject>(Math.min(batchSize,
+                jsDocuments.size()));
+        int batchBytes = 0;
+        int batchStart = 0;
+        boolean stopped = false;
+        for (int index = 0; index < jsDocuments.size(); index++) {
+            Object jsDocument = jsDocuments.get(index);
+            DBObject document = null;
+            int size = 0;
+            if (HornOfMongoJSEncoder.isEncodable(jsDocument)) {
+                document = new ScriptableDBObject((Scriptable) jsDocument);
+                size = BSONSizeCalculator.sizeOf(jsDocument);
+            } else {
+                Object converted = BSONizer.convertJStoBSON(jsDocument, true);
+                if (converted instanceof DBObject) {
+                    document = (DBObject) converted;
+                    size = BSONSizeCalculator.sizeOf(document);
+                }
+            }
+            if (document != null && document.get("_id") == null)
+                size += GENERATED_ID_SIZE;
+
+            if (document == null || size > maxDocumentSize) {
+                // documents before the bad one go in first
+                if (!flush(batch, batchStart, batchBytes)) {
+                    stopped = true;
+                    break;
+                }
+                batch.clear();
+                batchBytes = 0;
+                batchStart = index + 1;
+                if (document == null)
+                    addWriteError(index, BAD_VALUE_CODE, "document " + index
+                            + " is not an object");
+                else
+                    addWriteError(index, DOCUMENT_TOO_LARGE_CODE, "document "
+                            + index + " is " + size
+                            + " bytes, larger than the maximum of "
+                            + maxDocumentSize);
+                if (ordered) {
+                    stopped = true;
+                    break;
+                }
+                continue;
+            }
+
+            if (!batch.isEmpty()
+                    && (batch.size() >= batchSize || batchBytes + size > maxBatchBytes)) {
+                if (!flush(batch, batchStart, batchBytes)) {
+                    stopped = true;
+                    break;
+                }
+                batch.clear();
+                batchBytes = 0;
+                batchStart = index;
+            }
+            batch.add(document);
+            batchBytes += size;
+        }
+        if (!stopped)
+            flush(batch, batchStart, batchBytes);
+
+        BasicDBObject result = new BasicDBObject("nInserted", inserted);
+        result.append("nBatches", batches.size());
+        result.append("batches", batches);
+        result.append("writeErrors", writeErrors);
+        return result;
+    }
+
+    /**
+     * @return false if the insert has to stop
+     */
+    private boolean flush(List<DBObject> batch, int batchStart, int batchBytes) {
+        if (batch.isEmpty())
+            return true;
+        int errorsBefore = writeErrors.size();
+        int batchInserted = executeBatch(batch, batchStart);
+        inserted += batchInserted;
+        batches.add(new BasicDBObject("n", batch.size())
+                .append("bytes", batchBytes).append("nInserted", batchInserted));
+        return !ordered || writeErrors.size() == errorsBefore;
+    }
+
+    /**
+     * Runs one bulk write.
+     * 
+     * @param batch
+     * @param batchStart
+     *            index of the first document of the batch
+     * @return the number of documents inserted
+     */
+    protected int executeBatch(List<DBObject> batch, int batchStart) {
+        BulkWriteOperation bulk = ordered ? collection
+                .initializeOrderedBulkOperation() : collection
+                .initializeUnorderedBulkOperation();
+        for (DBObject document : batch)
+            bulk.insert(document);
+        try {
+            BulkWriteResult result = bulk.execute(writeConcern);
+            return result.isAcknowledged() ? result.getInsertedCount() : batch
+                    .size();
+        } catch (BulkWriteException bwe) {
+            for (BulkWriteError writeError : bwe.getWriteErrors())
+                addWriteError(batchStart + writeError.getIndex(),
+                        writeError.getCode(), writeError.getMessage());
+            if (bwe.getWriteConcernError() != null)
+                addWriteError(batchStart, bwe.getWriteConcernError().getCode(),
+                        bwe.getWriteConcernError().getMessage());
+            return bwe.getWriteResult().getInsertedCount();
+        }
+    }
+
+    protected void addWriteError(int index, int code, String message) {
+        writeErrors.add(new BasicDBObject("index", index).append("code", code)
+                .append("errmsg", message));
+    }
+
+}
@@ -21,7 +21,9 @@
  */
 package com.github.nlloyd.hornofmongo.adaptor;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.Undefined;
@@ -29,6 +31,7 @@ import org.mozilla.javascript.annotations.JSConstructor;
 import org.mozilla.javascript.annotations.JSFunction;
 
 import com.github.nlloyd.hornofmongo.MongoScope;
+import com.github.nlloyd.hornofmongo.bson.HornOfMongoLazyBSONDecoder;
 import com.github.nlloyd.hornofmongo.util.BSONizer;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
@@ -47,6 +50,28 @@ public class InternalCursor extends ScriptableMongoObject {
 
     private DBCursor cursor;
 
+    /**
+     * Reads the cursor ahead when the scope is in prefetch mode, see
+     * {@link MongoScope#setCursorPrefetchBatches(int)}.
+     */
+    private transient CursorPrefetcher prefetcher;
+
+    /**
+     * Observes the cursor for the scope's batch size policy, see
+     * {@link MongoScope#setBatchSizePolicy(com.github.nlloyd.hornofmongo.AdaptiveBatchSizePolicy)}.
+     */
+    private transient CursorBatchStats batchStats;
+
+    /**
+     * True once the cursor has been read from.
+     */
+    private boolean started = false;
+
+    /**
+     * True once {@link #close()} was called.
+     */
+    private boolean closed = false;
+
     /**
      * A mock result in cases where we need to simulate a findOne call to the
      * $cmd collection. Since we are not reimplementing the wire protocol and
@@ -83,7 +108,7 @@ public class InternalCursor extends ScriptableMongoObject {
             haveNext = !fauxFindOneReturned;
         } else {
             try {
-                haveNext = cursor.hasNext();
+                haveNext = hasNextDocument();
             } catch (MongoException me) {
                 handleMongoException(me);
             }
@@ -102,7 +127,7 @@ public class InternalCursor extends ScriptableMongoObject {
             }
         } else {
             try {
-                DBObject bsonNext = cursor.next();
+                DBObject bsonNext = nextDocument();
                 next = BSONizer.convertBSONtoJS(mongoScope, bsonNext);
             } catch (MongoException me) {
                 handleMongoException(me);
@@ -111,6 +136,133 @@ public class InternalCursor extends ScriptableMongoObject {
         return next;
     }
 
+    /**
+     * Converts up to n of the next documents in one call, instead of one
+     * hasNext() and next() call per document.
+     * 
+     * @param n
+     *            at most this many documents, all remaining ones if not
+     *            positive
+     * @return a JS array of the documents, empty once the cursor is exhausted
+     */
+    @JSFunction
+    public Object nextBatch(int n) {
+        List<Object> batch = new ArrayList<Object>((n > 0) ? Math.min(n,
+                CursorPrefetcher.DEFAULT_BATCH_SIZE)
+                : CursorPrefetcher.DEFAULT_BATCH_SIZE);
+        if (cursor == null) {
+            if (!fauxFindOneReturned) {
+                fauxFindOneReturned = true;
+                batch.add(fauxFindOneResult);
+            }
+        } else {
+            try {
+                while (((n <= 0) || (batch.size() < n)) && hasNextDocument())
+                    batch.add(BSONizer.convertBSONtoJS(mongoScope,
+                            nextDocument()));
+            } catch (MongoException me) {
+                handleMongoException(me);
+            }
+        }
+        return mongoScope.getJSValueFactory().newArray(batch.toArray());
+    }
+
+    /**
+     * @return a JS array of all remaining documents
+     */
+    @JSFunction
+    public Object drainToArray() {
+        return nextBatch(0);
+    }
+
+    /**
+     * Counts and skips the remaining documents. If the cursor has not been
+     * read from yet its documents are not decoded at all.
+     * 
+     * @param max
+     *            stop counting at max documents, no limit if not positive
+     * @return the number of documents skipped
+     */
+    @JSFunction
+    public int countRemaining(int max) {
+        int count = 0;
+        if (cursor == null) {
+            if (!fauxFindOneReturned) {
+                fauxFindOneReturned = true;
+                count = 1;
+            }
+        } else {
+            // the lazy decoder only keeps the raw bytes of each document
+            if (!started && (prefetcher == null))
+                cursor.setDecoderFactory((batchStats != null) ? batchStats
+                        .measuring(HornOfMongoLazyBSONDecoder.FACTORY)
+                        : HornOfMongoLazyBSONDecoder.FACTORY);
+            try {
+                while (((max <= 0) || (count < max)) && hasNextDocument()) {
+                    nextDocument();
+                    count++;
+                }
+            } catch (MongoException me) {
+                handleMongoException(me);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Releases the cursor on the server before it is exhausted, stopping its
+     * background reader if there is one. Reading a closed cursor finds no
+     * more documents.
+     */
+    @JSFunction
+    public void close() {
+        if (cursor == null) {
+            fauxFindOneReturned = true;
+        } else if (!closed) {
+            closed = true;
+            // the reader owns the cursor and closes it when cancelled
+            if (prefetcher != null) {
+                prefetcher.cancel();
+            } else {
+                try {
+                    cursor.close();
+                } catch (MongoException me) {
+                    handleMongoException(me);
+                }
+            }
+        }
+    }
+
+    private boolean hasNextDocument() {
+        started = true;
+        if (closed)
+            return false;
+        if (batchStats == null)
+            return (prefetcher != null) ? prefetcher.hasNext() : cursor
+                    .hasNext();
+        long start = System.nanoTime();
+        boolean hasNext = (prefetcher != null) ? prefetcher.hasNext() : cursor
+                .hasNext();
+        batchStats.waited(System.nanoTime() - start);
+        if (!hasNext)
+            batchStats.finish();
+        return hasNext;
+    }
+
+    private DBObject nextDocument() {
+        started = true;
+        if (closed)
+            throw new NoSuchElementException();
+        if (batchStats == null)
+            return (prefetcher != null) ? prefetcher.next() : cursor.next();
+        long start = System.nanoTime();
+        DBObject next = (prefetcher != null) ? prefetcher.next() : cursor
+                .next();
+        batchStats.waited(System.nanoTime() - start);
+        batchStats.documentRead();
+        return next;
+    }
+
 /* GC: removed 17/11/15 deprecated in v3
     @JSFunction
     public int objsLeftInBatch() {
@@ -136,6 +288,23 @@ public class InternalCursor extends ScriptableMongoObject {
         this.cursor = cursor;
     }
 
+    /**
+     * Reports the reads of this cursor to the scope's batch size policy, must
+     * be set before the cursor is read.
+     */
+    void setBatchStats(CursorBatchStats batchStats) {
+        this.batchStats = batchStats;
+    }
+
+    /**
+     * Starts reading the cursor ahead on a background thread, from then on
+     * the cursor is only read through the prefetcher.
+     */
+    void setPrefetcher(CursorPrefetcher prefetcher) {
+        this.prefetcher = prefetcher;
+        prefetcher.start();
+    }
+
     private void handleMongoException(MongoException me) {
         if (mongoScope == null)
             mongoScope = (MongoScope) ScriptableObject.getTopLevelScope(this);
@@ -21,6 +21,8 @@
  */
 package com.github.nlloyd.hornofmongo.adaptor;
 
+import static java.util.Collections.synchronizedSet;
+
 //GC: 16/11/15 removed for v3
 //import static com.mongodb.CoreMongoApiWrapper.callInsert;
 //import static com.mongodb.CoreMongoApiWrapper.makeCommandResult;
@@ -31,26 +33,45 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeArray;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.Undefined;
 import org.mozilla.javascript.annotations.JSConstructor;
 import org.mozilla.javascript.annotations.JSFunction;
 
+import com.github.nlloyd.hornofmongo.AdaptiveBatchSizePolicy;
+import com.github.nlloyd.hornofmongo.MongoClientRegistry;
 import com.github.nlloyd.hornofmongo.MongoRuntime;
 import com.github.nlloyd.hornofmongo.MongoScope;
 import com.github.nlloyd.hornofmongo.action.NewInstanceAction;
 import com.github.nlloyd.hornofmongo.bson.HornOfMongoBSONDecoder;
+import com.github.nlloyd.hornofmongo.bson.HornOfMongoLazyBSONDecoder;
 import com.github.nlloyd.hornofmongo.bson.HornOfMongoBSONEncoder;
+import com.github.nlloyd.hornofmongo.bson.HornOfMongoJSEncoder;
+import com.github.nlloyd.hornofmongo.bson.ScriptableDBObject;
 import com.github.nlloyd.hornofmongo.util.BSONizer;
 import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
 import com.mongodb.CommandResult;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
+import com.mongodb.DBDecoderFactory;
 import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.InsertOptions;
 import com.mongodb.MongoClientOptions;
 import com.mongodb.MongoClientURI;
 import com.mongodb.MongoException;
@@ -77,12 +98,54 @@ public class Mongo extends ScriptableMongoObject {
      */
     public static final String MONGO_CLIENT_URI_PREFIX = "mongodb://";
 
+    /**
+     * Insert option flag of the mongo shell, same as the driver's
+     * {@link InsertOptions#continueOnError(boolean)}.
+     */
+    static final int INSERT_CONTINUE_ON_ERROR = 1;
+
+    private static final String COMMAND_COLLECTION_SUFFIX = ".$cmd";
+
+    /**
+     * Batch size of bulk scans that don't set their own, large enough that
+     * the server's 16MB reply limit decides how many documents come back.
+     */
+    static final int BULK_SCAN_BATCH_SIZE = 1 << 20;
+
+    /**
+     * Read-ahead of bulk scans in scopes that don't prefetch cursors.
+     */
+    static final int BULK_SCAN_PREFETCH_BATCHES = 4;
+
     protected com.mongodb.Mongo innerMongo;
 
     protected List<ServerAddress> hosts;
 	protected MongoOptions mongoOptions;
 	protected int options;
 
+    /**
+     * Writes buffered in write-behind mode, created on first use.
+     */
+    private transient WriteBehindBuffer writeBehindBuffer;
+
+    /**
+     * True if innerMongo was acquired from the {@link MongoClientRegistry}.
+     */
+    private transient boolean sharedClient = false;
+    private transient boolean sharedClientReleased = false;
+
+    /**
+     * Driver collection handles by namespace, see {@link #getCollection(String)}.
+     */
+    private transient ConcurrentMap<String, DBCollection> collections = new ConcurrentHashMap<String, DBCollection>();
+
+    /**
+     * Cursor readers started by {@link #find}, cancelled on {@link #close()}
+     * so that abandoned cursors don't keep their reader threads.
+     */
+    private transient Set<CursorPrefetcher> prefetchers = synchronizedSet(Collections
+            .newSetFromMap(new WeakHashMap<CursorPrefetcher, Boolean>()));
+
     public Mongo() throws UnknownHostException {
         super();
     }
@@ -138,7 +201,9 @@ public class Mongo extends ScriptableMongoObject {
 //GC: 16/11/15 DBConnector removed in v3
 //        if ((innerMongo == null) || !innerMongo.getConnector().isOpen()) {
         if ((innerMongo == null)) {
-	        MongoClientOptions.Builder builder = MongoClientOptions.builder();
+	        MongoClientOptions.Builder builder = (mongoScope
+	                .getClientOptions() != null) ? new MongoClientOptions.Builder(
+	                mongoScope.getClientOptions()) : MongoClientOptions.builder();
 	        if (mongoOptions != null) {
 		        //Restore previous options
 		        builder.description(mongoOptions.description);
@@ -152,20 +217,110 @@ public class Mongo extends ScriptableMongoObject {
 //		        builder.autoConnectRetry(mongoOptions.autoConnectRetry);
 //		        builder.maxAutoConnectRetryTime(mongoOptions.maxAutoConnectRetryTime);
 	        }
+	        // the write concern is part of the options since the client may
+	        // be shared with scopes that don't use the shell write concern
+	        if (mongoScope.useMongoShellWriteConcern())
+	            builder.writeConcern(WriteConcern.UNACKNOWLEDGED);
 	        MongoClientOptions clientOptions = builder
 			        .dbEncoderFactory(HornOfMongoBSONEncoder.FACTORY).build();
-	        this.innerMongo = new com.mongodb.MongoClient(this.hosts,
+	        this.innerMongo = MongoClientRegistry.acquire(this.hosts,
                     clientOptions);
-	        if(options != 0)
-	            this.innerMongo.setOptions(options);
-        }
-        if (mongoScope.useMongoShellWriteConcern())
+	        this.sharedClient = true;
+        } else if (mongoScope.useMongoShellWriteConcern())
             innerMongo.setWriteConcern(WriteConcern.UNACKNOWLEDGED);
     }
 
+    /**
+     * Opens the minConnectionsPerHost connections of the client options by
+     * running that many ping commands at once, each one holding a pooled
+     * connection until it returns.
+     */
+    public void prewarmConnectionPool() {
+        if (!(innerMongo instanceof com.mongodb.MongoClient))
+            return;
+        int minConnections = ((com.mongodb.MongoClient) innerMongo)
+                .getMongoClientOptions().getMinConnectionsPerHost();
+        if (minConnections <= 0)
+            return;
+        final com.mongodb.DB adminDB = innerMongo.getDB("admin");
+        List<Callable<Object>> pings = new ArrayList<Callable<Object>>(
+                minConnections);
+        for (int i = 0; i < minConnections; i++) {
+            pings.add(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    return adminDB.command("ping");
+                }
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(minConnections);
+        try {
+            for (Future<Object> ping : executor.invokeAll(pings))
+                ping.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MongoException)
+                handleMongoException((MongoException) e.getCause());
+            else
+                Context.throwAsScriptRuntimeEx(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Stops the background readers of the cursors of this connection and
+     * releases their server cursors, the cursors read no more documents.
+     */
+    public void cancelPrefetchers() {
+        synchronized (prefetchers) {
+            for (CursorPrefetcher prefetcher : prefetchers)
+                prefetcher.cancel();
+            prefetchers.clear();
+        }
+    }
+
+    /**
+     * Flushes buffered writes and closes the wrapped client, or releases it if
+     * it is shared through the {@link MongoClientRegistry}.
+     */
     public void close() {
-        if (innerMongo != null)
-            innerMongo.close();
+        cancelPrefetchers();
+        if (innerMongo != null) {
+            try {
+                flushBufferedWrites();
+            } finally {
+                if (!sharedClient)
+                    innerMongo.close();
+                else if (releaseSharedClient())
+                    MongoClientRegistry
+                            .release((com.mongodb.MongoClient) innerMongo);
+            }
+        }
+    }
+
+    /**
+     * @return true the first time it is called for a shared client
+     */
+    private synchronized boolean releaseSharedClient() {
+        if (sharedClientReleased)
+            return false;
+        sharedClientReleased = true;
+        return true;
+    }
+
+    /**
+     * Sends the writes buffered in write-behind mode, failed writes are
+     * reported through {@link MongoScope#handleMongoException(MongoException)}.
+     */
+    public void flushBufferedWrites() {
+        if ((writeBehindBuffer == null) || writeBehindBuffer.isEmpty())
+            return;
+        MongoException failure = WriteBehindBuffer.toException(writeBehindBuffer
+                .flush());
+        if (failure != null)
+            handleMongoException(failure);
     }
 
     /**
@@ -207,6 +362,8 @@ public class Mongo extends ScriptableMongoObject {
             final Object fields, Integer limit, Integer skip,
             Integer batchSize, Integer options) {
         Object result = null;
+        // reads see the writes made before them
+        flushBufferedWrites();
 
         Object rawQuery = BSONizer.convertJStoBSON(query, false);
         Object rawFields = BSONizer.convertJStoBSON(fields, false);
@@ -216,9 +373,9 @@ public class Mongo extends ScriptableMongoObject {
             bsonQuery = (DBObject) rawQuery;
         if (rawFields instanceof DBObject)
             bsonFields = (DBObject) rawFields;
-        com.mongodb.DB db = innerMongo.getDB(ns.substring(0, ns.indexOf('.')));
-        String collectionName = ns.substring(ns.indexOf('.') + 1);
-        if ("$cmd".equals(collectionName)) {
+        if (ns.endsWith(COMMAND_COLLECTION_SUFFIX)) {
+            com.mongodb.DB db = innerMongo.getDB(ns.substring(0, ns.length()
+                    - COMMAND_COLLECTION_SUFFIX.length()));
             try {
                 if(options == 0)
                     options = innerMongo.getOptions();
@@ -249,16 +406,47 @@ public class Mongo extends ScriptableMongoObject {
                 handleMongoException(me);
             }
         } else {
-            DBCollection collection = db.getCollection(collectionName);
-            collection.setDBEncoderFactory(HornOfMongoBSONEncoder.FACTORY);
-            collection.setDBDecoderFactory(HornOfMongoBSONDecoder.FACTORY);
+            DBCollection collection = getCollection(ns);
             DBObject specialFields = null;
             if(bsonQuery.get("query") instanceof DBObject) {
                 specialFields = bsonQuery;
                 bsonQuery = (DBObject)bsonQuery.get("query");
             }
+            // the driver refuses exhaust cursors, the option asks for a
+            // bulk scan instead: full server batches read ahead
+            boolean bulkScan = (options & Bytes.QUERYOPTION_EXHAUST) != 0;
+            if (bulkScan)
+                options &= ~Bytes.QUERYOPTION_EXHAUST;
+            int prefetchBatches = mongoScope.getCursorPrefetchBatches();
+            if (bulkScan && (prefetchBatches == 0))
+                prefetchBatches = BULK_SCAN_PREFETCH_BATCHES;
+            // prefetched documents are decoded on the reader thread, which
+            // must not build JS objects, they are converted once read
+            DBDecoderFactory decoderFactory;
+            if (mongoScope.useLazyDocuments())
+                decoderFactory = HornOfMongoLazyBSONDecoder.FACTORY;
+            else if (prefetchBatches > 0)
+                decoderFactory = DefaultDBDecoder.FACTORY;
+            else
+                decoderFactory = mongoScope.getJSValueFactory()
+                        .getDecoderFactory();
+            // a batch size of 0 leaves the choice to the scope's policy
+            int cursorBatchSize = batchSize;
+            CursorBatchStats batchStats = null;
+            AdaptiveBatchSizePolicy batchSizePolicy = mongoScope
+                    .getBatchSizePolicy();
+            if (bulkScan && (batchSize == 0)) {
+                cursorBatchSize = BULK_SCAN_BATCH_SIZE;
+            } else if ((batchSizePolicy != null) && (batchSize == 0)) {
+                cursorBatchSize = batchSizePolicy.batchSizeFor(ns);
+                batchStats = new CursorBatchStats(batchSizePolicy, ns,
+                        cursorBatchSize, decoderFactory);
+                decoderFactory = batchStats;
+            }
             DBCursor cursor = collection.find(bsonQuery, bsonFields).skip(skip)
-                    .batchSize(batchSize).limit(limit).addOption(options);
+                    .batchSize(cursorBatchSize).limit(limit)
+                    .addOption(options);
+            cursor.setDecoderFactory(decoderFactory);
             if(specialFields != null) {
                 for(String key : specialFields.keySet()) {
                     if(!"query".equals(key))
@@ -269,6 +457,16 @@ public class Mongo extends ScriptableMongoObject {
             InternalCursor jsCursor = (InternalCursor) MongoRuntime
                     .call(new NewInstanceAction(mongoScope, "InternalCursor",
                             new Object[] { cursor }));
+            if (batchStats != null)
+                jsCursor.setBatchStats(batchStats);
+            if (prefetchBatches > 0) {
+                // bulk scan batches are handed over in default sized chunks
+                CursorPrefetcher prefetcher = new CursorPrefetcher(cursor,
+                        bulkScan ? 0 : Math.abs(cursorBatchSize),
+                        prefetchBatches);
+                prefetchers.add(prefetcher);
+                jsCursor.setPrefetcher(prefetcher);
+            }
             result = jsCursor;
         }
 
@@ -278,31 +476,34 @@ public class Mongo extends ScriptableMongoObject {
     @SuppressWarnings({ "unchecked", "rawtypes" })
     @JSFunction
     public void insert(final String ns, Object obj, int options) {
-        Object rawObj = BSONizer.convertJStoBSON(obj, true);
-        DBObject bsonObj = null;
-        if (rawObj instanceof DBObject)
-            bsonObj = (DBObject) rawObj;
-
         try {
-            int dbSeparatorIdx = ns.indexOf('.');
-            com.mongodb.DB db = innerMongo.getDB(ns
-                    .substring(0, dbSeparatorIdx));
-            String collectionName = ns.substring(dbSeparatorIdx + 1);
-            DBCollection collection = db.getCollection(collectionName);
-            collection.setDBEncoderFactory(HornOfMongoBSONEncoder.FACTORY);
-            collection.setDBDecoderFactory(HornOfMongoBSONDecoder.FACTORY);
+            DBCollection collection = getCollection(ns);
+            com.mongodb.DB db = collection.getDB();
             // unfortunately the Java driver does not expose the _allow_dot
             // argument in insert calls so we need to translate system.indexes
             // inserts into index creation calls through the java driver
-            if (collectionName.endsWith("system.indexes")) {
+            if (ns.endsWith("system.indexes")) {
+                flushBufferedWrites();
+                Object rawObj = BSONizer.convertJStoBSON(obj, true);
+                DBObject bsonObj = null;
+                if (rawObj instanceof DBObject)
+                    bsonObj = (DBObject) rawObj;
 //GC: 17/11/15 fixed for v3
 //                callInsert(db.getCollection("system.indexes"),
 //                        Arrays.asList(bsonObj), false);
                   db.getCollection("system.indexes").insert(Arrays.asList(bsonObj));
+            } else if (bufferingWrites()) {
+                Object rawObj = BSONizer.convertJStoBSON(obj, true);
+                int pending = 0;
+                if (rawObj instanceof List) {
+                    for (Object document : (List) rawObj)
+                        pending = writeBehindBuffer.insert(ns,
+                                (DBObject) document);
+                } else if (rawObj instanceof DBObject)
+                    pending = writeBehindBuffer.insert(ns, (DBObject) rawObj);
+                checkWriteBehindThresholds(pending);
             } else {
-                int oldOptions = collection.getOptions();
-                collection.setOptions(options);
-
+                Object rawObj = toEncodableBSON(obj);
                 List insertObj = null;
                 if (rawObj instanceof List)
                     insertObj = (List) rawObj;
@@ -310,8 +511,8 @@ public class Mongo extends ScriptableMongoObject {
                     insertObj = Arrays.asList(rawObj);
 //GC: 17/11/15 fixed for v3
 //                callInsert(collection, insertObj, false);
-                collection.insert(insertObj);
-                collection.setOptions(oldOptions);
+                collection.insert(insertObj, new InsertOptions()
+                        .continueOnError((options & INSERT_CONTINUE_ON_ERROR) != 0));
             }
             saveLastCalledDB(db);
         } catch (MongoException me) {
@@ -319,21 +520,85 @@ public class Mongo extends ScriptableMongoObject {
         }
     }
 
+    /**
+     * Inserts an array of documents in bulk writes split by document count
+     * and by BSON size, see {@link InsertManyOperation}. Supported options
+     * are ordered (default true), batchSize (default 1000) and writeConcern,
+     * either a w value or an object with w, wtimeout, j and fsync fields
+     * (defaults to the client write concern).
+     * 
+     * @return the result document: nInserted, nBatches, batches (n, bytes
+     *         and nInserted of each batch) and writeErrors
+     */
+    @JSFunction
+    public Object insertMany(final String ns, Object docs, Object options) {
+        if (!(docs instanceof NativeArray))
+            Context.throwAsScriptRuntimeEx(new IllegalArgumentException(
+                    "insertMany needs an array of documents"));
+        DBObject bsonOptions = null;
+        if (!(options instanceof Undefined) && options != null) {
+            Object rawOptions = BSONizer.convertJStoBSON(options, false);
+            if (rawOptions instanceof DBObject)
+                bsonOptions = (DBObject) rawOptions;
+        }
+        boolean ordered = true;
+        int batchSize = InsertManyOperation.DEFAULT_BATCH_SIZE;
+        WriteConcern writeConcern = innerMongo.getWriteConcern();
+        if (bsonOptions != null) {
+            if (bsonOptions.get("ordered") != null)
+                ordered = Boolean.TRUE.equals(bsonOptions.get("ordered"));
+            if (bsonOptions.get("batchSize") instanceof Number)
+                batchSize = ((Number) bsonOptions.get("batchSize")).intValue();
+            if (bsonOptions.get("writeConcern") != null)
+                writeConcern = toWriteConcern(bsonOptions.get("writeConcern"));
+        }
+
+        Object result = null;
+        try {
+            flushBufferedWrites();
+            DBCollection collection = getCollection(ns);
+            InsertManyOperation insertMany = new InsertManyOperation(
+                    collection, ordered, batchSize,
+                    innerMongo.getMaxBsonObjectSize(),
+                    InsertManyOperation.MAX_BATCH_BYTES, writeConcern);
+            result = BSONizer.convertBSONtoJS(mongoScope,
+                    insertMany.execute((NativeArray) docs));
+            saveLastCalledDB(collection.getDB());
+        } catch (IllegalArgumentException iae) {
+            Context.throwAsScriptRuntimeEx(iae);
+        } catch (MongoException me) {
+            handleMongoException(me);
+        }
+        return result;
+    }
+
     @JSFunction
     public void remove(final String ns, Object pattern, boolean justOne) {
-        Object rawPattern = BSONizer.convertJStoBSON(pattern, false);
+        if (bufferingWrites()) {
+            Object rawPattern = BSONizer.convertJStoBSON(pattern, false);
+            try {
+                checkWriteBehindThresholds(writeBehindBuffer.remove(ns,
+                        rawPattern instanceof DBObject ? (DBObject) rawPattern
+                                : new BasicDBObject(), justOne));
+                saveLastCalledDB(getCollection(ns).getDB());
+            } catch (MongoException me) {
+                handleMongoException(me);
+            }
+            return;
+        }
+        Object rawPattern = toEncodableBSON(pattern);
         DBObject bsonPattern = null;
         if (rawPattern instanceof DBObject)
             bsonPattern = (DBObject) rawPattern;
 
-        com.mongodb.DB db = innerMongo.getDB(ns.substring(0, ns.indexOf('.')));
-        DBCollection collection = db
-                .getCollection(ns.substring(ns.indexOf('.') + 1));
-        collection.setDBEncoderFactory(HornOfMongoBSONEncoder.FACTORY);
+        DBCollection collection = getCollection(ns);
 
         try {
-            collection.remove(bsonPattern);
-            saveLastCalledDB(db);
+            // the overloads without an encoder ignore the collection's
+            // encoder factory and can't encode JS values
+            collection.remove(bsonPattern, collection.getWriteConcern(),
+                    HornOfMongoJSEncoder.FACTORY.create());
+            saveLastCalledDB(collection.getDB());
         } catch (MongoException me) {
             handleMongoException(me);
         }
@@ -343,7 +608,22 @@ public class Mongo extends ScriptableMongoObject {
     public void update(final String ns, Object query, Object obj,
             final Boolean upsert, final Boolean multi) {
         Object rawQuery = BSONizer.convertJStoBSON(query, false);
-        Object rawObj = BSONizer.convertJStoBSON(obj, true);
+        if (bufferingWrites()) {
+            Object rawObj = BSONizer.convertJStoBSON(obj, true);
+            try {
+                checkWriteBehindThresholds(writeBehindBuffer.update(ns,
+                        rawQuery instanceof DBObject ? (DBObject) rawQuery
+                                : new BasicDBObject(),
+                        rawObj instanceof DBObject ? (DBObject) rawObj
+                                : new BasicDBObject(), (upsert != null)
+                                && upsert, (multi != null) && multi));
+                saveLastCalledDB(getCollection(ns).getDB());
+            } catch (MongoException me) {
+                handleMongoException(me);
+            }
+            return;
+        }
+        Object rawObj = toEncodableBSON(obj);
         DBObject bsonQuery = null;
         DBObject bsonObj = null;
         if (rawQuery instanceof DBObject)
@@ -354,19 +634,65 @@ public class Mongo extends ScriptableMongoObject {
         boolean upsertOp = (upsert != null) ? upsert : false;
         boolean multiOp = (multi != null) ? multi : false;
 
-        com.mongodb.DB db = innerMongo.getDB(ns.substring(0, ns.indexOf('.')));
-        DBCollection collection = db
-                .getCollection(ns.substring(ns.indexOf('.') + 1));
-        collection.setDBEncoderFactory(HornOfMongoBSONEncoder.FACTORY);
+        DBCollection collection = getCollection(ns);
 
         try {
-            collection.update(bsonQuery, bsonObj, upsertOp, multiOp);
-            saveLastCalledDB(db);
+            collection.update(bsonQuery, bsonObj, upsertOp, multiOp,
+                    collection.getWriteConcern(),
+                    HornOfMongoJSEncoder.FACTORY.create());
+            saveLastCalledDB(collection.getDB());
         } catch (MongoException me) {
             handleMongoException(me);
         }
     }
 
+    /**
+     * Sends the writes buffered in write-behind mode without throwing on
+     * failed writes.
+     * 
+     * @return the result document of {@link WriteBehindBuffer#flush()}
+     */
+    @JSFunction
+    public Object flushWrites() {
+        if (writeBehindBuffer == null)
+            writeBehindBuffer = new WriteBehindBuffer(this);
+        return BSONizer.convertBSONtoJS(mongoScope, writeBehindBuffer.flush());
+    }
+
+    /**
+     * Calls a function with every matching document, scanning _id ranges of
+     * the collection in parallel worker scopes.
+     * 
+     * @param ns
+     * @param query
+     * @param fields
+     * @param partitions
+     *            number of _id ranges, one per processor if not positive
+     * @param function
+     *            source of the function, compiled in each worker scope
+     * @return the result document of {@link ParallelScan#run()}
+     */
+    @JSFunction
+    public Object parallelScan(final String ns, final Object query,
+            final Object fields, int partitions, String function) {
+        Object result = null;
+        // the workers see the writes made before the scan
+        flushBufferedWrites();
+        Object rawQuery = BSONizer.convertJStoBSON(query, false);
+        Object rawFields = BSONizer.convertJStoBSON(fields, false);
+        try {
+            DBObject scanResult = new ParallelScan(this, ns,
+                    (rawQuery instanceof DBObject) ? (DBObject) rawQuery
+                            : null,
+                    (rawFields instanceof DBObject) ? (DBObject) rawFields
+                            : null, partitions, function).run();
+            result = BSONizer.convertBSONtoJS(mongoScope, scanResult);
+        } catch (MongoException me) {
+            handleMongoException(me);
+        }
+        return result;
+    }
+
     /**
      * Root js api authenticate function. Returns nothing, only throws an
      * exception on authentication failure.
@@ -434,6 +760,114 @@ public class Mongo extends ScriptableMongoObject {
         }
     }
 */
+    /**
+     * Wraps JS documents to be written by {@link HornOfMongoJSEncoder} without
+     * an intermediate copy, falling back to {@link BSONizer} for values it
+     * can't write as top level documents.
+     * 
+     * @param jsObject
+     *            a JS document or array of documents
+     * @return a {@link DBObject}, a {@link List} of them, or whatever
+     *         {@link BSONizer#convertJStoBSON(Object, boolean)} returns
+     */
+    private static Object toEncodableBSON(Object jsObject) {
+        if (HornOfMongoJSEncoder.isEncodable(jsObject))
+            return new ScriptableDBObject((Scriptable) jsObject);
+        if (jsObject instanceof NativeArray) {
+            NativeArray jsArray = (NativeArray) jsObject;
+            List<DBObject> documents = new ArrayList<DBObject>(
+                    (int) jsArray.getLength());
+            for (Object jsEntry : jsArray) {
+                if (!HornOfMongoJSEncoder.isEncodable(jsEntry))
+                    return BSONizer.convertJStoBSON(jsObject, true);
+                documents.add(new ScriptableDBObject((Scriptable) jsEntry));
+            }
+            return documents;
+        }
+        return BSONizer.convertJStoBSON(jsObject, true);
+    }
+
+    /**
+     * @param bsonWriteConcern
+     *            a w value or a {w, wtimeout, j, fsync} document
+     * @return the equivalent {@link WriteConcern}
+     */
+    private static WriteConcern toWriteConcern(Object bsonWriteConcern) {
+        Object w = bsonWriteConcern;
+        int wtimeout = 0;
+        boolean fsync = false;
+        boolean j = false;
+        if (bsonWriteConcern instanceof DBObject) {
+            DBObject bsonObj = (DBObject) bsonWriteConcern;
+            w = bsonObj.get("w");
+            if (bsonObj.get("wtimeout") instanceof Number)
+                wtimeout = ((Number) bsonObj.get("wtimeout")).intValue();
+            fsync = Boolean.TRUE.equals(bsonObj.get("fsync"));
+            j = Boolean.TRUE.equals(bsonObj.get("j"));
+        }
+        if (w instanceof String)
+            return new WriteConcern((String) w, wtimeout, fsync, j);
+        return new WriteConcern(w instanceof Number ? ((Number) w).intValue()
+                : 1, wtimeout, fsync, j);
+    }
+
+    /**
+     * Looks up the driver collection of a namespace. The handle is created
+     * and given the HornOfMongo encoder and decoder factories once, then
+     * reused so that the write path neither parses the namespace again nor
+     * changes shared collection settings. Per operation settings are passed
+     * with each driver call instead.
+     * 
+     * @param ns
+     *            a db.collection namespace
+     * @return the cached {@link DBCollection}
+     */
+    DBCollection getCollection(String ns) {
+        DBCollection collection = collections.get(ns);
+        if (collection == null) {
+            int dbSeparatorIdx = ns.indexOf('.');
+            collection = innerMongo.getDB(ns.substring(0, dbSeparatorIdx))
+                    .getCollection(ns.substring(dbSeparatorIdx + 1));
+            // the JS encoder writes any other DBObject as the BSON encoder
+            // does
+            collection.setDBEncoderFactory(HornOfMongoJSEncoder.FACTORY);
+            collection.setDBDecoderFactory(HornOfMongoBSONDecoder.FACTORY);
+            DBCollection cached = collections.putIfAbsent(ns, collection);
+            if (cached != null)
+                collection = cached;
+        }
+        return collection;
+    }
+
+    /**
+     * @return true if the owning {@link MongoScope} is in write-behind mode,
+     *         creating the write buffer if needed
+     */
+    private boolean bufferingWrites() {
+        if (mongoScope == null)
+            mongoScope = (MongoScope) ScriptableObject.getTopLevelScope(this);
+        if (!mongoScope.useWriteBehind())
+            return false;
+        if (writeBehindBuffer == null)
+            writeBehindBuffer = new WriteBehindBuffer(this);
+        return true;
+    }
+
+    /**
+     * Flushes the buffered writes once a namespace holds
+     * {@link MongoScope#getWriteBehindMaxOperations()} of them or the oldest
+     * is older than {@link MongoScope#getWriteBehindMaxDelayMillis()}.
+     * 
+     * @param pending
+     *            the number of writes buffered for the namespace just written
+     */
+    private void checkWriteBehindThresholds(int pending) {
+        if ((pending >= mongoScope.getWriteBehindMaxOperations())
+                || (writeBehindBuffer.getPendingMillis() >= mongoScope
+                        .getWriteBehindMaxDelayMillis()))
+            flushBufferedWrites();
+    }
+
     private void handleMongoException(MongoException me) {
         if (mongoScope == null)
             mongoScope = (MongoScope) ScriptableObject.getTopLevelScope(this);
@@ -0,0 +1,407 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.adaptor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.types.MinKey;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.RhinoException;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.WrappedException;
+
+import com.github.nlloyd.hornofmongo.MongoRuntime;
+import com.github.nlloyd.hornofmongo.MongoScope;
+import com.github.nlloyd.hornofmongo.action.MongoAction;
+import com.github.nlloyd.hornofmongo.util.BSONizer;
+import com.mongodb.AggregationOutput;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.MongoInterruptedException;
+
+/**
+ * Scans a collection in _id ranges on a pool of worker threads, calling a JS
+ * function with every document. The ranges are bounds of the _id index, not
+ * query operators, which only match _id values of the type of the bound: each
+ * document falls in exactly one range whatever its _id type. The ranges are
+ * split with the splitVector
+ * command, or from a random sample of _id values where splitVector is not
+ * available (ex. through mongos). Each partition runs in its own worker
+ * scope (see {@link MongoRuntime#createWorkerMongoScope(MongoScope)}) with
+ * its own db object on the same database, so the function only sees the
+ * shell globals and not the variables of the calling script.
+ * 
+ * @author nlloyd
+ * 
+ */
+final class ParallelScan {
+
+    static final String SPLIT_VECTOR = "splitVector";
+    static final String SAMPLE = "sample";
+    static final String NONE = "none";
+
+    /**
+     * Sampled _id values per partition when splitVector is not available.
+     */
+    static final int SAMPLES_PER_PARTITION = 20;
+
+    /**
+     * Documents converted per native cursor call by each worker.
+     */
+    private static final int ITERATION_BATCH_SIZE = 100;
+
+    private static final ThreadFactory workerThreads = new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "hornofmongo-scan-"
+                    + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    private final Mongo mongo;
+    private final String ns;
+    private final DBObject query;
+    private final DBObject fields;
+    private final int partitions;
+    private final String functionSource;
+
+    private String splitMethod = NONE;
+
+    /**
+     * @param mongo
+     *            the connection of the calling scope
+     * @param ns
+     * @param query
+     *            may be null
+     * @param fields
+     *            may be null
+     * @param partitions
+     *            number of _id ranges, one per available processor if not
+     *            positive
+     * @param functionSource
+     *            source of the function called with each document
+     */
+    ParallelScan(Mongo mongo, String ns, DBObject query, DBObject fields,
+            int partitions, String functionSource) {
+        this.mongo = mongo;
+        this.ns = ns;
+        this.query = (query != null) ? query : new BasicDBObject();
+        this.fields = fields;
+        this.partitions = (partitions > 0) ? partitions : Runtime
+                .getRuntime().availableProcessors();
+        this.functionSource = functionSource;
+    }
+
+    /**
+     * Runs the scan and waits for every partition.
+     * 
+     * @return {ok, nDocuments, nPartitions, splitMethod, partitions: [{partition,
+     *         min, max, nDocuments, millis, errmsg}], errors: [{partition,
+     *         errmsg}]}
+     */
+    DBObject run() {
+        List<Object> splitPoints = computeSplitPoints(mongo.getCollection(ns));
+        List<PartitionScan> scans = new ArrayList<PartitionScan>(
+                splitPoints.size() + 1);
+        for (int i = 0; i <= splitPoints.size(); i++) {
+            scans.add(new PartitionScan(i, (i > 0) ? splitPoints.get(i - 1)
+                    : null, (i < splitPoints.size()) ? splitPoints.get(i)
+                    : null));
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(
+                Math.min(scans.size(), Runtime.getRuntime()
+                        .availableProcessors()), workerThreads);
+        BasicDBList partitionResults = new BasicDBList();
+        BasicDBList errors = new BasicDBList();
+        long documents = 0;
+        try {
+            List<Future<DBObject>> results = new ArrayList<Future<DBObject>>(
+                    scans.size());
+            for (PartitionScan scan : scans)
+                results.add(workers.submit(scan));
+            for (int i = 0; i < results.size(); i++) {
+                DBObject partitionResult;
+                try {
+                    partitionResult = results.get(i).get();
+                } catch (ExecutionException e) {
+                    partitionResult = new BasicDBObject("partition", i)
+                            .append("nDocuments", 0L).append("errmsg",
+                                    errorMessage(e.getCause()));
+                }
+                partitionResults.add(partitionResult);
+                documents += ((Number) partitionResult.get("nDocuments"))
+                        .longValue();
+                if (partitionResult.containsField("errmsg"))
+                    errors.add(new BasicDBObject("partition", i).append(
+                            "errmsg", partitionResult.get("errmsg")));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MongoInterruptedException("parallel scan of " + ns
+                    + " interrupted", e);
+        } finally {
+            // stops the workers still running if the caller was interrupted
+            workers.shutdownNow();
+        }
+
+        return new BasicDBObject("ok", errors.isEmpty() ? 1 : 0)
+                .append("nDocuments", documents)
+                .append("nPartitions", scans.size())
+                .append("splitMethod", splitMethod)
+                .append("partitions", partitionResults)
+                .append("errors", errors);
+    }
+
+    /**
+     * @return the sorted _id values at which the partitions start, empty
+     *         for a single partition
+     */
+    private List<Object> computeSplitPoints(DBCollection collection) {
+        if (partitions < 2)
+            return new ArrayList<Object>(0);
+        List<Object> keys = splitVectorKeys(collection);
+        if (!keys.isEmpty()) {
+            splitMethod = SPLIT_VECTOR;
+        } else {
+            keys = sampledKeys(collection);
+            if (!keys.isEmpty())
+                splitMethod = SAMPLE;
+        }
+        return pickSplitPoints(keys, partitions);
+    }
+
+    /**
+     * Asks the server for _id split points with chunks of about
+     * 1/partitions of the collection's data size.
+     */
+    private List<Object> splitVectorKeys(DBCollection collection) {
+        List<Object> keys = new ArrayList<Object>();
+        try {
+            CommandResult stats = collection.getStats();
+            long size = (stats.get("size") instanceof Number) ? ((Number) stats
+                    .get("size")).longValue() : 0;
+            if (size <= 0)
+                return keys;
+            CommandResult result = collection.getDB().command(
+                    new BasicDBObject(SPLIT_VECTOR, ns)
+                            .append("keyPattern", new BasicDBObject("_id", 1))
+                            .append("maxChunkSizeBytes",
+                                    Math.max(1, size / partitions)));
+            if (result.ok() && (result.get("splitKeys") instanceof List)) {
+                for (Object key : (List<?>) result.get("splitKeys"))
+                    keys.add(((DBObject) key).get("_id"));
+            }
+        } catch (MongoException e) {
+            // not available, ex. through mongos or without the privilege
+        }
+        return keys;
+    }
+
+    /**
+     * Samples _id values of the matching documents, sorted by the server.
+     */
+    private List<Object> sampledKeys(DBCollection collection) {
+        List<Object> keys = new ArrayList<Object>();
+        List<DBObject> pipeline = new ArrayList<DBObject>(4);
+        if (!query.keySet().isEmpty())
+            pipeline.add(new BasicDBObject("$match", query));
+        pipeline.add(new BasicDBObject("$sample", new BasicDBObject("size",
+                partitions * SAMPLES_PER_PARTITION)));
+        pipeline.add(new BasicDBObject("$project", new BasicDBObject("_id", 1)));
+        pipeline.add(new BasicDBObject("$sort", new BasicDBObject("_id", 1)));
+        try {
+            AggregationOutput output = collection.aggregate(pipeline);
+            for (DBObject sample : output.results())
+                keys.add(sample.get("_id"));
+        } catch (MongoException e) {
+            // $sample needs MongoDB 3.2, scan in a single partition
+            keys.clear();
+        }
+        return keys;
+    }
+
+    /**
+     * Picks up to partitions - 1 evenly spaced, distinct split points.
+     * 
+     * @param sortedKeys
+     *            candidate _id values in server order
+     * @param partitions
+     * @return
+     */
+    static List<Object> pickSplitPoints(List<Object> sortedKeys, int partitions) {
+        List<Object> splitPoints = new ArrayList<Object>();
+        if (sortedKeys.isEmpty() || (partitions < 2))
+            return splitPoints;
+        int picks = Math.min(partitions - 1, sortedKeys.size());
+        for (int i = 1; i <= picks; i++) {
+            Object key = sortedKeys.get((int) (((long) i * sortedKeys.size())
+                    / (picks + 1)));
+            if (splitPoints.isEmpty()
+                    || !key.equals(splitPoints.get(splitPoints.size() - 1)))
+                splitPoints.add(key);
+        }
+        return splitPoints;
+    }
+
+    /**
+     * @param query
+     * @param min
+     *            inclusive lower _id bound, MinKey if null
+     * @param max
+     *            exclusive upper _id bound, none if null
+     * @return the query with the $min and $max index bounds of the _id range
+     *         and an _id index hint, in the special fields form accepted by
+     *         {@link Mongo#find(String, Object, Object, int, int, int, int)}
+     */
+    static DBObject partitionQuery(DBObject query, Object min, Object max) {
+        if ((min == null) && (max == null))
+            return query;
+        BasicDBObject special = new BasicDBObject("query", query);
+        special.put("$min", new BasicDBObject("_id", (min != null) ? min
+                : new MinKey()));
+        // $max is exclusive, a MaxKey bound would leave out an _id of MaxKey
+        if (max != null)
+            special.put("$max", new BasicDBObject("_id", max));
+        special.put("$hint", new BasicDBObject("_id", 1));
+        return special;
+    }
+
+    static String errorMessage(Throwable e) {
+        if (e instanceof WrappedException)
+            e = ((WrappedException) e).getWrappedException();
+        if (e instanceof RhinoException)
+            return ((RhinoException) e).details();
+        return (e.getMessage() != null) ? e.getMessage() : e.toString();
+    }
+
+    /**
+     * Scans one _id range in a worker scope of its own.
+     */
+    private class PartitionScan implements Callable<DBObject> {
+
+        private final int index;
+        private final Object min;
+        private final Object max;
+
+        private long documents = 0;
+
+        PartitionScan(int index, Object min, Object max) {
+            this.index = index;
+            this.min = min;
+            this.max = max;
+        }
+
+        @Override
+        public DBObject call() {
+            long start = System.currentTimeMillis();
+            String error = null;
+            MongoScope workerScope = MongoRuntime
+                    .createWorkerMongoScope(mongo.mongoScope);
+            try {
+                MongoRuntime.call(new MongoAction(workerScope) {
+                    @Override
+                    protected Object doRun(Context cx) {
+                        scan(cx, mongoScope);
+                        return null;
+                    }
+                });
+            } catch (RuntimeException e) {
+                error = errorMessage(e);
+            } finally {
+                try {
+                    workerScope.cleanup();
+                } catch (RuntimeException e) {
+                    if (error == null)
+                        error = errorMessage(e);
+                }
+            }
+
+            BasicDBObject result = new BasicDBObject("partition", index);
+            if (min != null)
+                result.put("min", min);
+            if (max != null)
+                result.put("max", max);
+            result.put("nDocuments", documents);
+            result.put("millis", System.currentTimeMillis() - start);
+            if (error != null)
+                result.put("errmsg", error);
+            return result;
+        }
+
+        private void scan(Context cx, MongoScope workerScope) {
+            String host = Context.toString(ScriptableObject.getProperty(mongo,
+                    "host"));
+            Scriptable workerMongo = cx.newObject(workerScope, "Mongo",
+                    new Object[] { host });
+            ScriptableObject.putProperty(workerScope, "db", ScriptableObject
+                    .callMethod(workerMongo, "getDB",
+                            new Object[] { ns.substring(0, ns.indexOf('.')) }));
+            Function function = cx.compileFunction(workerScope,
+                    functionSource, "parallelScan", 1, null);
+
+            Object jsQuery = BSONizer.convertBSONtoJS(workerScope,
+                    partitionQuery(query, min, max));
+            Object jsFields = (fields != null) ? BSONizer.convertBSONtoJS(
+                    workerScope, fields) : null;
+            InternalCursor cursor = (InternalCursor) ((Mongo) workerMongo)
+                    .find(ns, jsQuery, jsFields, 0, 0, 0, 0);
+            try {
+                NativeArray batch;
+                while ((batch = (NativeArray) cursor
+                        .nextBatch(ITERATION_BATCH_SIZE)).getLength() > 0) {
+                    for (int i = 0; i < batch.getLength(); i++) {
+                        function.call(cx, workerScope, workerScope,
+                                new Object[] { batch.get(i, batch) });
+                        documents++;
+                    }
+                    if (Thread.currentThread().isInterrupted())
+                        throw new MongoInterruptedException("parallel scan of "
+                                + ns + " interrupted", null);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+    }
+
+}
@@ -114,9 +114,14 @@ public abstract class ScriptableMongoObject extends ScriptableObject {
     /**
      * Overrides {@link ScriptableObject} to capture the top level
      * {@link MongoScope} instance in a local member variable.
+     * 
+     * Objects created while executing in a child of a shared
+     * {@link MongoScope} are re-parented to that child, constructors resolve
+     * to the shared scope but the object belongs to the executing child.
      */
     @Override
     public void setParentScope(Scriptable m) {
+        m = resolveExecutingChildScope(m);
         super.setParentScope(m);
         Scriptable topScope = ScriptableObject.getTopLevelScope(this);
         if (topScope instanceof MongoScope)
@@ -126,4 +131,22 @@ public abstract class ScriptableMongoObject extends ScriptableObject {
                     + " was not created within a MongoScope!");
     }
 
+    private static Scriptable resolveExecutingChildScope(Scriptable m) {
+        if (m == null)
+            return m;
+        Scriptable topScope = ScriptableObject.getTopLevelScope(m);
+        if ((topScope instanceof MongoScope)
+                && ((MongoScope) topScope).isShared()) {
+            Context context = Context.getCurrentContext();
+            if (context instanceof MongoContext) {
+                MongoScope executionScope = ((MongoContext) context)
+                        .getExecutingMongoScope();
+                if ((executionScope != null)
+                        && (executionScope.getPrototype() == topScope))
+                    return executionScope;
+            }
+        }
+        return m;
+    }
+
 }
@@ -104,6 +104,13 @@ public class Timestamp extends ScriptableMongoObject {
         return this.getClass().getSimpleName();
     }
 
+    public void setRealValues(long t, long i) {
+        this.t = t;
+        this.i = i;
+        put("t", this, this.t);
+        put("i", this, this.i);
+    }
+
     public long getT() {
         return t;
     }
@@ -0,0 +1,313 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.adaptor;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteRequestBuilder;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * Buffers the inserts, updates and removes of a {@link Mongo} connection in
+ * write-behind mode (see
+ * {@link com.github.nlloyd.hornofmongo.MongoScope#setUseWriteBehind(boolean)})
+ * and sends them as one ordered bulk write per namespace on
+ * {@link #flush()}, so the writes to a namespace are applied in the order the
+ * script made them.
+ * 
+ * Each buffered write is numbered by its position among the writes of the
+ * connection, failed writes are reported with that number. An ordered bulk
+ * write stops at the first failure, the writes of the namespace after it are
+ * reported as skipped.
+ * 
+ * @author nlloyd
+ * 
+ */
+class WriteBehindBuffer {
+
+    enum Type {
+        INSERT, UPDATE, REMOVE
+    }
+
+    /**
+     * One buffered write, the documents are BSON copies taken when the write
+     * was made.
+     */
+    static final class BufferedWrite {
+
+        final int op;
+        final Type type;
+        final DBObject query;
+        final DBObject document;
+        final boolean upsert;
+        final boolean multi;
+
+        BufferedWrite(int op, Type type, DBObject query, DBObject document,
+                boolean upsert, boolean multi) {
+            this.op = op;
+            this.type = type;
+            this.query = query;
+            this.document = document;
+            this.upsert = upsert;
+            this.multi = multi;
+        }
+
+    }
+
+    private final Mongo mongo;
+
+    private Map<String, List<BufferedWrite>> buffered = new LinkedHashMap<String, List<BufferedWrite>>();
+    private int bufferedCount = 0;
+    private long firstBufferedAt = 0;
+    private int nextOp = 1;
+
+    // results of the flush in progress
+    private int nInserted;
+    private int nMatched;
+    private int nRemoved;
+    private int nUpserted;
+    private BasicDBList writeErrors;
+    private BasicDBList skipped;
+
+    WriteBehindBuffer(Mongo mongo) {
+        this.mongo = mongo;
+    }
+
+    /**
+     * @return the number of writes buffered for ns, including this one
+     */
+    int insert(String ns, DBObject document) {
+        return add(ns, Type.INSERT, null, document, false, false);
+    }
+
+    /**
+     * @return the number of writes buffered for ns, including this one
+     */
+    int update(String ns, DBObject query, DBObject document, boolean upsert,
+            boolean multi) {
+        return add(ns, Type.UPDATE, query, document, upsert, multi);
+    }
+
+    /**
+     * @return the number of writes buffered for ns, including this one
+     */
+    int remove(String ns, DBObject query, boolean justOne) {
+        return add(ns, Type.REMOVE, query, null, false, !justOne);
+    }
+
+    private int add(String ns, Type type, DBObject query, DBObject document,
+            boolean upsert, boolean multi) {
+        List<BufferedWrite> writes = buffered.get(ns);
+        if (writes == null) {
+            writes = new ArrayList<BufferedWrite>();
+            buffered.put(ns, writes);
+        }
+        if (bufferedCount == 0)
+            firstBufferedAt = System.currentTimeMillis();
+        writes.add(new BufferedWrite(nextOp++, type, query, document, upsert,
+                multi));
+        bufferedCount++;
+        return writes.size();
+    }
+
+    boolean isEmpty() {
+        return bufferedCount == 0;
+    }
+
+    int size() {
+        return bufferedCount;
+    }
+
+    /**
+     * @return milliseconds since the oldest buffered write was made, 0 when
+     *         nothing is buffered
+     */
+    long getPendingMillis() {
+        if (bufferedCount == 0)
+            return 0;
+        return System.currentTimeMillis() - firstBufferedAt;
+    }
+
+    /**
+     * Sends all buffered writes, the buffer is empty afterwards even if some
+     * writes failed.
+     * 
+     * @return the result document: nWrites, nBulkWrites, nInserted, nMatched,
+     *         nRemoved, nUpserted, writeErrors (op, ns, type, code and errmsg
+     *         of each failed write) and skipped (op of each write not
+     *         executed after a failure)
+     */
+    BasicDBObject flush() {
+        Map<String, List<BufferedWrite>> writes = buffered;
+        int nWrites = bufferedCount;
+        buffered = new LinkedHashMap<String, List<BufferedWrite>>();
+        bufferedCount = 0;
+
+        nInserted = 0;
+        nMatched = 0;
+        nRemoved = 0;
+        nUpserted = 0;
+        writeErrors = new BasicDBList();
+        skipped = new BasicDBList();
+        for (Map.Entry<String, List<BufferedWrite>> entry : writes.entrySet()) {
+            String ns = entry.getKey();
+            List<BufferedWrite> nsWrites = entry.getValue();
+            int errorCount = writeErrors.size();
+            try {
+                executeBulkWrite(ns, nsWrites);
+            } catch (MongoException me) {
+                addWriteError(ns, nsWrites.get(0), me.getCode(),
+                        me.getMessage());
+            }
+            if (writeErrors.size() > errorCount) {
+                // an ordered bulk write stops at its first failing write
+                int firstFailed = Integer.MAX_VALUE;
+                for (int i = errorCount; i < writeErrors.size(); i++)
+                    firstFailed = Math.min(firstFailed,
+                            (Integer) ((DBObject) writeErrors.get(i))
+                                    .get("op"));
+                for (BufferedWrite write : nsWrites) {
+                    if (write.op > firstFailed)
+                        skipped.add(write.op);
+                }
+            }
+        }
+
+        BasicDBObject result = new BasicDBObject("nWrites", nWrites)
+                .append("nBulkWrites", writes.size())
+                .append("nInserted", nInserted).append("nMatched", nMatched)
+                .append("nRemoved", nRemoved).append("nUpserted", nUpserted)
+                .append("writeErrors", writeErrors).append("skipped", skipped);
+        writeErrors = null;
+        skipped = null;
+        return result;
+    }
+
+    /**
+     * Sends the writes of one namespace as an ordered bulk write.
+     */
+    protected void executeBulkWrite(String ns, List<BufferedWrite> writes) {
+        BulkWriteOperation bulk = mongo.getCollection(ns)
+                .initializeOrderedBulkOperation();
+        for (BufferedWrite write : writes) {
+            switch (write.type) {
+            case INSERT:
+                bulk.insert(write.document);
+                break;
+            case UPDATE:
+                BulkWriteRequestBuilder request = bulk.find(write.query);
+                boolean replacement = !isUpdateDocument(write.document);
+                if (write.upsert) {
+                    if (replacement)
+                        request.upsert().replaceOne(write.document);
+                    else if (write.multi)
+                        request.upsert().update(write.document);
+                    else
+                        request.upsert().updateOne(write.document);
+                } else if (replacement)
+                    request.replaceOne(write.document);
+                else if (write.multi)
+                    request.update(write.document);
+                else
+                    request.updateOne(write.document);
+                break;
+            case REMOVE:
+                if (write.multi)
+                    bulk.find(write.query).remove();
+                else
+                    bulk.find(write.query).removeOne();
+                break;
+            }
+        }
+
+        BulkWriteResult result;
+        try {
+            result = bulk.execute(mongo.getInnerMongo().getWriteConcern());
+        } catch (BulkWriteException bwe) {
+            for (BulkWriteError writeError : bwe.getWriteErrors())
+                addWriteError(ns, writes.get(writeError.getIndex()),
+                        writeError.getCode(), writeError.getMessage());
+            if (bwe.getWriteConcernError() != null)
+                addWriteError(ns, writes.get(0), bwe.getWriteConcernError()
+                        .getCode(), bwe.getWriteConcernError().getMessage());
+            result = bwe.getWriteResult();
+        }
+        if (result.isAcknowledged()) {
+            nInserted += result.getInsertedCount();
+            nMatched += result.getMatchedCount();
+            nRemoved += result.getRemovedCount();
+            nUpserted += result.getUpserts().size();
+        }
+    }
+
+    protected void addWriteError(String ns, BufferedWrite write, int code,
+            String message) {
+        writeErrors.add(new BasicDBObject("op", write.op).append("ns", ns)
+                .append("type", write.type.name().toLowerCase())
+                .append("code", code).append("errmsg", message));
+    }
+
+    /**
+     * @return true if the first field of the update document is a $ operator,
+     *         false for a replacement document
+     */
+    private static boolean isUpdateDocument(DBObject document) {
+        for (String key : document.keySet())
+            return key.startsWith("$");
+        return false;
+    }
+
+    /**
+     * @param flushResult
+     *            a result document of {@link #flush()}
+     * @return an exception describing the failed writes, null if none failed
+     */
+    static MongoException toException(DBObject flushResult) {
+        BasicDBList errors = (BasicDBList) flushResult.get("writeErrors");
+        if (errors.isEmpty())
+            return null;
+        DBObject first = (DBObject) errors.get(0);
+        StringBuilder message = new StringBuilder();
+        message.append(errors.size()).append(" buffered write(s) failed");
+        int skippedCount = ((BasicDBList) flushResult.get("skipped")).size();
+        if (skippedCount > 0)
+            message.append(", ").append(skippedCount)
+                    .append(" skipped after a failure");
+        message.append(", first: ").append(first.get("type"))
+                .append(" (op ").append(first.get("op")).append(") on ")
+                .append(first.get("ns")).append(": ")
+                .append(first.get("errmsg"));
+        return new MongoException((Integer) first.get("code"),
+                message.toString());
+    }
+
+}
@@ -0,0 +1,156 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.bson;
+
+import java.nio.charset.Charset;
+
+import org.bson.BSON;
+
+/**
+ * Helpers for reading raw BSON elements: a type byte, a cstring name and a
+ * type dependent value, all little endian.
+ * 
+ * @author nlloyd
+ * 
+ */
+final class BSONElements {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private BSONElements() {
+    }
+
+    static int readInt(byte[] bytes, int pos) {
+        return (bytes[pos] & 0xFF) | ((bytes[pos + 1] & 0xFF) << 8)
+                | ((bytes[pos + 2] & 0xFF) << 16)
+                | ((bytes[pos + 3] & 0xFF) << 24);
+    }
+
+    static long readLong(byte[] bytes, int pos) {
+        return (readInt(bytes, pos) & 0xFFFFFFFFL)
+                | ((long) readInt(bytes, pos + 4) << 32);
+    }
+
+    /**
+     * @return position of the terminating 0 of the cstring starting at pos
+     */
+    static int cstringEnd(byte[] bytes, int pos) {
+        while (bytes[pos] != 0)
+            pos++;
+        return pos;
+    }
+
+    static String utf8(byte[] bytes, int start, int end) {
+        // most field names are ascii, skip the decoder for those
+        boolean ascii = true;
+        for (int i = start; i < end; i++) {
+            if (bytes[i] < 0) {
+                ascii = false;
+                break;
+            }
+        }
+        if (ascii) {
+            char[] chars = new char[end - start];
+            for (int i = start; i < end; i++)
+                chars[i - start] = (char) bytes[i];
+            return new String(chars);
+        }
+        return new String(bytes, start, end - start, UTF8);
+    }
+
+    /**
+     * Reads a length prefixed BSON string.
+     */
+    static String readString(byte[] bytes, int pos) {
+        int length = readInt(bytes, pos);
+        return utf8(bytes, pos + 4, pos + 4 + length - 1);
+    }
+
+    /**
+     * @return the size of the value of the given type starting at pos
+     */
+    static int valueSize(byte type, byte[] bytes, int pos) {
+        switch (type) {
+        case BSON.EOO:
+        case BSON.UNDEFINED:
+        case BSON.NULL:
+        case BSON.MINKEY:
+        case BSON.MAXKEY:
+            return 0;
+        case BSON.BOOLEAN:
+            return 1;
+        case BSON.NUMBER_INT:
+            return 4;
+        case BSON.NUMBER:
+        case BSON.DATE:
+        case BSON.TIMESTAMP:
+        case BSON.NUMBER_LONG:
+            return 8;
+        case BSON.OID:
+            return 12;
+        case 19: // decimal128
+            return 16;
+        case BSON.STRING:
+        case BSON.CODE:
+        case BSON.SYMBOL:
+            return 4 + readInt(bytes, pos);
+        case BSON.OBJECT:
+        case BSON.ARRAY:
+        case BSON.CODE_W_SCOPE:
+            return readInt(bytes, pos);
+        case BSON.BINARY:
+            return 4 + 1 + readInt(bytes, pos);
+        case BSON.REGEX: {
+            int patternEnd = cstringEnd(bytes, pos);
+            return cstringEnd(bytes, patternEnd + 1) + 1 - pos;
+        }
+        case BSON.REF:
+            return 4 + readInt(bytes, pos) + 12;
+        default:
+            throw new IllegalArgumentException("unsupported BSON type: "
+                    + type);
+        }
+    }
+
+    /**
+     * @return true if the document starting at pos has "$ref" and "$id" as
+     *         its first two fields
+     */
+    static boolean isDBRef(byte[] bytes, int pos) {
+        int end = pos + readInt(bytes, pos) - 1;
+        int first = pos + 4;
+        if (first >= end || !nameEquals(bytes, first + 1, "$ref"))
+            return false;
+        int firstValue = cstringEnd(bytes, first + 1) + 1;
+        int second = firstValue + valueSize(bytes[first], bytes, firstValue);
+        return second < end && nameEquals(bytes, second + 1, "$id");
+    }
+
+    private static boolean nameEquals(byte[] bytes, int pos, String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (bytes[pos + i] != name.charAt(i))
+                return false;
+        }
+        return bytes[pos + name.length()] == 0;
+    }
+
+}
@@ -0,0 +1,281 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.bson;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.bson.BSON;
+import org.bson.BSONObject;
+import org.bson.types.BSONTimestamp;
+import org.bson.types.Binary;
+import org.bson.types.Code;
+import org.bson.types.CodeWScope;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+import org.bson.types.Symbol;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.Wrapper;
+
+import com.github.nlloyd.hornofmongo.util.BSONizer;
+import com.mongodb.DBRef;
+
+/**
+ * Computes the exact size of the BSON {@link HornOfMongoJSEncoder} writes
+ * for a JS document without writing it, walking the JS objects and arrays
+ * the same way. The cost depends on the number of fields, not on the size of
+ * the values.
+ * 
+ * @author nlloyd
+ * 
+ */
+public final class BSONSizeCalculator {
+
+    /**
+     * int32 size prefix and trailing null byte of a document.
+     */
+    private static final int DOCUMENT_OVERHEAD = 5;
+
+    /**
+     * Size of values the encoder can't serialize and leaves out.
+     */
+    private static final int NOT_WRITTEN = -1;
+
+    private BSONSizeCalculator() {
+    }
+
+    /**
+     * @param jsObject
+     *            a JS object or array, or a BSON document as built by
+     *            {@link BSONizer}
+     * @return the size in bytes of the document encoded as BSON
+     * @throws IllegalArgumentException
+     *             if the value can't be encoded as a document
+     */
+    public static int sizeOf(Object jsObject) {
+        if (jsObject instanceof Wrapper)
+            jsObject = ((Wrapper) jsObject).unwrap();
+        if (jsObject instanceof NativeArray)
+            return sizeOfJSArray((NativeArray) jsObject);
+        if (jsObject instanceof NativeObject)
+            return sizeOfJSObject((NativeObject) jsObject);
+        if (jsObject instanceof BSONObject)
+            return sizeOfBSONObject((BSONObject) jsObject);
+        throw new IllegalArgumentException("can't compute the BSON size of "
+                + jsObject);
+    }
+
+    private static int sizeOfJSObject(Scriptable jsObject) {
+        int size = DOCUMENT_OVERHEAD;
+        for (Object id : jsObject.getIds()) {
+            if (id instanceof Integer) {
+                int index = (Integer) id;
+                size += sizeOfJSField(indexNameSize(index),
+                        jsObject.get(index, jsObject));
+            } else {
+                String key = (String) id;
+                if (HornOfMongoJSEncoder.TRANSIENT_FIELDS_KEY.equals(key))
+                    continue;
+                size += sizeOfJSField(nameSize(key),
+                        jsObject.get(key, jsObject));
+            }
+        }
+        return size;
+    }
+
+    private static int sizeOfJSArray(NativeArray jsArray) {
+        int size = DOCUMENT_OVERHEAD;
+        int length = (int) jsArray.getLength();
+        for (int i = 0; i < length; i++)
+            size += sizeOfJSField(indexNameSize(i), jsArray.get(i));
+        return size;
+    }
+
+    private static int sizeOfJSField(int nameSize, Object value) {
+        if (value == Scriptable.NOT_FOUND)
+            value = null;
+        else if (value instanceof Wrapper)
+            value = ((Wrapper) value).unwrap();
+
+        int valueSize;
+        if (value instanceof NativeArray) {
+            valueSize = sizeOfJSArray((NativeArray) value);
+        } else if (value instanceof NativeObject) {
+            Date date = HornOfMongoJSEncoder
+                    .parseUTCDate((NativeObject) value);
+            valueSize = date != null ? 8 : sizeOfJSObject((NativeObject) value);
+        } else {
+            valueSize = sizeOfValue(HornOfMongoJSEncoder.toBSONLeaf(value));
+        }
+        return elementSize(nameSize, valueSize);
+    }
+
+    private static int sizeOfBSONObject(BSONObject bsonObject) {
+        int size = DOCUMENT_OVERHEAD;
+        for (String key : bsonObject.keySet()) {
+            if (HornOfMongoJSEncoder.TRANSIENT_FIELDS_KEY.equals(key))
+                continue;
+            size += elementSize(nameSize(key), sizeOfValue(bsonObject.get(key)));
+        }
+        return size;
+    }
+
+    private static int sizeOfIterable(Iterable<?> bsonArray) {
+        int size = DOCUMENT_OVERHEAD;
+        int index = 0;
+        for (Object value : bsonArray)
+            size += elementSize(indexNameSize(index++), sizeOfValue(value));
+        return size;
+    }
+
+    private static int elementSize(int nameSize, int valueSize) {
+        return valueSize == NOT_WRITTEN ? 0 : 1 + nameSize + valueSize;
+    }
+
+    /**
+     * @return the size of a value as written by {@link HornOfMongoJSEncoder}
+     *         (or {@link HornOfMongoBSONEncoder}), element type and name
+     *         excluded, or {@link #NOT_WRITTEN}
+     */
+    @SuppressWarnings("deprecation")
+    private static int sizeOfValue(Object value) {
+        if (value == null)
+            return 0;
+        else if (value instanceof String || value instanceof Symbol)
+            return stringSize(value.toString());
+        else if (value instanceof Double || value instanceof Float)
+            return 8;
+        else if (value instanceof Integer || value instanceof Short
+                || value instanceof Byte || value instanceof AtomicInteger)
+            return 4;
+        else if (value instanceof Long || value instanceof AtomicLong)
+            return 8;
+        else if (value instanceof Boolean)
+            return 1;
+        else if (value instanceof ObjectId)
+            return 12;
+        else if (value instanceof Date || value instanceof BSONTimestamp)
+            return 8;
+        else if (value instanceof MinKey || value instanceof MaxKey)
+            return 0;
+        else if (value instanceof Pattern)
+            return cstringSize(((Pattern) value).pattern())
+                    + cstringSize(BSON.regexFlags(((Pattern) value).flags()));
+        else if (value instanceof CodeWScope)
+            return 4 + stringSize(((CodeWScope) value).getCode())
+                    + sizeOfBSONObject(((CodeWScope) value).getScope());
+        else if (value instanceof Code)
+            return stringSize(((Code) value).getCode());
+        else if (value instanceof byte[])
+            return binarySize(BSON.B_GENERAL, ((byte[]) value).length);
+        else if (value instanceof Binary)
+            return binarySize(((Binary) value).getType(),
+                    ((Binary) value).length());
+        else if (value instanceof UUID)
+            return binarySize(BSON.B_UUID, 16);
+        else if (value instanceof DBRef)
+            return DOCUMENT_OVERHEAD
+                    + elementSize(cstringSize("$ref"),
+                            stringSize(((DBRef) value).getCollectionName()))
+                    + elementSize(cstringSize("$id"),
+                            sizeOfValue(((DBRef) value).getId()));
+        else if (value instanceof BSONObject)
+            return sizeOfBSONObject((BSONObject) value);
+        else if (value instanceof Map)
+            return sizeOfMap((Map<?, ?>) value);
+        else if (value instanceof Iterable)
+            return sizeOfIterable((Iterable<?>) value);
+        else if (value instanceof Object[])
+            return sizeOfIterable(Arrays.asList((Object[]) value));
+        // HornOfMongoBSONEncoder leaves out anything else, undefined included
+        return NOT_WRITTEN;
+    }
+
+    private static int sizeOfMap(Map<?, ?> bsonMap) {
+        int size = DOCUMENT_OVERHEAD;
+        for (Map.Entry<?, ?> entry : bsonMap.entrySet())
+            size += elementSize(nameSize(String.valueOf(entry.getKey())),
+                    sizeOfValue(entry.getValue()));
+        return size;
+    }
+
+    private static int binarySize(byte type, int length) {
+        // subtype 2 repeats the length inside the data
+        return 4 + 1 + (type == BSON.B_BINARY ? 4 : 0) + length;
+    }
+
+    private static int stringSize(String value) {
+        return 4 + cstringSize(value);
+    }
+
+    private static int cstringSize(String value) {
+        return utf8Length(value) + 1;
+    }
+
+    private static int nameSize(String name) {
+        if (name.indexOf('\0') >= 0)
+            throw new IllegalArgumentException(
+                    "Document field names can't have a NULL character. (Bad Key: '"
+                            + name + "')");
+        return cstringSize(name);
+    }
+
+    private static int indexNameSize(int index) {
+        int digits = 1;
+        for (int rest = index / 10; rest > 0; rest /= 10)
+            digits++;
+        return digits + 1;
+    }
+
+    /**
+     * @return the number of bytes of the UTF-8 encoding of the string
+     */
+    static int utf8Length(CharSequence value) {
+        int length = value.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    bytes += 1;
+                } else if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    // 4 bytes for the pair
+                    bytes += 2;
+                    i++;
+                } else {
+                    bytes += 2;
+                }
+            }
+        }
+        return bytes;
+    }
+
+}
@@ -0,0 +1,279 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.bson;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.bson.BSON;
+import org.bson.BSONCallback;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+import com.github.nlloyd.hornofmongo.util.JSValueFactory;
+import com.mongodb.Bytes;
+import com.mongodb.DBCallback;
+
+/**
+ * {@link DBCallback} that builds the JS objects for a BSON document as the
+ * java driver reads it, instead of building a {@link com.mongodb.DBObject}
+ * that is then copied into JS objects. Produces the same JS values as
+ * {@link JSValueFactory#convert(Context, Object)} on the output of
+ * {@link HornOfMongoDBCallback}.
+ * 
+ * Must be used with a {@link Context} entered on the current thread. The
+ * decoded document is returned by {@link #get()} wrapped in a
+ * {@link ScriptableDBObject}.
+ * 
+ * @author nlloyd
+ * 
+ */
+public class HornOfMongoJSCallback implements DBCallback {
+
+    /**
+     * An object or array being built.
+     */
+    private static class Frame {
+        final Frame parent;
+        final String name;
+        final Scriptable object;
+        final List<Object> elements;
+        int fieldCount = 0;
+        boolean dbRefFields = false;
+
+        Frame(Frame parent, String name, Scriptable object,
+                List<Object> elements) {
+            this.parent = parent;
+            this.name = name;
+            this.object = object;
+            this.elements = elements;
+        }
+    }
+
+    private final JSValueFactory factory;
+    private Frame current;
+    private Object root;
+
+    public HornOfMongoJSCallback(JSValueFactory factory) {
+        this.factory = factory;
+    }
+
+    private Context cx() {
+        return Context.getCurrentContext();
+    }
+
+    private void put(String name, Object value) {
+        if (current.elements != null) {
+            current.elements.add(value);
+            return;
+        }
+        // mirrors DefaultDBCallback, which turns {$ref, $id, ...} into DBRef
+        int field = current.fieldCount++;
+        if (field == 0)
+            current.dbRefFields = "$ref".equals(name);
+        else if (field == 1)
+            current.dbRefFields = current.dbRefFields && "$id".equals(name);
+        factory.setProperty(cx(), current.object, name, value);
+    }
+
+    private Object done() {
+        Frame frame = current;
+        Object value;
+        if (frame.elements != null) {
+            value = factory.newArray(frame.elements.toArray());
+        } else if (frame.parent != null && frame.fieldCount >= 2
+                && frame.dbRefFields) {
+            value = factory.newDBRef(cx(),
+                    (String) ScriptableObject.getProperty(frame.object, "$ref"),
+                    ScriptableObject.getProperty(frame.object, "$id"));
+        } else {
+            value = frame.object;
+        }
+        current = frame.parent;
+        if (current == null)
+            root = value;
+        else
+            put(frame.name, value);
+        return value;
+    }
+
+    @Override
+    public void objectStart() {
+        objectStart(null);
+    }
+
+    @Override
+    public void objectStart(String name) {
+        current = new Frame(current, name, factory.newObject(), null);
+    }
+
+    @Override
+    public Object objectDone() {
+        return done();
+    }
+
+    @Override
+    public void arrayStart() {
+        arrayStart(null);
+    }
+
+    @Override
+    public void arrayStart(String name) {
+        current = new Frame(current, name, null, new ArrayList<Object>());
+    }
+
+    @Override
+    public Object arrayDone() {
+        return done();
+    }
+
+    @Override
+    public void reset() {
+        current = null;
+        root = null;
+    }
+
+    @Override
+    public Object get() {
+        if (root instanceof Scriptable)
+            return new ScriptableDBObject((Scriptable) root);
+        return root;
+    }
+
+    @Override
+    public BSONCallback createBSONCallback() {
+        return new HornOfMongoJSCallback(factory);
+    }
+
+    @Override
+    public void gotNull(String name) {
+        put(name, null);
+    }
+
+    @Override
+    public void gotUndefined(String name) {
+        put(name, null);
+    }
+
+    @Override
+    public void gotMinKey(String name) {
+        put(name, factory.convert(cx(), new MinKey()));
+    }
+
+    @Override
+    public void gotMaxKey(String name) {
+        put(name, factory.convert(cx(), new MaxKey()));
+    }
+
+    @Override
+    public void gotBoolean(String name, boolean value) {
+        put(name, value);
+    }
+
+    @Override
+    public void gotDouble(String name, double value) {
+        put(name, value);
+    }
+
+    @Override
+    public void gotInt(String name, int value) {
+        put(name, Double.valueOf(value));
+    }
+
+    @Override
+    public void gotLong(String name, long value) {
+        put(name, factory.newNumberLong(value));
+    }
+
+    @Override
+    public void gotDate(String name, long millis) {
+        put(name, factory.newDate(cx(), millis));
+    }
+
+    @Override
+    public void gotString(String name, String value) {
+        put(name, value);
+    }
+
+    @Override
+    public void gotSymbol(String name, String value) {
+        put(name, value);
+    }
+
+    @Override
+    public void gotRegex(String name, String pattern, String flags) {
+        // round trip through the java flags to drop the same unsupported
+        // options as the DBObject path does
+        put(name, factory.newRegExp(cx(), pattern,
+                Bytes.regexFlags(Bytes.regexFlags(flags))));
+    }
+
+    @Override
+    public void gotTimestamp(String name, int time, int increment) {
+        put(name, factory.newTimestamp(time, increment));
+    }
+
+    @Override
+    public void gotObjectId(String name, ObjectId id) {
+        put(name, factory.newObjectId(id));
+    }
+
+    @Override
+    public void gotDBRef(String name, String ns, ObjectId id) {
+        put(name, factory.newDBRef(cx(), ns, factory.newObjectId(id)));
+    }
+
+    @Override
+    @Deprecated
+    public void gotBinaryArray(String name, byte[] data) {
+        gotBinary(name, BSON.B_GENERAL, data);
+    }
+
+    @Override
+    public void gotBinary(String name, byte type, byte[] data) {
+        if (type == BSON.B_GENERAL || type == BSON.B_BINARY)
+            put(name, factory.newBinData(BSON.B_GENERAL, data));
+        else
+            put(name, factory.newBinData(type, data));
+    }
+
+    @Override
+    public void gotUUID(String name, long part1, long part2) {
+        put(name, factory.convert(cx(), new UUID(part1, part2)));
+    }
+
+    @Override
+    public void gotCode(String name, String code) {
+        put(name, code);
+    }
+
+    @Override
+    public void gotCodeWScope(String name, String code, Object scope) {
+        put(name, code);
+    }
+
+}
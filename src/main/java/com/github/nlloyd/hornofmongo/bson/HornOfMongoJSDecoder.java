@@ -0,0 +1,131 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.bson;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.mozilla.javascript.Context;
+
+import com.github.nlloyd.hornofmongo.MongoRuntime;
+import com.github.nlloyd.hornofmongo.action.MongoAction;
+import com.github.nlloyd.hornofmongo.util.JSValueFactory;
+import com.mongodb.DBCallback;
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+
+/**
+ * Decoder that builds the JS objects for each document straight from the
+ * BSON read off the wire using a {@link HornOfMongoJSCallback}. Decoded
+ * documents are {@link ScriptableDBObject} instances belonging to the
+ * {@link com.github.nlloyd.hornofmongo.MongoScope} of the
+ * {@link JSValueFactory} given to the factory.
+ * 
+ * @author nlloyd
+ * 
+ */
+public class HornOfMongoJSDecoder extends HornOfMongoBSONDecoder {
+
+    static class HornOfMongoJSDecoderFactory implements DBDecoderFactory {
+        private final JSValueFactory valueFactory;
+
+        HornOfMongoJSDecoderFactory(JSValueFactory valueFactory) {
+            this.valueFactory = valueFactory;
+        }
+
+        @Override
+        public DBDecoder create() {
+            return new HornOfMongoJSDecoder(valueFactory);
+        }
+
+        @Override
+        public String toString() {
+            return "HornOfMongoJSDecoder.HornOfMongoJSDecoderFactory";
+        }
+    }
+
+    /**
+     * @param valueFactory
+     * @return a {@link DBDecoderFactory} for decoders building JS values with
+     *         the given {@link JSValueFactory}
+     */
+    public static DBDecoderFactory factory(JSValueFactory valueFactory) {
+        return new HornOfMongoJSDecoderFactory(valueFactory);
+    }
+
+    private final JSValueFactory valueFactory;
+
+    public HornOfMongoJSDecoder(JSValueFactory valueFactory) {
+        this.valueFactory = valueFactory;
+    }
+
+    @Override
+    public DBCallback getDBCallback(DBCollection collection) {
+        return new HornOfMongoJSCallback(valueFactory);
+    }
+
+    @Override
+    public DBObject decode(final byte[] bytes, final DBCollection collection) {
+        if (Context.getCurrentContext() == null) {
+            // cursor read from java code outside of any script
+            return (DBObject) MongoRuntime.call(new MongoAction(valueFactory
+                    .getScope()) {
+                @Override
+                protected Object doRun(Context cx) {
+                    return HornOfMongoJSDecoder.super.decode(bytes, collection);
+                }
+            });
+        }
+        return super.decode(bytes, collection);
+    }
+
+    @Override
+    public DBObject decode(final InputStream in, final DBCollection collection)
+            throws IOException {
+        if (Context.getCurrentContext() == null) {
+            Object result = MongoRuntime.call(new MongoAction(valueFactory
+                    .getScope()) {
+                @Override
+                protected Object doRun(Context cx) {
+                    try {
+                        return HornOfMongoJSDecoder.super.decode(in,
+                                collection);
+                    } catch (IOException e) {
+                        return e;
+                    }
+                }
+            });
+            if (result instanceof IOException)
+                throw (IOException) result;
+            return (DBObject) result;
+        }
+        return super.decode(in, collection);
+    }
+
+    @Override
+    public String toString() {
+        return "HornOfMongoJSDecoder";
+    }
+
+}
@@ -0,0 +1,237 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.bson;
+
+import java.util.Date;
+import java.util.Map;
+
+import org.apache.commons.lang3.time.DateUtils;
+import org.bson.BSONObject;
+import org.bson.BsonBinaryWriter;
+import org.bson.io.OutputBuffer;
+import org.mozilla.javascript.ConsString;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.Wrapper;
+
+import com.github.nlloyd.hornofmongo.adaptor.NumberInt;
+import com.github.nlloyd.hornofmongo.adaptor.NumberLong;
+import com.github.nlloyd.hornofmongo.adaptor.ObjectId;
+import com.github.nlloyd.hornofmongo.util.BSONizer;
+import com.mongodb.DBEncoder;
+import com.mongodb.DBEncoderFactory;
+
+/**
+ * Encoder that writes a {@link ScriptableDBObject} by walking its JS objects
+ * and arrays and writing each field straight into the output buffer, instead
+ * of copying the whole JS object graph into
+ * {@link com.mongodb.BasicDBObject}s with {@link BSONizer} first. Leaf values
+ * are encoded exactly as {@link BSONizer#convertJStoBSON(Object, boolean)}
+ * followed by {@link HornOfMongoBSONEncoder} would.
+ * 
+ * Any other {@link BSONObject} is encoded as {@link HornOfMongoBSONEncoder}
+ * does.
+ * 
+ * @author nlloyd
+ * 
+ */
+public class HornOfMongoJSEncoder extends HornOfMongoBSONEncoder {
+
+    public static class HornOfMongoJSEncoderFactory implements
+            DBEncoderFactory {
+        @Override
+        public DBEncoder create() {
+            return new HornOfMongoJSEncoder();
+        }
+
+        @Override
+        public String toString() {
+            return "HornOfMongoJSEncoder.HornOfMongoJSEncoderFactory";
+        }
+    }
+
+    public static HornOfMongoJSEncoderFactory FACTORY = new HornOfMongoJSEncoderFactory();
+
+    private static final String ID_KEY = "_id";
+
+    private static final String DATE_KEY = "$date";
+
+    static final String TRANSIENT_FIELDS_KEY = "_transientFields";
+
+    private static final String[] DATE_PATTERNS = new String[] {
+            "yyyy-MM-dd'T'HH:mm:ss'Z'", "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'" };
+
+    public HornOfMongoJSEncoder() {
+    }
+
+    /**
+     * @param jsObject
+     * @return true if the given value is a JS object that can be written by
+     *         this encoder as a top level document
+     */
+    public static boolean isEncodable(Object jsObject) {
+        return (jsObject instanceof NativeObject)
+                && !((NativeObject) jsObject).has(DATE_KEY,
+                        (NativeObject) jsObject);
+    }
+
+    @Override
+    public int writeObject(OutputBuffer buf, BSONObject o) {
+        if (!(o instanceof ScriptableDBObject))
+            return super.writeObject(buf, o);
+        set(buf);
+        try {
+            int start = buf.getPosition();
+            ScriptableDBObject document = (ScriptableDBObject) o;
+            putJSObject(document.getScriptable(), document.getJavaFields(),
+                    true);
+            return buf.getPosition() - start;
+        } finally {
+            done();
+        }
+    }
+
+    private void putJSObject(Scriptable jsObject,
+            Map<String, Object> javaFields, boolean topLevel) {
+        BsonBinaryWriter writer = getBsonWriter();
+        writer.writeStartDocument();
+        if (topLevel) {
+            if (javaFields != null && javaFields.containsKey(ID_KEY))
+                _putObjectField(ID_KEY, javaFields.get(ID_KEY));
+            else if (jsObject.has(ID_KEY, jsObject))
+                putJSField(ID_KEY, jsObject.get(ID_KEY, jsObject));
+        }
+        for (Object id : jsObject.getIds()) {
+            Object value;
+            String key;
+            if (id instanceof Integer) {
+                key = id.toString();
+                value = jsObject.get((Integer) id, jsObject);
+            } else {
+                key = (String) id;
+                if ((topLevel && ID_KEY.equals(key))
+                        || (javaFields != null && javaFields.containsKey(key)))
+                    continue;
+                value = jsObject.get(key, jsObject);
+            }
+            putJSField(key, value);
+        }
+        if (javaFields != null) {
+            for (Map.Entry<String, Object> field : javaFields.entrySet()) {
+                if (!(topLevel && ID_KEY.equals(field.getKey())))
+                    _putObjectField(field.getKey(), field.getValue());
+            }
+        }
+        writer.writeEndDocument();
+    }
+
+    private void putJSArray(NativeArray jsArray) {
+        BsonBinaryWriter writer = getBsonWriter();
+        writer.writeStartArray();
+        int length = (int) jsArray.getLength();
+        for (int i = 0; i < length; i++)
+            putJSField(String.valueOf(i), jsArray.get(i));
+        writer.writeEndArray();
+    }
+
+    private void putJSField(String name, Object value) {
+        if (TRANSIENT_FIELDS_KEY.equals(name))
+            return;
+        if (value == Scriptable.NOT_FOUND)
+            value = null;
+        else if (value instanceof Wrapper)
+            value = ((Wrapper) value).unwrap();
+
+        if (value instanceof NativeArray) {
+            checkName(name);
+            putName(name);
+            putJSArray((NativeArray) value);
+        } else if (value instanceof NativeObject) {
+            Date date = parseUTCDate((NativeObject) value);
+            if (date != null) {
+                _putObjectField(name, date);
+            } else {
+                checkName(name);
+                putName(name);
+                putJSObject((NativeObject) value, null, false);
+            }
+        } else {
+            _putObjectField(name, toBSONLeaf(value));
+        }
+    }
+
+    /**
+     * {"$date": "..."} objects holding a parsable UTC date are written as
+     * dates, like {@link BSONizer} does.
+     * 
+     * @return the date, or null if the object isn't such a date object
+     */
+    static Date parseUTCDate(NativeObject jsObject) {
+        if (!jsObject.has(DATE_KEY, jsObject))
+            return null;
+        Object value = jsObject.get(DATE_KEY, jsObject);
+        if (value == null)
+            return null;
+        try {
+            return DateUtils.parseDate(value.toString(), DATE_PATTERNS);
+        } catch (java.text.ParseException e) {
+            return null;
+        }
+    }
+
+    private void checkName(String name) {
+        if (name.indexOf('\0') >= 0)
+            throw new IllegalArgumentException(
+                    "Document field names can't have a NULL character. (Bad Key: '"
+                            + name + "')");
+    }
+
+    /**
+     * Converts a JS value that isn't an object or an array, avoiding
+     * {@link BSONizer} for the common types.
+     */
+    static Object toBSONLeaf(Object value) {
+        if (value == null || value instanceof String
+                || value instanceof Double || value instanceof Boolean)
+            return value;
+        else if (value instanceof Integer)
+            return Double.valueOf((Integer) value);
+        else if (value instanceof Long)
+            return Double.valueOf((Long) value);
+        else if (value instanceof ConsString)
+            return value.toString();
+        else if (value instanceof ObjectId)
+            return ((ObjectId) value).getRealObjectId();
+        else if (value instanceof NumberLong)
+            return Long.valueOf(((NumberLong) value).getRealLong());
+        else if (value instanceof NumberInt)
+            return Integer.valueOf(((NumberInt) value).getRealInt());
+        return BSONizer.convertJStoBSON(value, true);
+    }
+
+    @Override
+    public String toString() {
+        return "HornOfMongoJSEncoder";
+    }
+
+}
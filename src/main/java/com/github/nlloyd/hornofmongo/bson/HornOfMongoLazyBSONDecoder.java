@@ -0,0 +1,86 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.bson;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.bson.io.Bits;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.LazyDBCallback;
+
+/**
+ * Decoder that keeps each document as raw BSON in a
+ * {@link HornOfMongoLazyDBObject}, used for cursors of a
+ * {@link com.github.nlloyd.hornofmongo.MongoScope} with lazy documents turned
+ * on.
+ * 
+ * @author nlloyd
+ * 
+ */
+public class HornOfMongoLazyBSONDecoder extends HornOfMongoBSONDecoder {
+
+    static class HornOfMongoLazyBSONDecoderFactory implements DBDecoderFactory {
+        @Override
+        public DBDecoder create() {
+            return new HornOfMongoLazyBSONDecoder();
+        }
+
+        @Override
+        public String toString() {
+            return "HornOfMongoLazyBSONDecoder.HornOfMongoLazyBSONDecoderFactory";
+        }
+    }
+
+    public static DBDecoderFactory FACTORY = new HornOfMongoLazyBSONDecoderFactory();
+
+    public HornOfMongoLazyBSONDecoder() {
+    }
+
+    @Override
+    public DBObject decode(byte[] bytes, DBCollection collection) {
+        return new HornOfMongoLazyDBObject(bytes, new LazyDBCallback(
+                collection));
+    }
+
+    @Override
+    public DBObject decode(InputStream in, DBCollection collection)
+            throws IOException {
+        byte[] sizeBytes = new byte[4];
+        Bits.readFully(in, sizeBytes);
+        int size = Bits.readInt(sizeBytes);
+        byte[] bytes = new byte[size];
+        System.arraycopy(sizeBytes, 0, bytes, 0, 4);
+        Bits.readFully(in, bytes, 4, size - 4);
+        return decode(bytes, collection);
+    }
+
+    @Override
+    public String toString() {
+        return "HornOfMongoLazyBSONDecoder";
+    }
+
+}
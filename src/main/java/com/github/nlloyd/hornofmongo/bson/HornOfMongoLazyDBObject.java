@@ -0,0 +1,55 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.bson;
+
+import org.bson.LazyBSONCallback;
+
+import com.mongodb.LazyDBObject;
+
+/**
+ * {@link LazyDBObject} that exposes the raw BSON it wraps so the document can
+ * be handed to JS as a {@link LazyBSONDocument}.
+ * 
+ * @author nlloyd
+ * 
+ */
+public class HornOfMongoLazyDBObject extends LazyDBObject {
+
+    public HornOfMongoLazyDBObject(byte[] bytes, LazyBSONCallback callback) {
+        super(bytes, callback);
+    }
+
+    /**
+     * @return the buffer holding the document
+     */
+    public byte[] getRawBytes() {
+        return getBytes();
+    }
+
+    /**
+     * @return offset of the document in {@link #getRawBytes()}
+     */
+    public int getRawOffset() {
+        return getOffset();
+    }
+
+}
@@ -0,0 +1,363 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.bson;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.bson.BSON;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+import com.github.nlloyd.hornofmongo.MongoRuntime;
+import com.github.nlloyd.hornofmongo.action.MongoAction;
+import com.github.nlloyd.hornofmongo.util.JSValueFactory;
+import com.mongodb.Bytes;
+
+/**
+ * A plain JS object backed by the raw BSON of a document. Field names are
+ * read on first use of the object and each field value is decoded the first
+ * time it is read, so a script that only looks at a few fields of a large
+ * document never decodes the rest. Embedded documents are themselves
+ * {@link LazyBSONDocument} instances.
+ * 
+ * Undecoded fields hold a placeholder value so that property order and
+ * enumeration behave exactly as for a fully decoded object. Assigning or
+ * deleting a field replaces the placeholder like any other value. Once every
+ * field has been decoded the raw BSON is released.
+ * 
+ * @author nlloyd
+ * 
+ */
+public class LazyBSONDocument extends NativeObject {
+
+    private static final long serialVersionUID = -6480683452711593779L;
+
+    /**
+     * Value of fields not yet decoded.
+     */
+    private static final Object UNDECODED = new Object();
+
+    private transient JSValueFactory factory;
+
+    private transient byte[] bytes;
+    private final int offset;
+
+    /**
+     * Element offsets of the fields not decoded yet, keyed by field name or
+     * by index for array index names. Null until the document is indexed.
+     */
+    private transient Map<Object, Integer> undecoded;
+
+    /**
+     * Use {@link JSValueFactory#newLazyDocument(byte[], int)}.
+     * 
+     * @param factory
+     * @param bytes
+     *            buffer holding the BSON document
+     * @param offset
+     *            offset of the document in the buffer
+     */
+    public LazyBSONDocument(JSValueFactory factory, byte[] bytes, int offset) {
+        this.factory = factory;
+        this.bytes = bytes;
+        this.offset = offset;
+    }
+
+    /**
+     * @return true if some fields have not been decoded yet
+     */
+    public boolean isPartiallyDecoded() {
+        index();
+        return !undecoded.isEmpty();
+    }
+
+    /**
+     * Reads the field names and creates a placeholder slot for each field, in
+     * document order.
+     */
+    private void index() {
+        if (undecoded != null)
+            return;
+        undecoded = new HashMap<Object, Integer>();
+        int end = offset + BSONElements.readInt(bytes, offset) - 1;
+        int pos = offset + 4;
+        while (pos < end) {
+            int nameEnd = BSONElements.cstringEnd(bytes, pos + 1);
+            String name = BSONElements.utf8(bytes, pos + 1, nameEnd);
+            long index = ScriptRuntime.indexFromString(name);
+            if (index >= 0) {
+                undecoded.put(Integer.valueOf((int) index), pos);
+                super.put((int) index, this, UNDECODED);
+            } else {
+                undecoded.put(name, pos);
+                super.put(name, this, UNDECODED);
+            }
+            pos = nameEnd + 1 + BSONElements.valueSize(bytes[pos], bytes, nameEnd + 1);
+        }
+        if (undecoded.isEmpty())
+            bytes = null;
+    }
+
+    private Object decode(final Object key) {
+        Context cx = Context.getCurrentContext();
+        if (cx == null) {
+            // read from java code outside of any script
+            return MongoRuntime.call(new MongoAction(factory.getScope()) {
+                @Override
+                protected Object doRun(Context cx) {
+                    return decode(key);
+                }
+            });
+        }
+        Integer pos = undecoded.remove(key);
+        if (pos == null)
+            return NOT_FOUND;
+        int valuePos = BSONElements.cstringEnd(bytes, pos + 1) + 1;
+        Object value = decodeValue(cx, factory, bytes, bytes[pos], valuePos);
+        if (key instanceof Integer)
+            super.put((Integer) key, this, value);
+        else
+            super.put((String) key, this, value);
+        if (undecoded.isEmpty())
+            bytes = null;
+        return value;
+    }
+
+    private void forget(Object key) {
+        if ((undecoded != null) && (undecoded.remove(key) != null)
+                && undecoded.isEmpty())
+            bytes = null;
+    }
+
+    /**
+     * Decodes every remaining field.
+     */
+    public void decodeAll() {
+        index();
+        for (Object key : undecoded.keySet().toArray())
+            decode(key);
+    }
+
+    @Override
+    public Object get(String name, Scriptable start) {
+        index();
+        Object value = super.get(name, start);
+        if (value == UNDECODED)
+            value = decode(name);
+        return value;
+    }
+
+    @Override
+    public Object get(int index, Scriptable start) {
+        index();
+        Object value = super.get(index, start);
+        if (value == UNDECODED)
+            value = decode(Integer.valueOf(index));
+        return value;
+    }
+
+    @Override
+    public boolean has(String name, Scriptable start) {
+        index();
+        return super.has(name, start);
+    }
+
+    @Override
+    public boolean has(int index, Scriptable start) {
+        index();
+        return super.has(index, start);
+    }
+
+    @Override
+    public void put(String name, Scriptable start, Object value) {
+        index();
+        if (start == this)
+            forget(name);
+        super.put(name, start, value);
+    }
+
+    @Override
+    public void put(int index, Scriptable start, Object value) {
+        index();
+        if (start == this)
+            forget(Integer.valueOf(index));
+        super.put(index, start, value);
+    }
+
+    @Override
+    public void delete(String name) {
+        index();
+        forget(name);
+        super.delete(name);
+    }
+
+    @Override
+    public void delete(int index) {
+        index();
+        forget(Integer.valueOf(index));
+        super.delete(index);
+    }
+
+    @Override
+    public Object[] getIds() {
+        index();
+        return super.getIds();
+    }
+
+    @Override
+    public Object[] getAllIds() {
+        index();
+        return super.getAllIds();
+    }
+
+    @Override
+    protected ScriptableObject getOwnPropertyDescriptor(Context cx, Object id) {
+        index();
+        Object key = id;
+        if (id instanceof String) {
+            long index = ScriptRuntime.indexFromString((String) id);
+            if (index >= 0)
+                key = Integer.valueOf((int) index);
+        } else if (id instanceof Number) {
+            key = Integer.valueOf(((Number) id).intValue());
+        }
+        if (undecoded.containsKey(key))
+            decode(key);
+        return super.getOwnPropertyDescriptor(cx, id);
+    }
+
+    /**
+     * Placeholders can't be serialized, decode them first.
+     */
+    protected Object writeReplace() {
+        decodeAll();
+        return this;
+    }
+
+    /**
+     * Decodes the BSON value of the given type starting at the given offset
+     * into the same JS value {@link JSValueFactory#convert(Context, Object)}
+     * returns for the value decoded by the mongo java driver.
+     */
+    @SuppressWarnings("deprecation")
+    static Object decodeValue(Context cx, JSValueFactory factory,
+            byte[] bytes, byte type, int pos) {
+        switch (type) {
+        case BSON.NUMBER:
+            return Double.longBitsToDouble(BSONElements.readLong(bytes, pos));
+        case BSON.STRING:
+        case BSON.CODE:
+        case BSON.SYMBOL:
+            return BSONElements.readString(bytes, pos);
+        case BSON.OBJECT:
+            if (BSONElements.isDBRef(bytes, pos)) {
+                // same as the driver, { $ref : ..., $id : ... } is a DBRef
+                int refPos = pos + 4;
+                int refValuePos = BSONElements.cstringEnd(bytes, refPos + 1) + 1;
+                int idPos = refValuePos
+                        + BSONElements.valueSize(bytes[refPos], bytes,
+                                refValuePos);
+                int idValuePos = BSONElements.cstringEnd(bytes, idPos + 1) + 1;
+                return factory.newDBRef(cx, String.valueOf(decodeValue(cx,
+                        factory, bytes, bytes[refPos], refValuePos)),
+                        decodeValue(cx, factory, bytes, bytes[idPos],
+                                idValuePos));
+            }
+            return factory.newLazyDocument(bytes, pos);
+        case BSON.ARRAY: {
+            int end = pos + BSONElements.readInt(bytes, pos) - 1;
+            int elementPos = pos + 4;
+            Object[] elements = new Object[8];
+            int length = 0;
+            while (elementPos < end) {
+                int valuePos = BSONElements.cstringEnd(bytes, elementPos + 1) + 1;
+                if (length == elements.length)
+                    elements = Arrays.copyOf(elements, length * 2);
+                elements[length++] = decodeValue(cx, factory, bytes,
+                        bytes[elementPos], valuePos);
+                elementPos = valuePos
+                        + BSONElements.valueSize(bytes[elementPos], bytes,
+                                valuePos);
+            }
+            return factory.newArray(Arrays.copyOf(elements, length));
+        }
+        case BSON.BINARY: {
+            int length = BSONElements.readInt(bytes, pos);
+            byte subtype = bytes[pos + 4];
+            int dataPos = pos + 5;
+            if (subtype == BSON.B_BINARY) {
+                length = BSONElements.readInt(bytes, dataPos);
+                dataPos += 4;
+            }
+            return factory.newBinData(subtype & 0xFF,
+                    Arrays.copyOfRange(bytes, dataPos, dataPos + length));
+        }
+        case BSON.UNDEFINED:
+        case BSON.NULL:
+            return null;
+        case BSON.OID:
+            return factory.newObjectId(new org.bson.types.ObjectId(Arrays
+                    .copyOfRange(bytes, pos, pos + 12)));
+        case BSON.BOOLEAN:
+            return bytes[pos] != 0;
+        case BSON.DATE:
+            return factory.newDate(cx, BSONElements.readLong(bytes, pos));
+        case BSON.REGEX: {
+            int patternEnd = BSONElements.cstringEnd(bytes, pos);
+            int optionsEnd = BSONElements.cstringEnd(bytes, patternEnd + 1);
+            String options = BSONElements.utf8(bytes, patternEnd + 1,
+                    optionsEnd);
+            return factory.newRegExp(cx,
+                    BSONElements.utf8(bytes, pos, patternEnd),
+                    Bytes.regexFlags(Bytes.regexFlags(options)));
+        }
+        case BSON.REF: {
+            int oidPos = pos + 4 + BSONElements.readInt(bytes, pos);
+            return factory.newDBRef(cx, BSONElements.readString(bytes, pos),
+                    factory.newObjectId(new org.bson.types.ObjectId(Arrays
+                            .copyOfRange(bytes, oidPos, oidPos + 12))));
+        }
+        case BSON.CODE_W_SCOPE:
+            return BSONElements.readString(bytes, pos + 4);
+        case BSON.NUMBER_INT:
+            return Double.valueOf(BSONElements.readInt(bytes, pos));
+        case BSON.TIMESTAMP:
+            return factory.newTimestamp(BSONElements.readInt(bytes, pos + 4),
+                    BSONElements.readInt(bytes, pos));
+        case BSON.NUMBER_LONG:
+            return factory.newNumberLong(BSONElements.readLong(bytes, pos));
+        case BSON.MINKEY:
+            return factory.convert(cx, new org.bson.types.MinKey());
+        case BSON.MAXKEY:
+            return factory.convert(cx, new org.bson.types.MaxKey());
+        default:
+            throw new IllegalArgumentException("unsupported BSON type: "
+                    + type);
+        }
+    }
+
+}
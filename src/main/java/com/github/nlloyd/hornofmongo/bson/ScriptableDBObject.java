@@ -0,0 +1,156 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.bson;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.BSONObject;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+import com.mongodb.DBObject;
+
+/**
+ * {@link DBObject} view of a JS object, only there to carry the JS object
+ * through the java driver: documents built by {@link HornOfMongoJSCallback}
+ * on the way in and documents encoded by {@link HornOfMongoJSEncoder} on the
+ * way out. Values returned by {@link #get(String)} are JS values.
+ * 
+ * Fields put by the driver (such as a generated _id) are kept aside as java
+ * values, leaving the JS object untouched, and take the place of any JS
+ * property of the same name.
+ * 
+ * @author nlloyd
+ * 
+ */
+public class ScriptableDBObject implements DBObject {
+
+    private final Scriptable jsObject;
+    private Map<String, Object> javaFields;
+    private boolean partialObject = false;
+
+    public ScriptableDBObject(Scriptable jsObject) {
+        this.jsObject = jsObject;
+    }
+
+    /**
+     * @return the JS object decoded from BSON
+     */
+    public Scriptable getScriptable() {
+        return jsObject;
+    }
+
+    /**
+     * @return fields put from java, null if there are none
+     */
+    public Map<String, Object> getJavaFields() {
+        return javaFields;
+    }
+
+    @Override
+    public Object get(String key) {
+        if (javaFields != null && javaFields.containsKey(key))
+            return javaFields.get(key);
+        Object value = ScriptableObject.getProperty(jsObject, key);
+        return value == Scriptable.NOT_FOUND ? null : value;
+    }
+
+    @Override
+    public boolean containsField(String s) {
+        if (javaFields != null && javaFields.containsKey(s))
+            return true;
+        return ScriptableObject.hasProperty(jsObject, s);
+    }
+
+    @Override
+    @Deprecated
+    public boolean containsKey(String s) {
+        return containsField(s);
+    }
+
+    @Override
+    public Set<String> keySet() {
+        Set<String> keys = new LinkedHashSet<String>();
+        for (Object id : jsObject.getIds())
+            keys.add(String.valueOf(id));
+        if (javaFields != null)
+            keys.addAll(javaFields.keySet());
+        return keys;
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public Map toMap() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        for (String key : keySet())
+            map.put(key, get(key));
+        return map;
+    }
+
+    @Override
+    public Object put(String key, Object v) {
+        Object old = get(key);
+        if (javaFields == null)
+            javaFields = new LinkedHashMap<String, Object>();
+        javaFields.put(key, v);
+        return old;
+    }
+
+    @Override
+    public void putAll(BSONObject o) {
+        for (String key : o.keySet())
+            put(key, o.get(key));
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public void putAll(Map m) {
+        for (Object entry : m.entrySet())
+            put(String.valueOf(((Map.Entry) entry).getKey()),
+                    ((Map.Entry) entry).getValue());
+    }
+
+    @Override
+    public Object removeField(String key) {
+        throw new UnsupportedOperationException(
+                "can't remove fields of a JS object through the driver");
+    }
+
+    @Override
+    public void markAsPartialObject() {
+        partialObject = true;
+    }
+
+    @Override
+    public boolean isPartialObject() {
+        return partialObject;
+    }
+
+    @Override
+    public String toString() {
+        return "ScriptableDBObject" + keySet();
+    }
+
+}
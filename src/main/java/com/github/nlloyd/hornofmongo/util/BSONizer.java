@@ -30,27 +30,24 @@ import java.util.UUID;
 import java.util.regex.Pattern;
 
 import org.bson.BSON;
-import org.bson.BSONObject;
 import org.bson.types.BSONTimestamp;
 import org.bson.types.Binary;
 import org.bson.types.Code;
-import org.bson.types.Symbol;
 import org.mozilla.javascript.BaseFunction;
 import org.mozilla.javascript.ConsString;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.NativeArray;
 import org.mozilla.javascript.NativeObject;
-import org.mozilla.javascript.ScriptRuntime;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.Undefined;
 import org.mozilla.javascript.Wrapper;
 import org.mozilla.javascript.regexp.NativeRegExp;
 
+import com.github.nlloyd.hornofmongo.MongoContext;
 import com.github.nlloyd.hornofmongo.MongoRuntime;
 import com.github.nlloyd.hornofmongo.MongoScope;
 import com.github.nlloyd.hornofmongo.action.MongoAction;
-import com.github.nlloyd.hornofmongo.action.NewInstanceAction;
 import com.github.nlloyd.hornofmongo.adaptor.BinData;
 import com.github.nlloyd.hornofmongo.adaptor.DBRef;
 import com.github.nlloyd.hornofmongo.adaptor.MaxKey;
@@ -180,100 +177,29 @@ public class BSONizer {
         return bsonObject;
     }
 
-    @SuppressWarnings("deprecation")
-    public static Object convertBSONtoJS(MongoScope mongoScope,
-            Object bsonObject) {
-        Object jsObject = null;
-        if (bsonObject instanceof List<?>) {
-            List<?> bsonList = (List<?>) bsonObject;
-            Scriptable jsArray = (Scriptable) MongoRuntime
-                    .call(new NewInstanceAction(mongoScope, bsonList.size()));
-
-            int index = 0;
-            for (Object bsonEntry : bsonList) {
-                ScriptableObject.putProperty(jsArray, index,
-                        convertBSONtoJS(mongoScope, bsonEntry));
-                index++;
-            }
-
-            jsObject = jsArray;
-        } else if (bsonObject instanceof BSONObject) {
-            Scriptable jsObj = (Scriptable) MongoRuntime
-                    .call(new NewInstanceAction(mongoScope));
-            BSONObject bsonObj = (BSONObject) bsonObject;
-
-            for (String key : bsonObj.keySet()) {
-                Object value = convertBSONtoJS(mongoScope, bsonObj.get(key));
-                MongoRuntime.call(new JSPopulatePropertyAction(jsObj, key,
-                        value));
-            }
-            jsObject = jsObj;
-        } else if (bsonObject instanceof Symbol) {
-            jsObject = ((Symbol) bsonObject).getSymbol();
-        } else if (bsonObject instanceof Date) {
-            jsObject = MongoRuntime.call(new NewInstanceAction(mongoScope,
-                    "Date", new Object[] { ((Date) bsonObject).getTime() }));
-        } else if (bsonObject instanceof Pattern) {
-            Pattern regex = (Pattern) bsonObject;
-            String source = regex.pattern();
-            String options = Bytes.regexFlags(regex.flags());
-            jsObject = MongoRuntime.call(new NewInstanceAction(mongoScope,
-                    "RegExp", new Object[] { source, options }));
-        } else if (bsonObject instanceof org.bson.types.ObjectId) {
-            jsObject = MongoRuntime.call(new NewInstanceAction(mongoScope,
-                    "ObjectId"));
-            ((ObjectId) jsObject)
-                    .setRealObjectId((org.bson.types.ObjectId) bsonObject);
-        } else if (bsonObject instanceof org.bson.types.MinKey) {
-            jsObject = MongoRuntime.call(new NewInstanceAction(mongoScope,
-                    "MinKey"));
-        } else if (bsonObject instanceof org.bson.types.MaxKey) {
-            jsObject = MongoRuntime.call(new NewInstanceAction(mongoScope,
-                    "MaxKey"));
-        } else if (bsonObject instanceof com.mongodb.DBRef) {
-            com.mongodb.DBRef dbRef = (com.mongodb.DBRef) bsonObject;
-            Object id = convertBSONtoJS(mongoScope, dbRef.getId());
-            jsObject = MongoRuntime.call(new NewInstanceAction(mongoScope,
-//GC: changed 16/11/15 for v3
-//                    "DBRef", new Object[] { dbRef.getRef(), id }));
-                    "DBRef", new Object[] { dbRef.getCollectionName(), id }));
-        } else if (bsonObject instanceof BSONTimestamp) {
-            BSONTimestamp bsonTstamp = (BSONTimestamp) bsonObject;
-            jsObject = MongoRuntime.call(new NewInstanceAction(mongoScope,
-                    "Timestamp", new Object[] { bsonTstamp.getTime(),
-                            bsonTstamp.getInc() }));
-        } else if (bsonObject instanceof Long) {
-            jsObject = MongoRuntime.call(new NewInstanceAction(mongoScope,
-                    "NumberLong"));
-            ((NumberLong) jsObject).setRealLong((Long) bsonObject);
-        } else if (bsonObject instanceof Integer) {
-            jsObject = Double.valueOf((Integer) bsonObject);
-        } else if (bsonObject instanceof Code) {
-            jsObject = ((Code) bsonObject).getCode();
-        } else if (bsonObject instanceof byte[]) {
-            jsObject = MongoRuntime.call(new NewInstanceAction(mongoScope,
-                    "BinData"));
-            ((BinData) jsObject).setValues(0, (byte[]) bsonObject);
-        } else if (bsonObject instanceof Binary) {
-            jsObject = MongoRuntime.call(new NewInstanceAction(mongoScope,
-                    "BinData"));
-            ((BinData) jsObject).setValues(((Binary) bsonObject).getType(),
-                    ((Binary) bsonObject).getData());
-        } else if (bsonObject instanceof UUID) {
-            jsObject = MongoRuntime.call(new NewInstanceAction(mongoScope,
-                    "BinData"));
-            UUID uuid = (UUID) bsonObject;
-            ByteBuffer dataBuffer = ByteBuffer.allocate(16);
-            // mongodb wire protocol is little endian
-            dataBuffer.order(ByteOrder.LITTLE_ENDIAN);
-            dataBuffer.putLong(uuid.getMostSignificantBits());
-            dataBuffer.putLong(uuid.getLeastSignificantBits());
-            ((BinData) jsObject).setValues(BSON.B_UUID, dataBuffer.array());
-        } else {
-            jsObject = bsonObject;
+    /**
+     * Converts a BSON value, as decoded by the mongo java driver, into its JS
+     * equivalent using the {@link JSValueFactory} of the given scope.
+     * 
+     * @param mongoScope
+     * @param bsonObject
+     * @return
+     */
+    public static Object convertBSONtoJS(final MongoScope mongoScope,
+            final Object bsonObject) {
+        Context cx = Context.getCurrentContext();
+        if (cx == null) {
+            return MongoRuntime.call(new MongoAction(mongoScope) {
+                @Override
+                protected Object doRun(Context cx) {
+                    return mongoScope.getJSValueFactory().convert(cx,
+                            bsonObject);
+                }
+            });
         }
-
-        return jsObject;
+        if (cx instanceof MongoContext)
+            ((MongoContext) cx).updateExecutingMongoScope(mongoScope);
+        return mongoScope.getJSValueFactory().convert(cx, bsonObject);
     }
 
     /**
@@ -370,26 +296,6 @@ public class BSONizer {
         return bsTstamp;
     }
 
-    private static class JSPopulatePropertyAction extends MongoAction {
-
-        private Scriptable obj;
-        private Object key;
-        private Object value;
-
-        public JSPopulatePropertyAction(Scriptable obj, Object key, Object value) {
-            super(null);
-            this.obj = obj;
-            this.key = key;
-            this.value = value;
-        }
-
-        @Override
-        public Object doRun(Context cx) {
-            return ScriptRuntime.setObjectElem(obj, key, value, cx);
-        }
-
-    }
-
     private static class JSDecompileAction extends MongoAction {
 
         private BaseFunction toDecompile;
@@ -0,0 +1,268 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import org.bson.BSON;
+import org.bson.BSONObject;
+import org.bson.types.BSONTimestamp;
+import org.bson.types.Binary;
+import org.bson.types.Code;
+import org.bson.types.Symbol;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+import com.github.nlloyd.hornofmongo.MongoScope;
+import com.github.nlloyd.hornofmongo.adaptor.BinData;
+import com.github.nlloyd.hornofmongo.adaptor.NumberLong;
+import com.github.nlloyd.hornofmongo.adaptor.ObjectId;
+import com.github.nlloyd.hornofmongo.adaptor.ScriptableMongoObject;
+import com.github.nlloyd.hornofmongo.adaptor.Timestamp;
+import com.github.nlloyd.hornofmongo.bson.HornOfMongoJSDecoder;
+import com.github.nlloyd.hornofmongo.bson.HornOfMongoLazyDBObject;
+import com.github.nlloyd.hornofmongo.bson.LazyBSONDocument;
+import com.github.nlloyd.hornofmongo.bson.ScriptableDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DBDecoderFactory;
+
+/**
+ * Builds the JS values for BSON values read from mongodb directly, setting the
+ * prototype and parent scope of each new object instead of going through the
+ * JS constructors. The prototypes are looked up once per {@link MongoScope},
+ * see {@link MongoScope#getJSValueFactory()}.
+ * 
+ * Must be used with a {@link Context} entered on the current thread.
+ * 
+ * @author nlloyd
+ * 
+ */
+public class JSValueFactory {
+
+    private final MongoScope mongoScope;
+
+    private final Scriptable objectPrototype;
+    private final Scriptable arrayPrototype;
+    private final Scriptable objectIdPrototype;
+    private final Scriptable numberLongPrototype;
+    private final Scriptable binDataPrototype;
+    private final Scriptable timestampPrototype;
+
+    private final DBDecoderFactory decoderFactory;
+
+    public JSValueFactory(MongoScope mongoScope) {
+        this.mongoScope = mongoScope;
+        this.objectPrototype = ScriptableObject.getObjectPrototype(mongoScope);
+        this.arrayPrototype = ScriptableObject.getArrayPrototype(mongoScope);
+        this.objectIdPrototype = ScriptableObject.getClassPrototype(
+                mongoScope, "ObjectId");
+        this.numberLongPrototype = ScriptableObject.getClassPrototype(
+                mongoScope, "NumberLong");
+        this.binDataPrototype = ScriptableObject.getClassPrototype(
+                mongoScope, "BinData");
+        this.timestampPrototype = ScriptableObject.getClassPrototype(
+                mongoScope, "Timestamp");
+        this.decoderFactory = HornOfMongoJSDecoder.factory(this);
+    }
+
+    public MongoScope getScope() {
+        return mongoScope;
+    }
+
+    /**
+     * @return a {@link DBDecoderFactory} decoding documents into JS objects
+     *         of this factory's {@link MongoScope}
+     */
+    public DBDecoderFactory getDecoderFactory() {
+        return decoderFactory;
+    }
+
+    /**
+     * Converts a BSON value, as decoded by the mongo java driver, into its JS
+     * equivalent.
+     * 
+     * @param cx
+     * @param bsonObject
+     * @return
+     */
+    @SuppressWarnings("deprecation")
+    public Object convert(Context cx, Object bsonObject) {
+        Object jsObject;
+        if (bsonObject instanceof List<?>) {
+            List<?> bsonList = (List<?>) bsonObject;
+            Object[] elements = new Object[bsonList.size()];
+            int index = 0;
+            for (Object bsonEntry : bsonList)
+                elements[index++] = convert(cx, bsonEntry);
+            jsObject = newArray(elements);
+        } else if (bsonObject instanceof ScriptableDBObject) {
+            jsObject = ((ScriptableDBObject) bsonObject).getScriptable();
+        } else if (bsonObject instanceof HornOfMongoLazyDBObject) {
+            HornOfMongoLazyDBObject lazyObj = (HornOfMongoLazyDBObject) bsonObject;
+            jsObject = newLazyDocument(lazyObj.getRawBytes(),
+                    lazyObj.getRawOffset());
+        } else if (bsonObject instanceof BSONObject) {
+            BSONObject bsonObj = (BSONObject) bsonObject;
+            Scriptable jsObj = newObject();
+            for (String key : bsonObj.keySet())
+                setProperty(cx, jsObj, key, convert(cx, bsonObj.get(key)));
+            jsObject = jsObj;
+        } else if (bsonObject instanceof String) {
+            jsObject = bsonObject;
+        } else if (bsonObject instanceof Integer) {
+            jsObject = Double.valueOf((Integer) bsonObject);
+        } else if (bsonObject instanceof Long) {
+            jsObject = newNumberLong((Long) bsonObject);
+        } else if (bsonObject instanceof org.bson.types.ObjectId) {
+            jsObject = newObjectId((org.bson.types.ObjectId) bsonObject);
+        } else if (bsonObject instanceof Date) {
+            jsObject = newDate(cx, ((Date) bsonObject).getTime());
+        } else if (bsonObject instanceof Symbol) {
+            jsObject = ((Symbol) bsonObject).getSymbol();
+        } else if (bsonObject instanceof Pattern) {
+            Pattern regex = (Pattern) bsonObject;
+            jsObject = newRegExp(cx, regex.pattern(),
+                    Bytes.regexFlags(regex.flags()));
+        } else if (bsonObject instanceof org.bson.types.MinKey) {
+            jsObject = cx.newObject(mongoScope, "MinKey");
+        } else if (bsonObject instanceof org.bson.types.MaxKey) {
+            jsObject = cx.newObject(mongoScope, "MaxKey");
+        } else if (bsonObject instanceof com.mongodb.DBRef) {
+            com.mongodb.DBRef dbRef = (com.mongodb.DBRef) bsonObject;
+            jsObject = newDBRef(cx, dbRef.getCollectionName(),
+                    convert(cx, dbRef.getId()));
+        } else if (bsonObject instanceof BSONTimestamp) {
+            BSONTimestamp bsonTstamp = (BSONTimestamp) bsonObject;
+            jsObject = newTimestamp(bsonTstamp.getTime(), bsonTstamp.getInc());
+        } else if (bsonObject instanceof Code) {
+            jsObject = ((Code) bsonObject).getCode();
+        } else if (bsonObject instanceof byte[]) {
+            jsObject = newBinData(0, (byte[]) bsonObject);
+        } else if (bsonObject instanceof Binary) {
+            jsObject = newBinData(((Binary) bsonObject).getType(),
+                    ((Binary) bsonObject).getData());
+        } else if (bsonObject instanceof UUID) {
+            jsObject = newBinData(BSON.B_UUID, uuidBytes((UUID) bsonObject));
+        } else {
+            jsObject = bsonObject;
+        }
+        return jsObject;
+    }
+
+    public Scriptable newObject() {
+        NativeObject jsObject = new NativeObject();
+        jsObject.setPrototype(objectPrototype);
+        jsObject.setParentScope(mongoScope);
+        return jsObject;
+    }
+
+    /**
+     * @param bytes
+     *            buffer holding a BSON document
+     * @param offset
+     *            offset of the document in the buffer
+     * @return a {@link LazyBSONDocument} decoding the document on access
+     */
+    public LazyBSONDocument newLazyDocument(byte[] bytes, int offset) {
+        LazyBSONDocument jsObject = new LazyBSONDocument(this, bytes, offset);
+        jsObject.setPrototype(objectPrototype);
+        jsObject.setParentScope(mongoScope);
+        return jsObject;
+    }
+
+    public Scriptable newArray(Object[] elements) {
+        NativeArray jsArray = new NativeArray(elements);
+        jsArray.setPrototype(arrayPrototype);
+        jsArray.setParentScope(mongoScope);
+        return jsArray;
+    }
+
+    /**
+     * Sets a property on a JS object the same way a script assignment
+     * ("obj[key] = value") would, so numeric keys become indexes.
+     */
+    public void setProperty(Context cx, Scriptable jsObject, String key,
+            Object value) {
+        ScriptRuntime.setObjectElem(jsObject, key, value, cx);
+    }
+
+    public ObjectId newObjectId(org.bson.types.ObjectId oid) {
+        return init(new ObjectId(oid), objectIdPrototype);
+    }
+
+    public NumberLong newNumberLong(long value) {
+        NumberLong numberLong = new NumberLong();
+        numberLong.setRealLong(value);
+        return init(numberLong, numberLongPrototype);
+    }
+
+    public BinData newBinData(int type, byte[] data) {
+        BinData binData = new BinData();
+        binData.setValues(type, data);
+        return init(binData, binDataPrototype);
+    }
+
+    public Timestamp newTimestamp(long t, long i) {
+        Timestamp timestamp = new Timestamp();
+        timestamp.setRealValues(t, i);
+        return init(timestamp, timestampPrototype);
+    }
+
+    public Scriptable newDBRef(Context cx, String ns, Object jsId) {
+        return cx.newObject(mongoScope, "DBRef", new Object[] { ns, jsId });
+    }
+
+    public Scriptable newDate(Context cx, long time) {
+        return cx.newObject(mongoScope, "Date", new Object[] { time });
+    }
+
+    public Scriptable newRegExp(Context cx, String source, String options) {
+        return cx.newObject(mongoScope, "RegExp", new Object[] { source,
+                options });
+    }
+
+    private <T extends ScriptableMongoObject> T init(T jsObject,
+            Scriptable prototype) {
+        jsObject.setPrototype(prototype);
+        jsObject.setParentScope(mongoScope);
+        return jsObject;
+    }
+
+    static byte[] uuidBytes(UUID uuid) {
+        ByteBuffer dataBuffer = ByteBuffer.allocate(16);
+        // mongodb wire protocol is little endian
+        dataBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        dataBuffer.putLong(uuid.getMostSignificantBits());
+        dataBuffer.putLong(uuid.getLeastSignificantBits());
+        return dataBuffer.array();
+    }
+
+}
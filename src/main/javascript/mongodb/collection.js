@@ -48,6 +48,8 @@ DBCollection.prototype.help = function () {
     print("\tdb." + shortName + ".find(...).skip(n)");
     print("\tdb." + shortName + ".find(...).sort(...)");
     print("\tdb." + shortName + ".findOne([query])");
+    print("\tdb." + shortName + ".scanAll(func[, query[, fields]]) - calls func with every matching document, reading in bulk; returns the number of documents");
+    print("\tdb." + shortName + ".parallelScan({fn: func[, query: {...}, fields: {...}, partitions: n]}) - calls func with every matching document from worker threads, one per _id range");
     print("\tdb." + shortName + ".findAndModify( { update : ... , remove : bool [, query: {}, sort: {}, 'new': false] } )");
     print("\tdb." + shortName + ".getDB() get DB object associated with collection");
     print("\tdb." + shortName + ".getIndexes()");
@@ -180,6 +182,39 @@ DBCollection.prototype.findOne = function( query , fields, options ){
     return ret;
 }
 
+// calls func with every document matching query, reading the collection in
+// bulk; the cursor is closed even if func throws
+DBCollection.prototype.scanAll = function( func , query , fields ){
+    if ( typeof( func ) != "function" )
+        throw "scanAll needs a function";
+    var cursor = this.find( query , fields ).exhaust();
+    var n = 0;
+    try {
+        cursor.forEach( function( doc ){
+            func( doc );
+            n++;
+        } );
+    }
+    finally {
+        cursor.close();
+    }
+    return n;
+}
+
+// calls options.fn with every document matching options.query, splitting
+// the collection into options.partitions _id ranges (one per processor by
+// default) scanned by worker threads; fn runs in a separate scope per range
+// where db is this collection's database, it does not see the caller's
+// variables.  returns the document and error counts of all partitions
+DBCollection.prototype.parallelScan = function( options ){
+    options = options || {};
+    if ( typeof( options.fn ) != "function" )
+        throw "parallelScan needs a function fn";
+    var res = this._mongo.parallelScan( this._fullName , this._massageObject( options.query ) ,
+                                        options.fields , options.partitions || 0 , options.fn.toString() );
+    return res;
+}
+
 DBCollection.prototype.insert = function( obj , options, _allow_dot ){
     if ( ! obj )
         throw "no object passed to insert!";
@@ -203,6 +238,12 @@ DBCollection.prototype.insert = function( obj , options, _allow_dot ){
     this._printExtraInfo("Inserted", startTime);
 }
 
+DBCollection.prototype.insertMany = function( docs , options ){
+    if ( ! Array.isArray( docs ) )
+        throw "insertMany needs an array of documents";
+    return this._mongo.insertMany( this._fullName , docs , options || {} );
+}
+
 DBCollection.prototype.remove = function( t , justOne ){
     for ( var k in t ){
         if ( k == "_id" && typeof( t[k] ) == "undefined" ){
@@ -33,6 +33,7 @@ DBQuery.prototype.help = function () {
     print("\t.explain([verbose])")
     print("\t.hint(...)")
     print("\t.addOption(n) - adds op_query options -- see wire protocol")
+    print("\t.exhaust() - reads all results in bulk, for full scans")
     print("\t._addSpecial(name, value) - http://dochub.mongodb.org/core/advancedqueries#AdvancedQueries-Metaqueryoperators")
     print("\t.batchSize(n) - sets the number of docs to return per getMore")
     print("\t.showDiskLoc() - adds a $diskLoc field to each returned object")
@@ -48,6 +49,7 @@ DBQuery.prototype.help = function () {
     print("\t.objsLeftInBatch() - returns count of docs left in current batch (when exhausted, a new getMore will be issued)")
     print("\t.count(applySkipLimit) - runs command at server")    
     print("\t.itcount() - iterates through documents and counts them")
+    print("\t.close() - releases the cursor before all documents are read")
 }
 
 DBQuery.prototype.clone = function(){
@@ -99,6 +101,12 @@ DBQuery.prototype.addOption = function( option ){
     return this;
 }
 
+DBQuery.prototype.exhaust = function(){
+    this._checkModify();
+    this._options |= DBQuery.Option.exhaust;
+    return this;
+}
+
 DBQuery.prototype.skip = function( skip ){
     this._checkModify();
     this._skip = skip;
@@ -110,6 +118,8 @@ DBQuery.prototype.hasNext = function(){
 
     if ( this._limit > 0 && this._cursorSeen >= this._limit )
         return false;
+    if ( this._unread && this._unread.length > 0 )
+        return true;
     var o = this._cursor.hasNext();
     return o;
 }
@@ -117,6 +127,12 @@ DBQuery.prototype.hasNext = function(){
 DBQuery.prototype.next = function(){
     this._exec();
     
+    if ( this._unread && this._unread.length > 0 ){
+        this._cursorSeen++;
+        this._numReturned++;
+        return this._unread.shift();
+    }
+
     var o = this._cursor.hasNext();
     if ( o )
         this._cursorSeen++;
@@ -141,19 +157,88 @@ DBQuery.prototype.objsLeftInBatch = function(){
     return ret;
 }
 
+DBQuery.prototype.close = function(){
+    if ( this._cursor )
+        this._cursor.close();
+    this._unread = null;
+}
+
 DBQuery.prototype.readOnly = function(){
     this._exec();
     this._cursor.readOnly();
     return this;
 }
 
+// number of documents converted per native call by forEach and map
+DBQuery.iterationBatchSize = 100;
+
+// returns up to n (all if n is 0) of the next documents converted in one
+// native call, honoring the limit
+DBQuery.prototype._nextBatch = function( n ){
+    this._exec();
+
+    if ( this._limit > 0 ){
+        var left = this._limit - this._cursorSeen;
+        if ( left <= 0 )
+            return [];
+        if ( n <= 0 || n > left )
+            n = left;
+    }
+
+    var batch;
+    if ( this._unread && this._unread.length > 0 ){
+        if ( n > 0 && n < this._unread.length ){
+            batch = this._unread.splice( 0 , n );
+        }
+        else {
+            // the unread documents, then the rest of the cursor up to n
+            batch = this._unread;
+            this._unread = null;
+            if ( n <= 0 || n > batch.length )
+                batch = batch.concat( this._cursor.nextBatch( n > 0 ? n - batch.length : 0 ) );
+        }
+    }
+    else {
+        batch = this._cursor.nextBatch( n );
+    }
+    this._cursorSeen += batch.length;
+    if ( batch.length == 1 && batch[0].$err && this._numReturned == 0 && ! this.hasNext() )
+        throw "error: " + tojson( batch[0] );
+    this._numReturned += batch.length;
+    return batch;
+}
+
+// hands back the documents of a batch from index i on, for next() to
+// return them
+DBQuery.prototype._unreadBatch = function( batch , i ){
+    var rest = batch.slice( i );
+    this._cursorSeen -= rest.length;
+    this._numReturned -= rest.length;
+    this._unread = this._unread ? rest.concat( this._unread ) : rest;
+}
+
+// calls func with each remaining document, the documents are converted
+// DBQuery.iterationBatchSize at a time
+DBQuery.prototype._iterate = function( func ){
+    var batch;
+    while ( ( batch = this._nextBatch( DBQuery.iterationBatchSize ) ).length > 0 ){
+        var i = 0;
+        try {
+            for ( ; i < batch.length; i++ )
+                func( batch[i] );
+        }
+        catch ( e ){
+            this._unreadBatch( batch , i + 1 );
+            throw e;
+        }
+    }
+}
+
 DBQuery.prototype.toArray = function(){
     if ( this._arr )
         return this._arr;
     
-    var a = [];
-    while ( this.hasNext() )
-        a.push( this.next() );
+    var a = this._nextBatch( 0 );
     this._arr = a;
     return a;
 }
@@ -200,11 +285,26 @@ DBQuery.prototype.countReturn = function(){
 * iterative count - only for testing
 */
 DBQuery.prototype.itcount = function(){
+    this._exec();
+
+    var max = 0;
+    if ( this._limit > 0 ){
+        max = this._limit - this._cursorSeen;
+        if ( max <= 0 )
+            return 0;
+    }
     var num = 0;
-    while ( this.hasNext() ){
-        num++;
-        this.next();
+    if ( this._unread && this._unread.length > 0 ){
+        num = max > 0 ? Math.min( max , this._unread.length ) : this._unread.length;
+        this._unread.splice( 0 , num );
+        if ( max > 0 )
+            max -= num;
     }
+    // the native count does not convert the documents
+    if ( this._limit <= 0 || max > 0 )
+        num += this._cursor.countRemaining( max );
+    this._cursorSeen += num;
+    this._numReturned += num;
     return num;
 }
 
@@ -260,14 +360,14 @@ DBQuery.prototype.readPref = function( mode, tagSet ) {
 };
 
 DBQuery.prototype.forEach = function( func ){
-    while ( this.hasNext() )
-        func( this.next() );
+    this._iterate( func );
 }
 
 DBQuery.prototype.map = function( func ){
     var a = [];
-    while ( this.hasNext() )
-        a.push( func( this.next() ) );
+    this._iterate( function( doc ){
+        a.push( func( doc ) );
+    } );
     return a;
 }
 
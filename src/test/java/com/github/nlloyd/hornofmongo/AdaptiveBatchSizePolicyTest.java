@@ -0,0 +1,80 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import com.github.nlloyd.hornofmongo.AdaptiveBatchSizePolicy.Metrics;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class AdaptiveBatchSizePolicyTest {
+
+    private static final long MILLIS = 1000000;
+
+    @Test
+    public void testSizesBatchesToTargetBytes() {
+        AdaptiveBatchSizePolicy policy = new AdaptiveBatchSizePolicy(100000,
+                10, 5000, 50);
+        assertNull(policy.getMetrics("test.small"));
+        // nothing known yet, driver default
+        assertEquals(0, policy.batchSizeFor("test.small"));
+
+        // 101 documents of 50 bytes in one fast batch
+        policy.record("test.small", 0, 101, 101 * 50, 2 * MILLIS);
+        assertEquals(2000, policy.batchSizeFor("test.small"));
+
+        // 100 byte documents, the average moves towards them
+        policy.record("test.small", 2000, 2000, 2000 * 100, 2 * MILLIS);
+        assertEquals(1538, policy.batchSizeFor("test.small"));
+
+        Metrics metrics = policy.getMetrics("test.small");
+        assertEquals(3, metrics.getCursors());
+        assertEquals(2101, metrics.getDocuments());
+        assertEquals(2, metrics.getBatches());
+        assertEquals(65, Math.round(metrics.getAverageDocumentBytes()));
+        assertEquals(1538, metrics.getLastBatchSize());
+    }
+
+    @Test
+    public void testBoundsAndSlowBatches() {
+        AdaptiveBatchSizePolicy policy = new AdaptiveBatchSizePolicy(100000,
+                10, 5000, 50);
+        policy.record("test.tiny", 0, 101, 101 * 5, MILLIS);
+        assertEquals(5000, policy.batchSizeFor("test.tiny"));
+        policy.record("test.huge", 0, 10, 10 * 1000000, MILLIS);
+        assertEquals(10, policy.batchSizeFor("test.huge"));
+
+        // 1000 byte documents arriving in 80ms batches are doubled
+        policy.record("test.slow", 100, 100, 100 * 1000, 80 * MILLIS);
+        assertEquals(200, policy.batchSizeFor("test.slow"));
+        assertEquals(80.0, policy.getMetrics("test.slow")
+                .getAverageBatchMillis(), 0.001);
+        assertEquals(3, policy.getAllMetrics().size());
+    }
+
+}
@@ -0,0 +1,93 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+
+import com.github.nlloyd.hornofmongo.action.CompiledMongoScriptAction;
+import com.github.nlloyd.hornofmongo.action.MongoAction;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class CompiledMongoScriptTest {
+
+    @Test
+    public void testExecuteInAnyScope() {
+        CompiledMongoScript script = MongoRuntime
+                .compile("var count = (typeof count == 'undefined') ? 1 : count + 1; count;");
+        MongoScope first = MongoRuntime.createMongoScope();
+        MongoScope second = MongoRuntime.createMongoScope();
+        assertEquals(1, ((Number) MongoRuntime
+                .call(new CompiledMongoScriptAction(first, script))).intValue());
+        assertEquals(2, ((Number) MongoRuntime
+                .call(new CompiledMongoScriptAction(first, script))).intValue());
+        assertEquals(1, ((Number) MongoRuntime
+                .call(new CompiledMongoScriptAction(second, script))).intValue());
+    }
+
+    @Test
+    public void testCacheHitsAndMisses() {
+        MongoScriptCache cache = MongoRuntime.getScriptCache();
+        cache.clear();
+        CompiledMongoScript first = MongoRuntime.compile("job", "1 + 1;");
+        CompiledMongoScript second = MongoRuntime.compile("job", "1 + 1;");
+        assertSame(first, second);
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+        assertNotSame(first, MongoRuntime.compile("other", "1 + 1;"));
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        MongoScriptCache cache = new MongoScriptCache(2);
+        CompiledMongoScript a = compile(cache, "1;");
+        compile(cache, "2;");
+        compile(cache, "1;");
+        compile(cache, "3;");
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertSame(a, cache.get(a.getKey()));
+        assertNull(cache.get(MongoScriptCache.keyFor("anon", "2;",
+                a.getOptimizationLevel())));
+    }
+
+    private CompiledMongoScript compile(final MongoScriptCache cache,
+            final String source) {
+        return (CompiledMongoScript) MongoRuntime
+                .call(new MongoAction(null) {
+                    @Override
+                    protected Object doRun(Context cx) {
+                        return cache.getOrCompile(cx, "anon", source);
+                    }
+                });
+    }
+
+}
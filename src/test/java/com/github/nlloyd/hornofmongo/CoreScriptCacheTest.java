@@ -0,0 +1,76 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+
+import com.github.nlloyd.hornofmongo.action.MongoAction;
+import com.github.nlloyd.hornofmongo.action.MongoScriptAction;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class CoreScriptCacheTest {
+
+    @Test
+    public void testWarmAndShare() {
+        MongoRuntime.warmCoreScripts();
+        assertTrue(CoreScriptCache.isCached("mongodb/assert.js"));
+        assertTrue(CoreScriptCache.isCached("mongodb/collection.js"));
+
+        Script first = getCached("mongodb/db.js");
+        MongoScope scope1 = MongoRuntime.createMongoScope();
+        MongoScope scope2 = MongoRuntime.createMongoScope();
+        assertSame(first, getCached("mongodb/db.js"));
+
+        // scopes built from the same compiled scripts must not share state
+        MongoRuntime.call(new MongoScriptAction(scope1, "var x = tojson({a: 1});"));
+        Object result = MongoRuntime.call(new MongoScriptAction(scope2,
+                "typeof x;"));
+        assertEquals("undefined", result);
+    }
+
+    @Test
+    public void testPrecompiledClassUsed() {
+        // the build precompiles the core files into target/classes
+        assertEquals(
+                CoreScriptCache.precompiledClassName("mongodb/utils.js"),
+                getCached("mongodb/utils.js").getClass().getName());
+    }
+
+    private Script getCached(final String file) {
+        return (Script) MongoRuntime.call(new MongoAction(null) {
+            @Override
+            protected Object doRun(Context cx) {
+                return CoreScriptCache.getScript(cx, file);
+            }
+        });
+    }
+
+}
@@ -0,0 +1,84 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.github.nlloyd.hornofmongo.action.MongoScriptAction;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class LazyGlobalsTest {
+
+    @Test
+    public void testLoadedOnFirstReference() {
+        MongoScope scope = MongoRuntime.createMongoScope();
+        List<Object> ids = Arrays.asList(scope.getAllIds());
+        assertFalse(ids.contains("ShardingTest"));
+        assertFalse(ids.contains("startMongod"));
+
+        assertEquals("function", MongoRuntime.call(new MongoScriptAction(
+                scope, "typeof ShardingTest;")));
+        ids = Arrays.asList(scope.getAllIds());
+        assertTrue(ids.contains("ShardingTest"));
+        assertTrue(ids.contains("printShardingStatus"));
+        assertFalse(ids.contains("startMongod"));
+
+        assertEquals("function", MongoRuntime.call(new MongoScriptAction(
+                scope, "typeof ReplSetTest;")));
+        assertEquals("function", MongoRuntime.call(new MongoScriptAction(
+                scope, "typeof sh.help;")));
+        assertEquals(Boolean.TRUE, MongoRuntime.call(new MongoScriptAction(
+                scope, "'startMongod' in this;")));
+    }
+
+    @Test
+    public void testLoadedInChildScope() {
+        MongoScope sharedScope = MongoRuntime.createSharedMongoScope();
+        MongoScope child = MongoRuntime.createChildMongoScope(sharedScope);
+        assertEquals("function", MongoRuntime.call(new MongoScriptAction(
+                child, "typeof MongoRunner;")));
+        assertFalse(Arrays.asList(sharedScope.getAllIds()).contains(
+                "MongoRunner"));
+    }
+
+    @Test
+    public void testReloadedAfterReset() {
+        MongoScope scope = MongoRuntime.createMongoScope();
+        scope.markBaseline();
+        MongoRuntime.call(new MongoScriptAction(scope, "typeof sh;"));
+        scope.resetToBaseline();
+        assertFalse(Arrays.asList(scope.getAllIds()).contains("sh"));
+        assertEquals("function", MongoRuntime.call(new MongoScriptAction(
+                scope, "typeof sh.status;")));
+    }
+
+}
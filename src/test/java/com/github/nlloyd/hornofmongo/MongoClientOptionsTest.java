@@ -0,0 +1,84 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.nlloyd.hornofmongo.action.MongoScriptAction;
+import com.github.nlloyd.hornofmongo.adaptor.Mongo;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class MongoClientOptionsTest {
+
+    private MongoScope mongoScope;
+
+    @Before
+    public void setUp() throws Exception {
+        // the driver only connects on the first operation
+        mongoScope = MongoRuntime.createMongoScope(
+                "mongodb://localhost:27999/optionsdb?maxPoolSize=7&connectTimeoutMS=1234",
+                MongoClientOptions.builder().socketTimeout(4321)
+                        .connectTimeout(1), false, false);
+    }
+
+    @After
+    public void tearDown() {
+        mongoScope.cleanup();
+    }
+
+    @Test
+    public void testUriAndBuilderOptions() {
+        MongoClientOptions options = mongoScope.getClientOptions();
+        assertEquals(7, options.getConnectionsPerHost());
+        assertEquals(1234, options.getConnectTimeout());
+        assertEquals(4321, options.getSocketTimeout());
+
+        assertEquals("optionsdb", MongoRuntime.call(new MongoScriptAction(
+                mongoScope, "db.getName();")));
+        MongoClient client = (MongoClient) connection("db.getMongo();");
+        assertEquals(7, client.getMongoClientOptions().getConnectionsPerHost());
+        assertEquals(4321, client.getMongoClientOptions().getSocketTimeout());
+    }
+
+    @Test
+    public void testNewMongoUsesTheScopeOptions() {
+        MongoClient client = (MongoClient) connection("db.getMongo();");
+        MongoClient other = (MongoClient) connection("new Mongo('localhost:27999');");
+        assertSame(client, other);
+    }
+
+    private com.mongodb.Mongo connection(String script) {
+        return ((Mongo) MongoRuntime.call(new MongoScriptAction(mongoScope,
+                script))).getInnerMongo();
+    }
+
+}
@@ -0,0 +1,79 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteConcern;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class MongoClientRegistryTest {
+
+    @Test
+    public void testSharedAndReferenceCounted() throws Exception {
+        // the driver only connects on the first operation
+        List<ServerAddress> hosts = Arrays.asList(new ServerAddress(
+                "localhost", 27999));
+        MongoClientOptions options = MongoClientOptions.builder().build();
+        int openClients = MongoClientRegistry.countClients();
+
+        MongoClient client = MongoClientRegistry.acquire(hosts, options);
+        assertSame(client, MongoClientRegistry.acquire(hosts,
+                MongoClientOptions.builder().build()));
+        assertEquals(2, MongoClientRegistry.countReferences(client));
+
+        MongoClient other = MongoClientRegistry.acquire(hosts,
+                MongoClientOptions.builder()
+                        .writeConcern(WriteConcern.UNACKNOWLEDGED).build());
+        assertNotSame(client, other);
+        assertEquals(openClients + 2, MongoClientRegistry.countClients());
+
+        assertTrue(MongoClientRegistry.release(client));
+        assertEquals(1, MongoClientRegistry.countReferences(client));
+        assertTrue(MongoClientRegistry.release(client));
+        assertEquals(0, MongoClientRegistry.countReferences(client));
+        assertFalse(MongoClientRegistry.release(client));
+        assertTrue(MongoClientRegistry.release(other));
+        assertEquals(openClients, MongoClientRegistry.countClients());
+
+        // a closed client is not handed out again
+        MongoClient reopened = MongoClientRegistry.acquire(hosts, options);
+        assertNotSame(client, reopened);
+        MongoClientRegistry.release(reopened);
+    }
+
+}
@@ -0,0 +1,179 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+
+import com.github.nlloyd.hornofmongo.action.MongoScriptAction;
+import com.github.nlloyd.hornofmongo.util.PrintHandler;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class MongoScopePoolTest {
+
+    private MongoScopePool pool;
+
+    @Before
+    public void setUp() {
+        pool = MongoRuntime.createMongoScopePool(1, 2);
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    public void testResetOnRelease() throws Exception {
+        MongoScope scope = pool.borrow();
+        File cwd = scope.getCwd();
+        scope.setPrintHandler(new PrintHandler() {
+            @Override
+            public void doPrint(Context cx, org.mozilla.javascript.Scriptable s,
+                    Object[] args) {
+            }
+        });
+        MongoRuntime.call(new MongoScriptAction(scope, "leaked",
+                "var leaked = 1; implicitLeak = 2; tojson = null; cd('jstests');"));
+        pool.release(scope);
+
+        MongoScope again = pool.borrow();
+        assertSame(scope, again);
+        assertNull(again.getPrintHandler());
+        assertEquals(cwd, again.getCwd());
+        assertEquals("undefined", MongoRuntime.call(new MongoScriptAction(
+                again, "typeof leaked;")));
+        assertEquals("undefined", MongoRuntime.call(new MongoScriptAction(
+                again, "typeof implicitLeak;")));
+        assertEquals("function", MongoRuntime.call(new MongoScriptAction(
+                again, "typeof tojson;")));
+        pool.release(again);
+    }
+
+    @Test
+    public void testDoubleReleaseIsRejected() throws Exception {
+        MongoScope scope = pool.borrow();
+        pool.release(scope);
+        try {
+            pool.release(scope);
+            fail("expected the second release to be rejected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        MongoScope first = pool.borrow();
+        MongoScope second = pool.borrow();
+        assertNotSame(first, second);
+        pool.release(first);
+        pool.release(second);
+    }
+
+    @Test
+    public void testMaxTotal() throws Exception {
+        MongoScope first = pool.borrow();
+        MongoScope second = pool.borrow();
+        assertNotNull(first);
+        assertNotNull(second);
+        assertTrue(first != second);
+        assertEquals(2, pool.getTotalCount());
+        assertNull(pool.borrow(10, TimeUnit.MILLISECONDS));
+        pool.release(first);
+        assertSame(first, pool.borrow(10, TimeUnit.MILLISECONDS));
+        pool.release(first);
+        pool.release(second);
+    }
+
+    @Test
+    public void testInvalidateWakesWaitingBorrower() throws Exception {
+        final MongoScopePool single = MongoRuntime.createMongoScopePool(0, 1);
+        ExecutorService borrower = Executors.newSingleThreadExecutor();
+        try {
+            MongoScope held = single.borrow();
+            Future<MongoScope> waiting = borrower
+                    .submit(new Callable<MongoScope>() {
+                        @Override
+                        public MongoScope call() throws Exception {
+                            return single.borrow();
+                        }
+                    });
+            Thread.sleep(100);
+            assertTrue(!waiting.isDone());
+            single.invalidate(held);
+            MongoScope replacement = waiting.get(30, TimeUnit.SECONDS);
+            assertNotNull(replacement);
+            assertNotSame(held, replacement);
+            single.release(replacement);
+        } finally {
+            borrower.shutdownNow();
+            single.close();
+        }
+    }
+
+    @Test
+    public void testCloseFailsWaitingBorrower() throws Exception {
+        final MongoScopePool single = MongoRuntime.createMongoScopePool(0, 1);
+        ExecutorService borrower = Executors.newSingleThreadExecutor();
+        try {
+            MongoScope held = single.borrow();
+            Future<MongoScope> waiting = borrower
+                    .submit(new Callable<MongoScope>() {
+                        @Override
+                        public MongoScope call() throws Exception {
+                            return single.borrow();
+                        }
+                    });
+            Thread.sleep(100);
+            single.close();
+            try {
+                waiting.get(30, TimeUnit.SECONDS);
+                fail("expected the pending borrow to fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            single.release(held);
+            assertEquals(0, single.getTotalCount());
+        } finally {
+            borrower.shutdownNow();
+        }
+    }
+
+}
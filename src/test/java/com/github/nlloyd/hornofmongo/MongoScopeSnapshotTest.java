@@ -0,0 +1,83 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.nlloyd.hornofmongo.action.MongoScriptAction;
+import com.github.nlloyd.hornofmongo.exception.MongoScopeException;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class MongoScopeSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRestoreFromSnapshot() throws IOException {
+        File snapshot = folder.newFile("scope.snapshot");
+        MongoRuntime.saveScopeSnapshot(snapshot);
+        assertTrue(snapshot.length() > 0);
+
+        MongoScope scope = MongoRuntime.createMongoScopeFromSnapshot(snapshot);
+        assertNotNull(scope.getCurrentDirHandler());
+        assertNull(scope.getPrintHandler());
+        assertEquals(0, scope.countMongoConnections());
+        assertEquals("{ \"a\" : 1 }", MongoRuntime.call(new MongoScriptAction(
+                scope, "tojson({a: 1});")));
+        assertEquals("/ab/", MongoRuntime.call(new MongoScriptAction(scope,
+                "/ab/.tojson();")));
+        assertEquals(Boolean.TRUE, MongoRuntime.call(new MongoScriptAction(
+                scope, "new ObjectId().str.length == 24;")));
+        assertEquals(Boolean.TRUE, MongoRuntime.call(new MongoScriptAction(
+                scope, "'abc'.startsWith('ab');")));
+        assertEquals("function", MongoRuntime.call(new MongoScriptAction(
+                scope, "typeof ShardingTest;")));
+
+        MongoScope other = MongoRuntime.createMongoScopeFromSnapshot(snapshot);
+        MongoRuntime.call(new MongoScriptAction(scope, "var x = 1;"));
+        assertEquals("undefined", MongoRuntime.call(new MongoScriptAction(
+                other, "typeof x;")));
+    }
+
+    @Test(expected = MongoScopeException.class)
+    public void testRejectsInvalidSnapshot() throws IOException {
+        File snapshot = folder.newFile("invalid.snapshot");
+        FileUtils.writeStringToFile(snapshot, "not a snapshot");
+        MongoRuntime.createMongoScopeFromSnapshot(snapshot);
+    }
+
+}
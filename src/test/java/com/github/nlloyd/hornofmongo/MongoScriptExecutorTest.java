@@ -0,0 +1,194 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+
+import com.github.nlloyd.hornofmongo.action.MongoAction;
+import com.github.nlloyd.hornofmongo.action.MongoScriptAction;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class MongoScriptExecutorTest {
+
+    private MongoScope settingsScope;
+    private MongoScriptExecutor executor;
+
+    @Before
+    public void setUp() {
+        settingsScope = MongoRuntime.createMongoScope();
+    }
+
+    @After
+    public void tearDown() {
+        if (executor != null)
+            executor.shutdownNow();
+    }
+
+    @Test
+    public void testScriptsAndCompiledScripts() throws Exception {
+        executor = MongoRuntime.createScriptExecutor(settingsScope, 3, 10);
+        CompiledMongoScript compiled = MongoRuntime.compile("var x = 20; x + 1;");
+        List<Future<Object>> results = new ArrayList<Future<Object>>();
+        for (int i = 0; i < 20; i++)
+            results.add((i % 2 == 0) ? executor.submit(i + " * 2;") : executor
+                    .submit(compiled));
+        for (int i = 0; i < 20; i++)
+            assertEquals((i % 2 == 0) ? i * 2 : 21,
+                    ((Number) results.get(i).get()).intValue());
+        executor.close();
+        assertTrue(executor.isTerminated());
+    }
+
+    @Test
+    public void testKeyedScriptsShareAScope() throws Exception {
+        executor = MongoRuntime.createScriptExecutor(settingsScope, 4, 10);
+        List<Future<Object>> results = new ArrayList<Future<Object>>();
+        for (int i = 0; i < 5; i++)
+            results.add(executor.submit("job-1",
+                    "var n = (typeof n == 'undefined') ? 1 : n + 1; n;"));
+        for (int i = 0; i < 5; i++)
+            assertEquals(i + 1, ((Number) results.get(i).get()).intValue());
+    }
+
+    @Test
+    public void testActionsRunInTheirOwnScope() throws Exception {
+        executor = MongoRuntime.createScriptExecutor(settingsScope, 2, 10);
+        MongoScope scope = MongoRuntime.createMongoScope();
+        MongoRuntime.call(new MongoScriptAction(scope, "var total = 0;"));
+        List<Future<Object>> results = new ArrayList<Future<Object>>();
+        for (int i = 1; i <= 10; i++)
+            results.add(executor.submit(new MongoScriptAction(scope, "total += "
+                    + i + ";")));
+        assertEquals(55, ((Number) results.get(9).get()).intValue());
+        assertEquals(55, ((Number) MongoRuntime.call(new MongoScriptAction(
+                scope, "total;"))).intValue());
+    }
+
+    @Test
+    public void testFailuresAndShutdown() throws Exception {
+        executor = MongoRuntime.createScriptExecutor(settingsScope, 1, 10);
+        try {
+            executor.submit("throw 'boom';").get();
+            fail("expected the script error");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage().contains("boom"));
+        }
+        assertEquals(3, ((Number) executor.submit("1 + 2;").get()).intValue());
+        executor.shutdown();
+        try {
+            executor.submit("1;");
+            fail("expected a rejection");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFullQueueBlocksSubmitter() throws Exception {
+        executor = MongoRuntime.createScriptExecutor(settingsScope, 1, 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Future<Object> blocking = executor.submit(new MongoAction(
+                MongoRuntime.createMongoScope()) {
+            @Override
+            protected Object doRun(Context cx) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return "released";
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        // fills the queue of the only worker
+        Future<Object> queued = executor.submit("'queued';");
+        ExecutorService producer = Executors.newSingleThreadExecutor();
+        try {
+            Future<Future<Object>> submitting = producer
+                    .submit(new Callable<Future<Object>>() {
+                        @Override
+                        public Future<Object> call() throws Exception {
+                            return executor.submit("'third';");
+                        }
+                    });
+            try {
+                submitting.get(300, TimeUnit.MILLISECONDS);
+                fail("submit should wait for room in the queue");
+            } catch (TimeoutException e) {
+                // expected
+            }
+            assertFalse(submitting.isDone());
+            release.countDown();
+            assertEquals("released", blocking.get(5, TimeUnit.SECONDS));
+            assertEquals("queued", queued.get(5, TimeUnit.SECONDS));
+            assertEquals("third",
+                    submitting.get(5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS));
+        } finally {
+            producer.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testActionWithoutScopeIsRejected() throws Exception {
+        executor = MongoRuntime.createScriptExecutor(settingsScope, 1, 1);
+        try {
+            executor.submit(new MongoAction(null) {
+                @Override
+                protected Object doRun(Context cx) {
+                    return null;
+                }
+            });
+            fail("expected an action without scope to be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(2, ((Number) executor.submit("1 + 1;").get())
+                .intValue());
+    }
+
+}
@@ -0,0 +1,145 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+
+import com.github.nlloyd.hornofmongo.action.MongoAction;
+import com.github.nlloyd.hornofmongo.action.MongoScriptAction;
+import com.github.nlloyd.hornofmongo.adaptor.Mongo;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class MongoSessionTest {
+
+    @Test
+    public void testContextStaysEntered() {
+        MongoScope scope = MongoRuntime.createMongoScope();
+        MongoSession session = MongoRuntime.openSession(scope);
+        try {
+            final Context cx = session.getContext();
+            assertSame(cx, Context.getCurrentContext());
+            session.execute("var total = 0;");
+            for (int i = 0; i < 10; i++)
+                session.execute("total += " + i + ";");
+            assertEquals(45, ((Number) session.execute("total;")).intValue());
+            assertEquals(cx, MongoRuntime.call(new MongoAction(scope) {
+                @Override
+                protected Object doRun(Context actionCx) {
+                    return actionCx;
+                }
+            }));
+            assertEquals("NumberLong(5)", MongoRuntime.call(new MongoScriptAction(
+                    scope, "tojson(new NumberLong(5));")));
+            assertEquals(3, ((Number) session.execute(MongoRuntime
+                    .compile("1 + 2;"))).intValue());
+        } finally {
+            session.close();
+        }
+        assertTrue(session.isClosed());
+        assertNull(Context.getCurrentContext());
+    }
+
+    @Test
+    public void testOwnerThreadOnly() throws InterruptedException {
+        final MongoSession session = MongoRuntime.openSession(MongoRuntime
+                .createMongoScope());
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    session.execute("1;");
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        };
+        other.start();
+        other.join();
+        session.close();
+        assertTrue(failure.get() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void testWritesAreFlushedWhenScriptThrows() throws Exception {
+        MongoScope scope = MongoRuntime.createMongoScope();
+        CountingMongo connection = new CountingMongo();
+        scope.addMongoConnection(connection);
+        MongoSession session = MongoRuntime.openSession(scope);
+        try {
+            session.execute("1;");
+            assertEquals(1, connection.flushes.get());
+            try {
+                session.execute("throw 'boom';");
+                fail("expected the script error");
+            } catch (RuntimeException e) {
+                assertTrue(e.getMessage().contains("boom"));
+            }
+            assertEquals(2, connection.flushes.get());
+        } finally {
+            session.close();
+        }
+        try {
+            MongoRuntime.call(new MongoScriptAction(scope, "throw 'boom';"));
+            fail("expected the script error");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("boom"));
+        }
+        assertEquals(3, connection.flushes.get());
+        scope.removeMongoConnection(connection);
+    }
+
+    /**
+     * Counts the flushes of its (empty) write-behind buffer.
+     */
+    private static class CountingMongo extends Mongo {
+
+        private static final long serialVersionUID = 1L;
+
+        private final AtomicInteger flushes = new AtomicInteger();
+
+        CountingMongo() throws UnknownHostException {
+            super();
+        }
+
+        @Override
+        public void flushBufferedWrites() {
+            flushes.incrementAndGet();
+        }
+
+    }
+
+}
@@ -0,0 +1,102 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+
+import com.github.nlloyd.hornofmongo.action.CompiledMongoScriptAction;
+import com.github.nlloyd.hornofmongo.action.MongoAction;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class OptimizationLevelTest {
+
+    @After
+    public void tearDown() {
+        MongoRuntime.setOptimizationLevel(0);
+        MongoRuntime.setAdaptiveCompileThreshold(0);
+    }
+
+    @Test
+    public void testContextOptimizationLevel() {
+        MongoRuntime.setOptimizationLevel(-1);
+        assertEquals(-1, MongoRuntime.call(new MongoAction(null) {
+            @Override
+            protected Object doRun(Context cx) {
+                return cx.getOptimizationLevel();
+            }
+        }));
+        CompiledMongoScript script = MongoRuntime.compile("interpreted",
+                "1 + 2;");
+        assertTrue(script.isInterpreted());
+        assertFalse(script.isAdaptive());
+    }
+
+    @Test
+    public void testCachePerOptimizationLevel() {
+        MongoRuntime.setOptimizationLevel(0);
+        CompiledMongoScript compiled = MongoRuntime.compile("levels", "3 + 4;");
+        assertFalse(compiled.isInterpreted());
+        MongoRuntime.setOptimizationLevel(-1);
+        CompiledMongoScript interpreted = MongoRuntime.compile("levels",
+                "3 + 4;");
+        assertTrue(interpreted.isInterpreted());
+        assertNotSame(compiled, interpreted);
+        MongoRuntime.setOptimizationLevel(0);
+        assertSame(compiled, MongoRuntime.compile("levels", "3 + 4;"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidOptimizationLevel() {
+        MongoRuntime.setOptimizationLevel(10);
+    }
+
+    @Test
+    public void testAdaptivePromotion() {
+        MongoRuntime.setAdaptiveCompileThreshold(3);
+        MongoScope scope = MongoRuntime.createMongoScope();
+        CompiledMongoScript script = MongoRuntime.compile("adaptive",
+                "var n = (typeof n == 'undefined') ? 1 : n + 1; n;");
+        assertTrue(script.isAdaptive());
+        assertTrue(script.isInterpreted());
+        for (int i = 1; i <= 5; i++)
+            assertEquals(i, ((Number) MongoRuntime
+                    .call(new CompiledMongoScriptAction(scope, script)))
+                    .intValue());
+        assertFalse(script.isInterpreted());
+        assertEquals(0, script.getOptimizationLevel());
+        assertEquals(3, script.getInterpretedExecutionCount());
+        assertEquals(2, script.getCompiledExecutionCount());
+        assertTrue(MongoRuntime.getScriptCache().countCompiled() > 0);
+    }
+
+}
@@ -0,0 +1,124 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mozilla.javascript.EvaluatorException;
+import org.mozilla.javascript.Scriptable;
+
+import com.github.nlloyd.hornofmongo.action.MongoScriptAction;
+import com.github.nlloyd.hornofmongo.adaptor.ObjectId;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class SharedMongoScopeTest {
+
+    private static MongoScope sharedScope;
+
+    @BeforeClass
+    public static void setUpClass() {
+        sharedScope = MongoRuntime.createSharedMongoScope();
+    }
+
+    @Test
+    public void testChildIsolation() {
+        MongoScope child1 = MongoRuntime.createChildMongoScope(sharedScope);
+        MongoScope child2 = MongoRuntime.createChildMongoScope(sharedScope);
+
+        MongoRuntime.call(new MongoScriptAction(child1,
+                "var x = tojson({a: 1}); y = 2;"));
+        assertEquals("{ \"a\" : 1 }", MongoRuntime.call(new MongoScriptAction(
+                child1, "x;")));
+        assertEquals("undefined", MongoRuntime.call(new MongoScriptAction(
+                child2, "typeof x;")));
+        assertEquals("undefined", MongoRuntime.call(new MongoScriptAction(
+                child2, "typeof y;")));
+        assertFalse(sharedScope.has("y", sharedScope));
+    }
+
+    @Test
+    public void testAdaptorsBelongToChild() {
+        MongoScope child = MongoRuntime.createChildMongoScope(sharedScope);
+        Object oid = MongoRuntime.call(new MongoScriptAction(child,
+                "new ObjectId();"));
+        assertTrue(oid instanceof ObjectId);
+        assertSame(child, ((Scriptable) oid).getParentScope());
+    }
+
+    @Test
+    public void testSharedIsSealed() {
+        MongoScope child = MongoRuntime.createChildMongoScope(sharedScope);
+        try {
+            MongoRuntime.call(new MongoScriptAction(child,
+                    "DBCollection.prototype.find = null;"));
+            fail("shared prototypes should be sealed");
+        } catch (EvaluatorException e) {
+        }
+    }
+
+    @Test
+    public void testConcurrentChildren() throws Exception {
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            final int id = i;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 20; j++) {
+                            MongoScope child = MongoRuntime
+                                    .createChildMongoScope(sharedScope);
+                            Object result = MongoRuntime
+                                    .call(new MongoScriptAction(child,
+                                            "var v = " + id
+                                                    + "; tojson([v, v]);"));
+                            assertEquals("[ " + id + ", " + id + " ]", result);
+                        }
+                    } catch (Throwable t) {
+                        synchronized (errors) {
+                            errors.add(t);
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+}
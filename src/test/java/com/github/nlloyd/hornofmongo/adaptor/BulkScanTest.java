@@ -0,0 +1,101 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.adaptor;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.nlloyd.hornofmongo.MongoRuntime;
+import com.github.nlloyd.hornofmongo.MongoScope;
+import com.github.nlloyd.hornofmongo.action.MongoScriptAction;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class BulkScanTest {
+
+    /**
+     * A collection whose find() returns a DBQuery over a fake cursor of n
+     * documents that records whether it was closed.
+     */
+    private static final String FAKE_COLLECTION = "function fakeCollection(n) {"
+            + "  var coll = { queries: [] };"
+            + "  var mongo = { find: function(ns, query, fields, limit, skip, batchSize, options) {"
+            + "    var docs = []; for (var i = 0; i < n; i++) docs.push({i: i});"
+            + "    return {"
+            + "      options: options,"
+            + "      closed: false,"
+            + "      hasNext: function() { return docs.length > 0; },"
+            + "      next: function() { return docs.shift(); },"
+            + "      nextBatch: function(n) { return n > 0 ? docs.splice(0, n) : docs.splice(0, docs.length); },"
+            + "      close: function() { this.closed = true; docs = []; }"
+            + "    };"
+            + "  } };"
+            + "  coll.find = function(query, fields) {"
+            + "    var q = new DBQuery(null, null, null, 'test.fake', query, fields, 0, 0, 0, 0);"
+            + "    q._mongo = mongo;"
+            + "    coll.queries.push(q);"
+            + "    return q;"
+            + "  };"
+            + "  coll.scanAll = DBCollection.prototype.scanAll;"
+            + "  return coll;"
+            + "}";
+
+    private MongoScope scope;
+
+    @Before
+    public void setUp() {
+        scope = MongoRuntime.createMongoScope();
+        eval(FAKE_COLLECTION);
+    }
+
+    @Test
+    public void testScanAll() {
+        assertEquals("250|249|true|64", eval("var c = fakeCollection(250); var last;"
+                + "var n = c.scanAll(function(d) { last = d.i; });"
+                + "n + '|' + last + '|' + c.queries[0]._cursor.closed + '|'"
+                + " + (c.queries[0]._cursor.options & DBQuery.Option.exhaust);"));
+    }
+
+    @Test
+    public void testScanAllClosesCursorOnError() {
+        assertEquals("stop at 10|true", eval("var c = fakeCollection(250); var error;"
+                + "try { c.scanAll(function(d) { if (d.i == 10) throw 'stop at ' + d.i; }); }"
+                + "catch (e) { error = e; }"
+                + "error + '|' + c.queries[0]._cursor.closed;"));
+        assertEquals(Boolean.FALSE, eval("c.queries[0].hasNext();"));
+    }
+
+    @Test
+    public void testCloseFauxCursor() {
+        assertEquals(Boolean.FALSE, eval("var ic = new InternalCursor({ok: 1});"
+                + "ic.close(); ic.hasNext();"));
+    }
+
+    private Object eval(String script) {
+        return MongoRuntime.call(new MongoScriptAction(scope, script));
+    }
+
+}
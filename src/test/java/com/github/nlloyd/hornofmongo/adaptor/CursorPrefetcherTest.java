@@ -0,0 +1,178 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.nlloyd.hornofmongo.MongoRuntime;
+import com.github.nlloyd.hornofmongo.MongoScope;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.ServerAddress;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class CursorPrefetcherTest {
+
+    /**
+     * Returns {i: 0} to {i: count - 1}, failing at failAt.
+     */
+    private static class CountingCursor implements Cursor {
+        final int count;
+        final int failAt;
+        volatile int read = 0;
+        volatile boolean closed = false;
+
+        CountingCursor(int count, int failAt) {
+            this.count = count;
+            this.failAt = failAt;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return read < count;
+        }
+
+        @Override
+        public DBObject next() {
+            if (read == failAt)
+                throw new MongoException(43, "cursor not found");
+            return new BasicDBObject("i", read++);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getCursorId() {
+            return 1;
+        }
+
+        @Override
+        public ServerAddress getServerAddress() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private MongoScope scope;
+
+    @Before
+    public void setUp() {
+        scope = MongoRuntime.createMongoScope();
+    }
+
+    @Test
+    public void testReadsAheadInOrder() throws Exception {
+        CountingCursor cursor = new CountingCursor(10, -1);
+        CursorPrefetcher prefetcher = new CursorPrefetcher(cursor, 3, 2);
+        prefetcher.start();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(prefetcher.hasNext());
+            assertEquals(i, prefetcher.next().get("i"));
+        }
+        assertFalse(prefetcher.hasNext());
+        assertTrue(cursor.closed);
+    }
+
+    @Test
+    public void testBoundedReadAhead() throws Exception {
+        CountingCursor cursor = new CountingCursor(1000, -1);
+        CursorPrefetcher prefetcher = new CursorPrefetcher(cursor, 3, 2);
+        prefetcher.start();
+        waitForReads(cursor, 9);
+        Thread.sleep(200);
+        // two queued batches and one waiting for room
+        assertEquals(9, cursor.read);
+
+        assertEquals(0, prefetcher.next().get("i"));
+        waitForReads(cursor, 12);
+
+        prefetcher.cancel();
+        for (int i = 0; (i < 50) && !cursor.closed; i++)
+            Thread.sleep(20);
+        assertTrue(cursor.closed);
+        assertFalse(prefetcher.hasNext());
+    }
+
+    @Test
+    public void testFailureAfterQueuedBatches() {
+        CursorPrefetcher prefetcher = new CursorPrefetcher(new CountingCursor(
+                10, 4), 3, 2);
+        prefetcher.start();
+        for (int i = 0; i < 3; i++)
+            assertEquals(i, prefetcher.next().get("i"));
+        try {
+            prefetcher.hasNext();
+            fail("expected the cursor failure");
+        } catch (MongoException me) {
+            assertEquals(43, me.getCode());
+        }
+        assertFalse(prefetcher.hasNext());
+    }
+
+    @Test
+    public void testIdleReaderClosesCursor() throws Exception {
+        CountingCursor cursor = new CountingCursor(1000, -1);
+        CursorPrefetcher prefetcher = new CursorPrefetcher(cursor, 3, 2, 200);
+        prefetcher.start();
+        for (int i = 0; (i < 100) && !cursor.closed; i++)
+            Thread.sleep(20);
+        assertTrue(cursor.closed);
+        assertEquals(9, cursor.read);
+
+        // the queued batches are still handed over
+        for (int i = 0; i < 6; i++)
+            assertEquals(i, prefetcher.next().get("i"));
+        try {
+            prefetcher.hasNext();
+            fail("expected the idle timeout failure");
+        } catch (MongoException me) {
+            // expected
+        }
+        assertFalse(prefetcher.hasNext());
+    }
+
+    private static void waitForReads(CountingCursor cursor, int reads)
+            throws InterruptedException {
+        for (int i = 0; (i < 100) && (cursor.read < reads); i++)
+            Thread.sleep(10);
+        assertEquals(reads, cursor.read);
+    }
+
+}
@@ -0,0 +1,124 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.adaptor;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.nlloyd.hornofmongo.MongoRuntime;
+import com.github.nlloyd.hornofmongo.MongoScope;
+import com.github.nlloyd.hornofmongo.action.MongoScriptAction;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class DBQueryIterationTest {
+
+    /**
+     * A DBQuery reading a fake cursor over {i: 0} to {i: n - 1} that records
+     * the native calls made.
+     */
+    private static final String FAKE_QUERY = "function fakeQuery(n, limit) {"
+            + "  var docs = []; for (var i = 0; i < n; i++) docs.push({i: i});"
+            + "  var q = new DBQuery(null, null, null, 'test.fake', {}, null, limit, 0, 0, 0);"
+            + "  q._cursor = {"
+            + "    calls: [],"
+            + "    hasNext: function() { this.calls.push('hasNext'); return docs.length > 0; },"
+            + "    next: function() { this.calls.push('next'); return docs.shift(); },"
+            + "    nextBatch: function(n) { this.calls.push('nextBatch(' + n + ')');"
+            + "      return n > 0 ? docs.splice(0, n) : docs.splice(0, docs.length); },"
+            + "    countRemaining: function(max) { this.calls.push('countRemaining(' + max + ')');"
+            + "      return (max > 0 ? docs.splice(0, max) : docs.splice(0, docs.length)).length; }"
+            + "  };"
+            + "  q._cursorSeen = 0;"
+            + "  return q;"
+            + "}";
+
+    private MongoScope scope;
+
+    @Before
+    public void setUp() {
+        scope = MongoRuntime.createMongoScope();
+        eval(FAKE_QUERY);
+    }
+
+    @Test
+    public void testToArray() {
+        assertEquals("0,1,2,3,4", eval("var q = fakeQuery(5, 0);"
+                + "q.toArray().map(function(d) { return d.i; }).join();"));
+        assertEquals("nextBatch(0)", eval("q._cursor.calls.join();"));
+        assertEquals("0,1,2", eval("q = fakeQuery(5, 3);"
+                + "q.toArray().map(function(d) { return d.i; }).join();"));
+    }
+
+    @Test
+    public void testForEachInBatches() {
+        assertEquals(
+                "0,1,2,3,4|nextBatch(2),nextBatch(2),nextBatch(2),nextBatch(2)",
+                eval("DBQuery.iterationBatchSize = 2; var q = fakeQuery(5, 0); var seen = [];"
+                        + "q.forEach(function(d) { seen.push(d.i); });"
+                        + "seen.join() + '|' + q._cursor.calls.join();"));
+        assertEquals(5, ((Number) eval("q._numReturned;")).intValue());
+    }
+
+    @Test
+    public void testForEachThrowKeepsUnseenDocuments() {
+        assertEquals("3|2", eval("DBQuery.iterationBatchSize = 100; var q = fakeQuery(6, 0);"
+                + "try { q.forEach(function(d) { if (d.i == 2) throw 'stop'; }); } catch (e) {}"
+                + "q.next().i + '|' + q.itcount() + '';"));
+        assertEquals(6, ((Number) eval("q._numReturned;")).intValue());
+    }
+
+    @Test
+    public void testToArrayAfterForEachThrow() {
+        assertEquals("3,4,5", eval("DBQuery.iterationBatchSize = 2; var q = fakeQuery(6, 0);"
+                + "try { q.forEach(function(d) { if (d.i == 2) throw 'stop'; }); } catch (e) {}"
+                + "q.toArray().map(function(d) { return d.i; }).join();"));
+        assertEquals("3,4", eval("q = fakeQuery(6, 5);"
+                + "try { q.forEach(function(d) { if (d.i == 2) throw 'stop'; }); } catch (e) {}"
+                + "q.toArray().map(function(d) { return d.i; }).join();"));
+    }
+
+    @Test
+    public void testItcount() {
+        assertEquals("10|countRemaining(0)", eval("var q = fakeQuery(10, 0);"
+                + "q.itcount() + '|' + q._cursor.calls.join();"));
+        assertEquals("4|countRemaining(4)", eval("q = fakeQuery(10, 4);"
+                + "q.itcount() + '|' + q._cursor.calls.join();"));
+    }
+
+    @Test
+    public void testNativeBatchOfFauxResult() {
+        assertEquals("1|0", eval("var c = new InternalCursor({ok: 1});"
+                + "c.nextBatch(10)[0].ok + '|' + c.drainToArray().length;"));
+        assertEquals(1, ((Number) eval("new InternalCursor({ok: 1}).countRemaining(0);"))
+                .intValue());
+    }
+
+    private Object eval(String script) {
+        return MongoRuntime.call(new MongoScriptAction(scope, script));
+    }
+
+}
@@ -0,0 +1,131 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.adaptor;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.javascript.NativeArray;
+
+import com.github.nlloyd.hornofmongo.MongoRuntime;
+import com.github.nlloyd.hornofmongo.MongoScope;
+import com.github.nlloyd.hornofmongo.action.MongoScriptAction;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class InsertManyOperationTest {
+
+    /**
+     * Records the batches instead of writing them.
+     */
+    private static class RecordingInsertManyOperation extends
+            InsertManyOperation {
+        final List<Integer> batchStarts = new ArrayList<Integer>();
+        final List<Integer> batchSizes = new ArrayList<Integer>();
+
+        RecordingInsertManyOperation(boolean ordered, int batchSize,
+                int maxDocumentSize, int maxBatchBytes) {
+            super(null, ordered, batchSize, maxDocumentSize, maxBatchBytes,
+                    WriteConcern.ACKNOWLEDGED);
+        }
+
+        @Override
+        protected int executeBatch(List<DBObject> batch, int batchStart) {
+            batchStarts.add(batchStart);
+            batchSizes.add(batch.size());
+            return batch.size();
+        }
+    }
+
+    private MongoScope scope;
+
+    @Before
+    public void setUp() {
+        scope = MongoRuntime.createMongoScope();
+    }
+
+    @Test
+    public void testSplitByCount() {
+        RecordingInsertManyOperation insertMany = new RecordingInsertManyOperation(
+                true, 10, 16 * 1024 * 1024, InsertManyOperation.MAX_BATCH_BYTES);
+        BasicDBObject result = insertMany.execute(documents(25, 1));
+        assertEquals(25, result.getInt("nInserted"));
+        assertEquals(3, result.getInt("nBatches"));
+        assertEquals("[10, 10, 5]", insertMany.batchSizes.toString());
+        assertEquals("[0, 10, 20]", insertMany.batchStarts.toString());
+    }
+
+    @Test
+    public void testSplitByBytes() {
+        // {_id: n, s: 'xx...'} with a 100 character string is 5 + 13 + 108
+        // bytes, so three of them fit in 400 bytes
+        RecordingInsertManyOperation insertMany = new RecordingInsertManyOperation(
+                true, 1000, 16 * 1024 * 1024, 400);
+        BasicDBObject result = insertMany.execute(documents(7, 100));
+        assertEquals(7, result.getInt("nInserted"));
+        assertEquals("[3, 3, 1]", insertMany.batchSizes.toString());
+        assertEquals(378, ((BasicDBObject) ((BasicDBList) result
+                .get("batches")).get(0)).getInt("bytes"));
+    }
+
+    @Test
+    public void testTooLargeDocument() {
+        List<Object> docs = new ArrayList<Object>(documents(5, 1));
+        docs.add(2, eval("({_id: 'big', s: new Array(200).join('x')});"));
+
+        RecordingInsertManyOperation ordered = new RecordingInsertManyOperation(
+                true, 1000, 100, InsertManyOperation.MAX_BATCH_BYTES);
+        BasicDBObject result = ordered.execute(docs);
+        assertEquals(2, result.getInt("nInserted"));
+        BasicDBList writeErrors = (BasicDBList) result.get("writeErrors");
+        assertEquals(1, writeErrors.size());
+        assertEquals(2, ((BasicDBObject) writeErrors.get(0)).getInt("index"));
+
+        RecordingInsertManyOperation unordered = new RecordingInsertManyOperation(
+                false, 1000, 100, InsertManyOperation.MAX_BATCH_BYTES);
+        result = unordered.execute(docs);
+        assertEquals(5, result.getInt("nInserted"));
+        assertEquals("[0, 3]", unordered.batchStarts.toString());
+        assertEquals(1, ((BasicDBList) result.get("writeErrors")).size());
+    }
+
+    private NativeArray documents(int count, int stringLength) {
+        return (NativeArray) eval("var docs = []; for (var i = 0; i < "
+                + count + "; i++) docs.push({_id: i, s: new Array("
+                + (stringLength + 1) + ").join('x')}); docs;");
+    }
+
+    private Object eval(String script) {
+        return MongoRuntime.call(new MongoScriptAction(scope, script));
+    }
+
+}
@@ -0,0 +1,165 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.bson.BsonDocument;
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+
+import com.github.nlloyd.hornofmongo.MongoRuntime;
+import com.github.nlloyd.hornofmongo.MongoScope;
+import com.github.nlloyd.hornofmongo.action.MongoAction;
+import com.github.nlloyd.hornofmongo.action.MongoScriptAction;
+import com.github.nlloyd.hornofmongo.bson.HornOfMongoBSONDecoder;
+import com.github.nlloyd.hornofmongo.bson.HornOfMongoJSEncoder;
+import com.mongodb.DBCollection;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+import com.mongodb.RecordingMongoClient;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class MongoTest {
+
+    private MongoClient client;
+    private Mongo mongo;
+
+    @Before
+    public void setUp() throws Exception {
+        // the driver only connects on the first operation
+        client = new MongoClient("localhost");
+        mongo = new Mongo();
+        mongo.innerMongo = client;
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+    }
+
+    @Test
+    public void testCollectionHandlesAreCached() {
+        DBCollection collection = mongo.getCollection("test.foo.bar");
+        assertEquals("test", collection.getDB().getName());
+        assertEquals("foo.bar", collection.getName());
+        assertSame(HornOfMongoJSEncoder.FACTORY,
+                collection.getDBEncoderFactory());
+        assertSame(HornOfMongoBSONDecoder.FACTORY,
+                collection.getDBDecoderFactory());
+        assertSame(collection, mongo.getCollection("test.foo.bar"));
+        assertNotSame(collection, mongo.getCollection("test.foo"));
+    }
+
+    @Test
+    public void testUpdateAndRemoveEncodeJSValues() throws Exception {
+        MongoScope scope = MongoRuntime.createMongoScope();
+        RecordingMongoClient recordingClient = new RecordingMongoClient();
+        try {
+            final Mongo recording = new Mongo();
+            recording.innerMongo = recordingClient;
+            recording.setParentScope(scope);
+            final Object update = MongoRuntime.call(new MongoScriptAction(scope,
+                    "({$set: {n: NumberLong(5), d: new Date(0)}});"));
+            final Object pattern = MongoRuntime.call(new MongoScriptAction(
+                    scope, "({_id: ObjectId('5153b4fca1b2c3d4e5f60718')});"));
+            MongoRuntime.call(new MongoAction(scope) {
+                @Override
+                protected Object doRun(Context cx) {
+                    recording.update("test.foo", pattern, update, false, false);
+                    recording.remove("test.foo", pattern, false);
+                    return null;
+                }
+            });
+
+            BsonDocument set = recordingClient.getUpdates().get(0)
+                    .getDocument("$set");
+            assertEquals(5L, set.getInt64("n").getValue());
+            assertEquals(0L, set.getDateTime("d").getValue());
+            assertEquals(2, recordingClient.getFilters().size());
+            for (BsonDocument filter : recordingClient.getFilters())
+                assertEquals("5153b4fca1b2c3d4e5f60718", filter.getObjectId("_id")
+                        .getValue().toHexString());
+        } finally {
+            scope.cleanup();
+            recordingClient.close();
+        }
+    }
+
+    @Test
+    public void testCleanupClosesEveryConnection() throws Exception {
+        MongoScope scope = MongoRuntime.createMongoScope();
+        List<String> closed = new ArrayList<String>();
+        scope.addMongoConnection(new ClosingMongo("a", closed, true));
+        scope.addMongoConnection(new ClosingMongo("b", closed, true));
+        scope.addMongoConnection(new ClosingMongo("c", closed, false));
+        try {
+            scope.cleanup();
+            fail("expected the failed flush");
+        } catch (MongoException e) {
+            // only the first failure is rethrown
+        }
+        assertEquals(3, closed.size());
+        assertEquals(0, scope.countMongoConnections());
+    }
+
+    /**
+     * Records its close, failing like a close whose buffered writes could
+     * not be flushed.
+     */
+    private static class ClosingMongo extends Mongo {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+        private final List<String> closed;
+        private final boolean fail;
+
+        ClosingMongo(String name, List<String> closed, boolean fail)
+                throws UnknownHostException {
+            this.name = name;
+            this.closed = closed;
+            this.fail = fail;
+        }
+
+        @Override
+        public void close() {
+            closed.add(name);
+            if (fail)
+                throw new MongoException("flush failed for " + name);
+        }
+
+    }
+
+}
@@ -0,0 +1,125 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bson.types.MinKey;
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+
+import com.github.nlloyd.hornofmongo.MongoRuntime;
+import com.github.nlloyd.hornofmongo.MongoScope;
+import com.github.nlloyd.hornofmongo.action.MongoAction;
+import com.github.nlloyd.hornofmongo.action.MongoScriptAction;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class ParallelScanTest {
+
+    @Test
+    public void testPickSplitPoints() {
+        List<Object> keys = new ArrayList<Object>();
+        for (int i = 0; i < 100; i++)
+            keys.add(i);
+        assertEquals(Arrays.<Object> asList(25, 50, 75),
+                ParallelScan.pickSplitPoints(keys, 4));
+        assertEquals(Arrays.<Object> asList(1, 2),
+                ParallelScan.pickSplitPoints(Arrays.<Object> asList(1, 2), 8));
+        // duplicates of a skewed sample collapse
+        assertEquals(Arrays.<Object> asList(7),
+                ParallelScan.pickSplitPoints(
+                        Arrays.<Object> asList(1, 7, 7, 7, 7, 7, 7, 7), 4));
+        assertTrue(ParallelScan.pickSplitPoints(keys, 1).isEmpty());
+        assertTrue(ParallelScan.pickSplitPoints(new ArrayList<Object>(), 4)
+                .isEmpty());
+    }
+
+    @Test
+    public void testPartitionQuery() {
+        DBObject all = new BasicDBObject();
+        assertSame(all, ParallelScan.partitionQuery(all, null, null));
+        DBObject first = ParallelScan.partitionQuery(all, null, 10);
+        assertSame(all, first.get("query"));
+        assertTrue(((DBObject) first.get("$min")).get("_id") instanceof MinKey);
+        assertEquals(new BasicDBObject("_id", 10), first.get("$max"));
+        assertEquals(new BasicDBObject("_id", 1), first.get("$hint"));
+        DBObject query = new BasicDBObject("x", 1);
+        assertEquals(
+                new BasicDBObject("query", query)
+                        .append("$min", new BasicDBObject("_id", 10))
+                        .append("$max", new BasicDBObject("_id", 20))
+                        .append("$hint", new BasicDBObject("_id", 1)),
+                ParallelScan.partitionQuery(query, 10, 20));
+        // a MaxKey $max would exclude an _id of MaxKey
+        assertEquals(new BasicDBObject("query", query)
+                .append("$min", new BasicDBObject("_id", "a"))
+                .append("$hint", new BasicDBObject("_id", 1)),
+                ParallelScan.partitionQuery(query, "a", null));
+    }
+
+    @Test
+    public void testWorkerScope() {
+        MongoScope scope = MongoRuntime.createMongoScope();
+        scope.setUseLazyDocuments(true);
+        MongoRuntime.call(new MongoScriptAction(scope,
+                "var callerOnly = 1; var fn = function(doc) { return doc.x + 1; };"));
+        final String source = (String) MongoRuntime
+                .call(new MongoScriptAction(scope, "fn.toString();"));
+
+        final MongoScope worker = MongoRuntime.createWorkerMongoScope(scope);
+        assertNotSame(scope, worker.getPrototype());
+        assertTrue(worker.useLazyDocuments());
+        assertEquals("undefined|function", MongoRuntime.call(new MongoScriptAction(
+                worker, "typeof callerOnly + '|' + typeof DBQuery;")));
+        Object result = MongoRuntime.call(new MongoAction(worker) {
+            @Override
+            protected Object doRun(Context cx) {
+                Function function = cx.compileFunction(worker, source,
+                        "parallelScan", 1, null);
+                return function.call(cx, worker, worker,
+                        new Object[] { MongoRuntime.call(new MongoScriptAction(
+                                worker, "({x: 41});")) });
+            }
+        });
+        assertEquals(42, ((Number) result).intValue());
+
+        // workers of a child scope share its parent
+        MongoScope child = MongoRuntime.createChildMongoScope(MongoRuntime
+                .createSharedMongoScope());
+        assertSame(child.getPrototype(), MongoRuntime.createWorkerMongoScope(
+                child).getPrototype());
+    }
+
+}
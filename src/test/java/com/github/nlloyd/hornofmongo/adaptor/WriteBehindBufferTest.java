@@ -0,0 +1,124 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.github.nlloyd.hornofmongo.adaptor.WriteBehindBuffer.BufferedWrite;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class WriteBehindBufferTest {
+
+    /**
+     * Records the bulk writes instead of sending them, failing the write
+     * numbered failOp.
+     */
+    private static class RecordingWriteBehindBuffer extends WriteBehindBuffer {
+        final List<String> bulkWrites = new ArrayList<String>();
+        int failOp = -1;
+
+        RecordingWriteBehindBuffer() {
+            super(null);
+        }
+
+        @Override
+        protected void executeBulkWrite(String ns, List<BufferedWrite> writes) {
+            StringBuilder ops = new StringBuilder(ns).append(":");
+            for (BufferedWrite write : writes) {
+                ops.append(" ").append(write.op);
+                if (write.op == failOp) {
+                    addWriteError(ns, write, 11000, "duplicate key");
+                    break;
+                }
+            }
+            bulkWrites.add(ops.toString());
+        }
+    }
+
+    @Test
+    public void testGroupsByNamespaceInOrder() {
+        RecordingWriteBehindBuffer buffer = new RecordingWriteBehindBuffer();
+        assertEquals(1, buffer.insert("test.a", new BasicDBObject("_id", 1)));
+        assertEquals(1, buffer.insert("test.b", new BasicDBObject("_id", 1)));
+        assertEquals(2, buffer.update("test.a", new BasicDBObject("_id", 1),
+                new BasicDBObject("$set", new BasicDBObject("x", 1)), false,
+                false));
+        assertEquals(3, buffer.remove("test.a", new BasicDBObject("_id", 1),
+                true));
+        assertEquals(4, buffer.size());
+
+        BasicDBObject result = buffer.flush();
+        assertEquals("[test.a: 1 3 4, test.b: 2]", buffer.bulkWrites.toString());
+        assertEquals(4, result.getInt("nWrites"));
+        assertEquals(2, result.getInt("nBulkWrites"));
+        assertTrue(((BasicDBList) result.get("writeErrors")).isEmpty());
+        assertNull(WriteBehindBuffer.toException(result));
+        assertTrue(buffer.isEmpty());
+        assertEquals(0, buffer.getPendingMillis());
+    }
+
+    @Test
+    public void testReportsFailedAndSkippedWrites() {
+        RecordingWriteBehindBuffer buffer = new RecordingWriteBehindBuffer();
+        for (int i = 0; i < 3; i++)
+            buffer.insert("test.a", new BasicDBObject("_id", i));
+        buffer.insert("test.b", new BasicDBObject("_id", 0));
+        buffer.failOp = 2;
+
+        BasicDBObject result = buffer.flush();
+        BasicDBList writeErrors = (BasicDBList) result.get("writeErrors");
+        assertEquals(1, writeErrors.size());
+        DBObject writeError = (DBObject) writeErrors.get(0);
+        assertEquals(2, writeError.get("op"));
+        assertEquals("test.a", writeError.get("ns"));
+        assertEquals("insert", writeError.get("type"));
+        BasicDBList skipped = (BasicDBList) result.get("skipped");
+        assertEquals(1, skipped.size());
+        assertEquals(3, skipped.get(0));
+        // the other namespace is still written
+        assertEquals("[test.a: 1 2, test.b: 4]", buffer.bulkWrites.toString());
+
+        MongoException failure = WriteBehindBuffer.toException(result);
+        assertEquals(11000, failure.getCode());
+        assertTrue(failure.getMessage().contains("op 2"));
+
+        // numbering goes on after a flush
+        buffer.insert("test.a", new BasicDBObject("_id", 9));
+        buffer.flush();
+        assertEquals("test.a: 5", buffer.bulkWrites.get(2));
+    }
+
+}
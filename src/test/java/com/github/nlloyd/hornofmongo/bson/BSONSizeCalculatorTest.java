@@ -0,0 +1,104 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.bson;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.bson.io.BasicOutputBuffer;
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+
+import com.github.nlloyd.hornofmongo.MongoRuntime;
+import com.github.nlloyd.hornofmongo.MongoScope;
+import com.github.nlloyd.hornofmongo.action.MongoAction;
+import com.github.nlloyd.hornofmongo.action.MongoScriptAction;
+import com.mongodb.BasicDBObject;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class BSONSizeCalculatorTest {
+
+    private MongoScope scope;
+
+    @Before
+    public void setUp() {
+        scope = MongoRuntime.createMongoScope();
+    }
+
+    @Test
+    public void testSameSizeAsEncoder() {
+        final Scriptable jsObject = (Scriptable) eval("({_id: new ObjectId(), "
+                + "s: 'stré \\ud83d\\ude00 \\u4e2d', d: 1.5, b: true, nil: null, "
+                + "u: undefined, arr: [0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11], "
+                + "sub: {'0': 'zero', y: {z: [2, {w: 'x'}]}}, "
+                + "n: new NumberLong(7), i: new NumberInt(8), "
+                + "ts: new Timestamp(1, 2), bin: new BinData(4, 'AQI='), "
+                + "old: new BinData(2, 'AQI='), "
+                + "uuid: UUID('0123456789abcdef0123456789abcdef'), "
+                + "re: /^a/im, date: new Date(1000), "
+                + "utc: {$date: '2013-01-02T03:04:05Z'}, ref: new DBRef('c', 1), "
+                + "min: MinKey, max: new MaxKey(), f: function(x) { return x; }});");
+        MongoRuntime.call(new MongoAction(scope) {
+            @Override
+            protected Object doRun(Context cx) {
+                BasicOutputBuffer buffer = new BasicOutputBuffer();
+                int encoded = new HornOfMongoJSEncoder().writeObject(buffer,
+                        new ScriptableDBObject(jsObject));
+                assertEquals(encoded, BSONSizeCalculator.sizeOf(jsObject));
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void testBsonsize() {
+        assertEquals(5.0, eval("Number(Object.bsonsize({}));"));
+        // {a: 1.0} is 5 + 1 + 2 + 8
+        assertEquals(16.0, eval("Number(Object.bsonsize({a: 1}));"));
+        assertEquals(0.0, eval("Number(Object.bsonsize(null));"));
+        BasicDBObject bson = new BasicDBObject("a", "b").append("c",
+                new BasicDBObject("d", 1L));
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        int encoded = new HornOfMongoBSONEncoder().writeObject(buffer, bson);
+        assertEquals(encoded, BSONSizeCalculator.sizeOf(bson));
+    }
+
+    @Test
+    public void testNullInFieldName() {
+        try {
+            BSONSizeCalculator.sizeOf(eval("({'a\\0': 1});"));
+            fail("expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private Object eval(String script) {
+        return MongoRuntime.call(new MongoScriptAction(scope, script));
+    }
+
+}
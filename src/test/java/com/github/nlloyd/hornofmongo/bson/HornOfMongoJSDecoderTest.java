@@ -0,0 +1,122 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.bson;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import org.bson.types.BSONTimestamp;
+import org.bson.types.Binary;
+import org.bson.types.Code;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+import com.github.nlloyd.hornofmongo.MongoRuntime;
+import com.github.nlloyd.hornofmongo.MongoScope;
+import com.github.nlloyd.hornofmongo.action.MongoScriptAction;
+import com.github.nlloyd.hornofmongo.util.BSONizer;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DBRef;
+import com.mongodb.DefaultDBEncoder;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class HornOfMongoJSDecoderTest {
+
+    private MongoScope scope;
+
+    private byte[] bytes;
+
+    @Before
+    public void setUp() {
+        scope = MongoRuntime.createMongoScope();
+        BasicDBObject bson = new BasicDBObject("_id", new ObjectId())
+                .append("n", 5L).append("i", 3).append("d", 1.5)
+                .append("s", "stré").append("b", true).append("nil", null)
+                .append("arr", Arrays.asList(1, "two", new BasicDBObject("x", 1),
+                        Arrays.asList(2, 3)))
+                .append("sub", new BasicDBObject("x", 1).append("0", "zero")
+                        .append("deeper", new BasicDBObject("y", 2)))
+                .append("ts", new BSONTimestamp(1, 2))
+                .append("bin", new Binary((byte) 4, new byte[] { 1, 2 }))
+                .append("old", new Binary((byte) 2, new byte[] { 4, 5 }))
+                .append("bytes", new byte[] { 3 })
+                .append("uuid", new UUID(1L, 2L))
+                .append("date", new Date(1000L))
+                .append("re", Pattern.compile("^a", Pattern.CASE_INSENSITIVE))
+                .append("code", new Code("function() {}"))
+                .append("ref", new DBRef("coll", new ObjectId()))
+                .append("min", new MinKey()).append("max", new MaxKey());
+        bytes = new DefaultDBEncoder().encode(bson);
+    }
+
+    @Test
+    public void testSameAsDBObjectConversion() {
+        DBObject decoded = new HornOfMongoJSDecoder(scope.getJSValueFactory())
+                .decode(bytes, (DBCollection) null);
+        assertTrue(decoded instanceof ScriptableDBObject);
+        Scriptable direct = ((ScriptableDBObject) decoded).getScriptable();
+        assertSame(direct, BSONizer.convertBSONtoJS(scope, decoded));
+        ScriptableObject.putProperty(scope, "direct", direct);
+        ScriptableObject.putProperty(scope, "eager", BSONizer
+                .convertBSONtoJS(scope, new HornOfMongoBSONDecoder().decode(
+                        bytes, (DBCollection) null)));
+        assertEquals(eval("tojson(eager);"), eval("tojson(direct);"));
+        assertEquals(eval("Object.keys(eager).join();"),
+                eval("Object.keys(direct).join();"));
+        assertEquals(Boolean.TRUE, eval("direct.ref instanceof DBRef;"));
+        assertEquals(Boolean.TRUE, eval("direct.arr instanceof Array;"));
+        assertEquals(Boolean.TRUE, eval("direct.sub[0] == 'zero';"));
+        assertEquals(Boolean.TRUE, eval("direct.n instanceof NumberLong;"));
+    }
+
+    @Test
+    public void testDecodeStream() throws IOException {
+        DBObject decoded = scope.getJSValueFactory().getDecoderFactory()
+                .create().decode(new ByteArrayInputStream(bytes),
+                        (DBCollection) null);
+        assertEquals("stré", decoded.get("s"));
+        assertTrue(decoded.keySet().contains("_id"));
+    }
+
+    private Object eval(String script) {
+        return MongoRuntime.call(new MongoScriptAction(scope, script));
+    }
+
+}
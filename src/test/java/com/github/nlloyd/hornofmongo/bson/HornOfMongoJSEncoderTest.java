@@ -0,0 +1,129 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.bson;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+
+import com.github.nlloyd.hornofmongo.MongoRuntime;
+import com.github.nlloyd.hornofmongo.MongoScope;
+import com.github.nlloyd.hornofmongo.action.MongoAction;
+import com.github.nlloyd.hornofmongo.action.MongoScriptAction;
+import com.github.nlloyd.hornofmongo.util.BSONizer;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class HornOfMongoJSEncoderTest {
+
+    private MongoScope scope;
+
+    @Before
+    public void setUp() {
+        scope = MongoRuntime.createMongoScope();
+    }
+
+    @Test
+    public void testSameBytesAsBSONizer() {
+        final Scriptable jsObject = (Scriptable) eval("({a: 1, _id: new ObjectId(), "
+                + "s: 'str' + 'ing', d: 1.5, b: false, nil: null, u: undefined, "
+                + "arr: [1, 'two', {x: [3]}, [4, 5]], sub: {'0': 'zero', y: {z: 2}}, "
+                + "n: new NumberLong(7), i: new NumberInt(8), "
+                + "ts: new Timestamp(1, 2), bin: new BinData(4, 'AQI='), "
+                + "re: /^a/i, date: new Date(1000), "
+                + "utc: {$date: '2013-01-02T03:04:05Z'}, "
+                + "notutc: {$date: 'bad'}, ref: new DBRef('c', 1), "
+                + "min: MinKey, max: new MaxKey()});");
+        // regular expressions are converted with a Context entered
+        MongoRuntime.call(new MongoAction(scope) {
+            @Override
+            protected Object doRun(Context cx) {
+                assertArrayEquals(encodeWithBSONizer(jsObject),
+                        encode(jsObject));
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void testDriverFields() {
+        Scriptable jsObject = (Scriptable) eval("({a: 1, b: 'x'});");
+        ScriptableDBObject document = new ScriptableDBObject(jsObject);
+        ObjectId id = new ObjectId();
+        document.put("_id", id);
+        document.put("b", "y");
+        assertTrue(document.containsField("_id"));
+
+        DBObject decoded = new HornOfMongoBSONDecoder().decode(
+                encode(document), (DBCollection) null);
+        assertEquals("_id", decoded.keySet().iterator().next());
+        assertEquals(id, decoded.get("_id"));
+        assertEquals("y", decoded.get("b"));
+        // the JS object is left untouched
+        assertFalse(jsObject.has("_id", jsObject));
+    }
+
+    @Test
+    public void testIsEncodable() {
+        assertTrue(HornOfMongoJSEncoder.isEncodable(eval("({a: 1});")));
+        assertFalse(HornOfMongoJSEncoder.isEncodable(eval("[{a: 1}];")));
+        assertFalse(HornOfMongoJSEncoder
+                .isEncodable(eval("({$date: '2013-01-02T03:04:05Z'});")));
+        assertFalse(HornOfMongoJSEncoder.isEncodable("a"));
+    }
+
+    private byte[] encode(Scriptable jsObject) {
+        return encode(new ScriptableDBObject(jsObject));
+    }
+
+    private byte[] encode(ScriptableDBObject document) {
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        int size = new HornOfMongoJSEncoder().writeObject(buffer, document);
+        assertEquals(buffer.getPosition(), size);
+        return buffer.toByteArray();
+    }
+
+    private byte[] encodeWithBSONizer(Scriptable jsObject) {
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        new HornOfMongoBSONEncoder().writeObject(buffer,
+                (BasicDBObject) BSONizer.convertJStoBSON(jsObject, true));
+        return buffer.toByteArray();
+    }
+
+    private Object eval(String script) {
+        return MongoRuntime.call(new MongoScriptAction(scope, script));
+    }
+
+}
@@ -0,0 +1,145 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.bson;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import org.bson.types.BSONTimestamp;
+import org.bson.types.Binary;
+import org.bson.types.Code;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ScriptableObject;
+
+import com.github.nlloyd.hornofmongo.MongoRuntime;
+import com.github.nlloyd.hornofmongo.MongoScope;
+import com.github.nlloyd.hornofmongo.action.MongoAction;
+import com.github.nlloyd.hornofmongo.action.MongoScriptAction;
+import com.github.nlloyd.hornofmongo.util.BSONizer;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBRef;
+import com.mongodb.DefaultDBEncoder;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class LazyBSONDocumentTest {
+
+    private MongoScope scope;
+
+    private byte[] bytes;
+
+    @Before
+    public void setUp() {
+        scope = MongoRuntime.createMongoScope();
+        BasicDBObject bson = new BasicDBObject("_id", new ObjectId())
+                .append("n", 5L).append("i", 3).append("d", 1.5)
+                .append("s", "stré").append("b", true).append("nil", null)
+                .append("arr", Arrays.asList(1, "two", new BasicDBObject("x", 1)))
+                .append("sub", new BasicDBObject("x", 1).append("0", "zero")
+                        .append("deeper", new BasicDBObject("y", 2)))
+                .append("ts", new BSONTimestamp(1, 2))
+                .append("bin", new Binary((byte) 4, new byte[] { 1, 2 }))
+                .append("bytes", new byte[] { 3 })
+                .append("uuid", new UUID(1L, 2L))
+                .append("date", new Date(1000L))
+                .append("re", Pattern.compile("^a", Pattern.CASE_INSENSITIVE))
+                .append("code", new Code("function() {}"))
+                .append("ref", new DBRef("coll", new ObjectId()))
+                .append("min", new MinKey()).append("max", new MaxKey());
+        bytes = new DefaultDBEncoder().encode(bson);
+    }
+
+    @Test
+    public void testSameAsEagerConversion() {
+        ScriptableObject.putProperty(scope, "lazy", lazyDocument());
+        ScriptableObject.putProperty(scope, "eager", BSONizer
+                .convertBSONtoJS(scope, new HornOfMongoBSONDecoder().decode(
+                        bytes, (DBCollection) null)));
+        assertEquals(eval("tojson(eager);"), eval("tojson(lazy);"));
+        assertEquals(eval("Object.keys(eager).join();"),
+                eval("Object.keys(lazy).join();"));
+        assertEquals(Boolean.TRUE, eval("lazy.ref instanceof DBRef;"));
+        assertEquals(Boolean.TRUE, eval("lazy.sub.deeper.y == 2;"));
+        assertEquals(Boolean.TRUE, eval("lazy.sub[0] == 'zero';"));
+    }
+
+    @Test
+    public void testDecodedOnAccess() {
+        LazyBSONDocument lazy = lazyDocument();
+        ScriptableObject.putProperty(scope, "lazy", lazy);
+        assertEquals(Boolean.TRUE, eval("lazy.n instanceof NumberLong;"));
+        assertTrue(lazy.isPartiallyDecoded());
+        // reading a field late doesn't change the key order
+        assertEquals("_id,n,i", eval("Object.keys(lazy).slice(0, 3).join();"));
+        lazy.decodeAll();
+        assertFalse(lazy.isPartiallyDecoded());
+    }
+
+    @Test
+    public void testWrites() {
+        LazyBSONDocument lazy = lazyDocument();
+        ScriptableObject.putProperty(scope, "lazy", lazy);
+        eval("lazy.s = 'changed'; delete lazy.i; lazy.added = 1; lazy.sub.x = 7;");
+        assertEquals("changed", eval("lazy.s;"));
+        assertEquals(Boolean.FALSE, eval("'i' in lazy;"));
+        assertEquals(7.0, ((Number) eval("lazy.sub.x;")).doubleValue(), 0);
+        Object bson = MongoRuntime.call(new MongoAction(scope) {
+            @Override
+            protected Object doRun(Context cx) {
+                return BSONizer.convertJStoBSON(
+                        ScriptableObject.getProperty(mongoScope, "lazy"),
+                        false);
+            }
+        });
+        assertEquals("changed", ((BasicDBObject) bson).get("s"));
+        assertFalse(((BasicDBObject) bson).containsField("i"));
+        assertEquals(1, ((Number) ((BasicDBObject) bson).get("added"))
+                .intValue());
+        assertEquals(7, ((Number) ((BasicDBObject) ((BasicDBObject) bson)
+                .get("sub")).get("x")).intValue());
+    }
+
+    private LazyBSONDocument lazyDocument() {
+        return (LazyBSONDocument) BSONizer.convertBSONtoJS(scope,
+                new HornOfMongoLazyBSONDecoder().decode(bytes,
+                        (DBCollection) null));
+    }
+
+    private Object eval(String script) {
+        return MongoRuntime.call(new MongoScriptAction(scope, script));
+    }
+
+}
@@ -0,0 +1,105 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import org.bson.types.BSONTimestamp;
+import org.bson.types.Binary;
+import org.junit.Test;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+import com.github.nlloyd.hornofmongo.MongoRuntime;
+import com.github.nlloyd.hornofmongo.MongoScope;
+import com.github.nlloyd.hornofmongo.action.MongoScriptAction;
+import com.mongodb.BasicDBObject;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class JSValueFactoryTest {
+
+    @Test
+    public void testConvertDocument() {
+        MongoScope scope = MongoRuntime.createMongoScope();
+        BasicDBObject bson = new BasicDBObject("_id",
+                new org.bson.types.ObjectId("5277a3e3e4b0a5b6f7c8d9e0"))
+                .append("n", 5L).append("i", 3).append("s", "str")
+                .append("arr", Arrays.asList(1, "two"))
+                .append("sub", new BasicDBObject("x", 1).append("0", "zero"))
+                .append("ts", new BSONTimestamp(1, 2))
+                .append("bin", new Binary((byte) 0, new byte[] { 1, 2 }))
+                .append("uuid", new UUID(1L, 2L))
+                .append("date", new Date(1000L))
+                .append("re", Pattern.compile("^a", Pattern.CASE_INSENSITIVE));
+        Object doc = BSONizer.convertBSONtoJS(scope, bson);
+        ScriptableObject.putProperty(scope, "doc", doc);
+
+        assertEquals(Boolean.TRUE, eval(scope,
+                "doc._id instanceof ObjectId && doc._id.str == '5277a3e3e4b0a5b6f7c8d9e0';"));
+        assertEquals(Boolean.TRUE, eval(scope,
+                "doc.n instanceof NumberLong && doc.n.floatApprox == 5;"));
+        assertEquals(Boolean.TRUE, eval(scope,
+                "doc.i === 3 && doc.s === 'str';"));
+        assertEquals(Boolean.TRUE, eval(scope,
+                "doc.arr instanceof Array && doc.arr.length == 2 && doc.arr[1] == 'two';"));
+        assertEquals(Boolean.TRUE, eval(scope,
+                "doc.sub.x == 1 && doc.sub[0] == 'zero';"));
+        assertEquals(Boolean.TRUE, eval(scope,
+                "doc.ts instanceof Timestamp && doc.ts.t == 1 && doc.ts.i == 2;"));
+        assertEquals(Boolean.TRUE, eval(scope,
+                "doc.bin instanceof BinData && doc.bin.hex() == '0102';"));
+        assertEquals(Boolean.TRUE, eval(scope,
+                "doc.uuid instanceof BinData && doc.uuid.hex().length == 32;"));
+        assertEquals(Boolean.TRUE, eval(scope,
+                "doc.date instanceof Date && doc.date.getTime() == 1000;"));
+        assertEquals(Boolean.TRUE, eval(scope,
+                "doc.re instanceof RegExp && doc.re.ignoreCase;"));
+        assertEquals(Boolean.TRUE, eval(scope,
+                "Object.getPrototypeOf(doc) === Object.prototype;"));
+    }
+
+    @Test
+    public void testObjectsBelongToChildScope() {
+        MongoScope sharedScope = MongoRuntime.createSharedMongoScope();
+        MongoScope child = MongoRuntime.createChildMongoScope(sharedScope);
+        Scriptable doc = (Scriptable) BSONizer.convertBSONtoJS(child,
+                new BasicDBObject("_id", new org.bson.types.ObjectId()));
+        assertSame(child, doc.getParentScope());
+        assertSame(child, ((Scriptable) doc.get("_id", doc)).getParentScope());
+        assertSame(child.getJSValueFactory(), child.getJSValueFactory());
+    }
+
+    private Object eval(MongoScope scope, String script) {
+        return MongoRuntime.call(new MongoScriptAction(scope, script));
+    }
+
+}
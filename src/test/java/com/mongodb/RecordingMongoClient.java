@@ -0,0 +1,99 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.mongodb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.BsonDocument;
+
+import com.mongodb.bulk.DeleteRequest;
+import com.mongodb.bulk.UpdateRequest;
+import com.mongodb.operation.DeleteOperation;
+import com.mongodb.operation.OperationExecutor;
+import com.mongodb.operation.ReadOperation;
+import com.mongodb.operation.UpdateOperation;
+import com.mongodb.operation.WriteOperation;
+
+/**
+ * Test client whose update and remove operations are encoded the way the
+ * driver sends them, then recorded instead of being sent. Lives in the
+ * driver's package to replace its package-private operation executor.
+ * 
+ * @author nlloyd
+ * 
+ */
+public class RecordingMongoClient extends MongoClient {
+
+    private final List<BsonDocument> updates = new ArrayList<BsonDocument>();
+    private final List<BsonDocument> filters = new ArrayList<BsonDocument>();
+
+    public RecordingMongoClient() {
+        super("localhost");
+    }
+
+    /**
+     * @return the encoded update documents, in order
+     */
+    public List<BsonDocument> getUpdates() {
+        return updates;
+    }
+
+    /**
+     * @return the encoded update and remove filters, in order
+     */
+    public List<BsonDocument> getFilters() {
+        return filters;
+    }
+
+    @Override
+    OperationExecutor createOperationExecutor() {
+        return new OperationExecutor() {
+            @Override
+            public <T> T execute(ReadOperation<T> operation,
+                    ReadPreference readPreference) {
+                throw new UnsupportedOperationException();
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public <T> T execute(WriteOperation<T> operation) {
+                // copying the lazy wrappers runs their encoders
+                if (operation instanceof UpdateOperation) {
+                    for (UpdateRequest request : ((UpdateOperation) operation)
+                            .getUpdateRequests()) {
+                        filters.add(request.getFilter().clone());
+                        updates.add(request.getUpdate().clone());
+                    }
+                } else if (operation instanceof DeleteOperation) {
+                    for (DeleteRequest request : ((DeleteOperation) operation)
+                            .getDeleteRequests())
+                        filters.add(request.getFilter().clone());
+                } else {
+                    throw new UnsupportedOperationException();
+                }
+                return (T) WriteConcernResult.unacknowledged();
+            }
+        };
+    }
+
+}
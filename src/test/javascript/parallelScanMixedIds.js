@@ -0,0 +1,33 @@
+// Tests that parallelScan visits every document exactly once when the _id
+// values are of different types than the split points
+
+var coll = db.parallelScanMixedIds;
+var visits = db.parallelScanMixedIds_visits;
+coll.drop();
+visits.drop();
+
+var expected = 0;
+for (var i = 0; i < 200; i++) {
+    coll.insert({ _id: i, pad: "xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx" });
+    coll.insert({ _id: "s" + i, pad: "xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx" });
+    coll.insert({ _id: new ObjectId(), pad: "xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx" });
+    expected += 3;
+}
+coll.insert({ _id: MinKey });
+coll.insert({ _id: MaxKey });
+expected += 2;
+
+// a document visited twice fails its partition with a duplicate key error
+var res = coll.parallelScan({
+    partitions: 8,
+    fn: function(doc) {
+        db.parallelScanMixedIds_visits.insert({ _id: doc._id });
+        var err = db.getLastError();
+        if (err)
+            throw err;
+    }
+});
+
+assert.eq(1, res.ok, "parallelScan errors: " + tojson(res.errors));
+assert.eq(expected, res.nDocuments, "documents scanned");
+assert.eq(expected, visits.count(), "documents visited");